@@ -0,0 +1,91 @@
+package vip.appcity.celery;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Decides what goes into the {@code argsrepr} message header - a readable representation of the task arguments
+ * shown by monitoring tools. Computing it costs a string per argument, so callers submitting the same task at high
+ * rates may want to shorten it, compute it only for some messages or turn it off.
+ */
+@FunctionalInterface
+public interface ArgsReprPolicy {
+
+    /** Representation of all arguments, see {@link #toDebugString(Object)}. */
+    ArgsReprPolicy FULL = args -> format(args, Integer.MAX_VALUE);
+
+    /** No {@code argsrepr} header at all. */
+    ArgsReprPolicy OFF = args -> null;
+
+    /**
+     * @param args positional arguments of the task
+     * @return the representation, or {@code null} to leave the header empty
+     */
+    @Nullable
+    String argsRepr(Object[] args);
+
+    /**
+     * @param maxLength maximal length of the representation (the ellipsis excluded)
+     * @return policy cutting the {@link #FULL} representation at {@code maxLength} characters
+     */
+    static ArgsReprPolicy truncated(int maxLength) {
+        checkArgument(maxLength > 0, "maxLength must be positive");
+        return args -> format(args, maxLength);
+    }
+
+    /**
+     * @param oneIn sampling rate, eg. 100 means that one message in hundred (on average) gets the header
+     * @return policy computing the {@link #FULL} representation only for randomly sampled messages
+     */
+    static ArgsReprPolicy sampled(int oneIn) {
+        checkArgument(oneIn > 0, "oneIn must be positive");
+        return args -> ThreadLocalRandom.current().nextInt(oneIn) == 0 ? FULL.argsRepr(args) : null;
+    }
+
+    /**
+     * Formats the arguments as a Python tuple, eg. {@code (1, "x", null)}, stopping after {@code maxLength} chars.
+     */
+    static String format(Object[] args, int maxLength) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(toDebugString(args[i]));
+            if (sb.length() > maxLength) {
+                sb.setLength(maxLength);
+                return sb.append("...").toString();
+            }
+        }
+        return sb.append(")").toString();
+    }
+
+    /**
+     * Converts an arbitrary object to a String. It checks for {@code null} and tries to produce reasonably
+     * short string representations:
+     *
+     * <li>{@link CharSequence} instances are trimmed if longer then 100; the trimmed string will show the beginning
+     * and the ending characters
+     * <li>simple objects (eg. {@link Number}, {@link Boolean}, etc) are converted using their {@code toString()}
+     * <li>complex objects are converted to their class name and identity hashcode
+     *
+     * @param o object to convert
+     * @return a string representation of the object
+     */
+    static String toDebugString(Object o) {
+        if (o == null) {
+            return "null";
+        } else if (o instanceof CharSequence) {
+            CharSequence s = (CharSequence) o;
+            return s.length() < 100
+                ? "\"" + s.toString() + "\""
+                : "\"" + s.subSequence(0, 30) + "..." + s.subSequence(s.length() - 30, s.length()) + "\"";
+        } else if (o instanceof Number || o instanceof Boolean) {
+            return o.toString();
+        } else {
+            return o.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(o));
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package vip.appcity.celery;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs submissions of {@link CeleryClientCore} on its executor so that the calling thread never blocks.
+ * <p>
+ *     Until the broker and backend connections are established, the submissions wait in a queue. A single background
+ *     task establishes the connections and then hands the queued submissions over to the executor. If connecting
+ *     fails, all the queued submissions fail with the same exception.
+ * </p>
+ */
+final class AsyncSubmitter {
+
+    /**
+     * A blocking submission, eg. a call to {@link CeleryClientCore#submit(String, String, Object[])}.
+     */
+    interface Submission<R> {
+        ListenableFuture<R> submit() throws IOException;
+    }
+
+    private final Executor executor;
+    private final Runnable connect;
+
+    private final Queue<Pending<?>> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean connecting = new AtomicBoolean();
+    private volatile boolean connected = false;
+
+    /**
+     * @param executor runs the blocking work
+     * @param connect establishes the connections, throws if it can't
+     */
+    AsyncSubmitter(Executor executor, Runnable connect) {
+        this.executor = executor;
+        this.connect = connect;
+    }
+
+    <R> CompletableFuture<R> submit(Submission<R> submission) {
+        Pending<R> p = new Pending<>(submission);
+        if (connected) {
+            executor.execute(p);
+        } else {
+            pending.add(p);
+            if (connected) {
+                // connected in the meantime, the queue might have been drained before we added to it
+                drain();
+            } else {
+                connectInBackground();
+            }
+        }
+        return p.result;
+    }
+
+    private void connectInBackground() {
+        if (!connecting.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                connect.run();
+                connected = true;
+                drain();
+            } catch (RuntimeException e) {
+                Pending<?> p;
+                while ((p = pending.poll()) != null) {
+                    p.result.completeExceptionally(e);
+                }
+            } finally {
+                connecting.set(false);
+            }
+            if (!connected && !pending.isEmpty()) {
+                // submitted while the failed attempt was finishing, they deserve their own attempt
+                connectInBackground();
+            }
+        });
+    }
+
+    private void drain() {
+        Pending<?> p;
+        while ((p = pending.poll()) != null) {
+            executor.execute(p);
+        }
+    }
+
+    private static final class Pending<R> implements Runnable {
+
+        private final Submission<R> submission;
+        private final CompletableFuture<R> result = new CompletableFuture<>();
+
+        Pending(Submission<R> submission) {
+            this.submission = submission;
+        }
+
+        @Override
+        public void run() {
+            if (result.isDone()) {
+                // cancelled by the caller while waiting
+                return;
+            }
+            ListenableFuture<R> future;
+            try {
+                future = submission.submit();
+            } catch (IOException | RuntimeException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+
+            Futures.addCallback(future, new FutureCallback<R>() {
+                @Override
+                public void onSuccess(R value) {
+                    result.complete(value);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    result.completeExceptionally(t);
+                }
+            }, MoreExecutors.directExecutor());
+            result.whenComplete((value, t) -> {
+                if (result.isCancelled()) {
+                    future.cancel(false);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package vip.appcity.celery;
+
+import vip.appcity.celery.spi.BlobStore;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Arguments of a task offloaded to a {@link BlobStore} by a {@link ClaimCheck}. They are read only when the task is
+ * called, straight from the stored blob to the parameter type.
+ */
+final class BlobArgs {
+
+    /** The header listing positions of the offloaded arguments. */
+    static final String HEADER = "blob_args";
+
+    private final BlobStore store;
+    private final ObjectMapper mapper;
+    private final Set<Integer> indices;
+
+    private BlobArgs(BlobStore store, ObjectMapper mapper, Set<Integer> indices) {
+        this.store = store;
+        this.mapper = mapper;
+        this.indices = indices;
+    }
+
+    /**
+     * @param header value of the {@link #HEADER} header
+     * @param store the worker's store
+     * @param mapper mapper of the format the arguments were serialized in
+     * @return the offloaded arguments, {@code null} if there are none
+     * @throws IOException if the task has offloaded arguments but there's no store
+     */
+    @Nullable
+    static BlobArgs of(@Nullable Object header, @Nullable BlobStore store, ObjectMapper mapper) throws IOException {
+        if (header == null) {
+            return null;
+        }
+        if (store == null) {
+            throw new IOException("The task has offloaded arguments but the worker has no blob store");
+        }
+        Set<Integer> indices = ((List<?>) header).stream()
+                .map(i -> ((Number) i).intValue())
+                .collect(Collectors.toSet());
+        return new BlobArgs(store, mapper, indices);
+    }
+
+    boolean contains(int index) {
+        return indices.contains(index);
+    }
+
+    /**
+     * @param key the argument as sent in the message
+     * @param type parameter type of the task method
+     * @return the argument read from the store
+     * @throws IOException if the blob can't be read
+     */
+    Object read(JsonNode key, Class<?> type) throws IOException {
+        try (InputStream in = new ByteBufferBackedInputStream(store.get(key.asText()))) {
+            return mapper.readValue(in, type);
+        } catch (JsonProcessingException e) {
+            // the same as a mismatch of an argument sent in the message
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+}
@@ -1,18 +1,27 @@
 package vip.appcity.celery;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.google.common.base.Strings;
 import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import lombok.extern.slf4j.Slf4j;
+import vip.appcity.celery.ids.RandomTaskIdGenerator;
+import vip.appcity.celery.outbox.Outbox;
+import vip.appcity.celery.routing.PartitionedRoute;
+import vip.appcity.celery.serialization.Serializers;
 import vip.appcity.celery.spi.Backend;
 import vip.appcity.celery.spi.Backend.ResultsProvider;
 import vip.appcity.celery.spi.BackendFactory;
 import vip.appcity.celery.spi.Broker;
 import vip.appcity.celery.spi.BrokerFactory;
 import vip.appcity.celery.spi.Message;
+import vip.appcity.celery.spi.Serializer;
+import vip.appcity.celery.spi.TaskIdGenerator;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -22,16 +31,24 @@ import java.io.UncheckedIOException;
 import java.net.InetAddress;
 import java.net.URI;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * The core implementation of a Celery client. It should work with any {@link Broker} or {@link Backend}.
@@ -42,27 +59,42 @@ import java.util.stream.Stream;
 @Slf4j
 public abstract class CeleryClientCore implements Closeable {
 
-    private static final String CONTENT_TYPE = "application/json";
-    private static final String ENCODING = "utf-8";
+    /** Marks an argument below the claim check threshold, compared by identity. */
+    private static final String SMALL_ARG = new String("");
 
-    private final String clientId = UUID.randomUUID().toString();
-    private final String clientName = clientId + "@" + getLocalHostName();
+    private final String clientId;
+    private final String clientName;
 
     private final URI brokerUri;
     private final URI backendUri;
     private final String queue;
 
-    private final ObjectMapper jsonMapper;
+    private final Serializer serializer;
+    private final TaskPayloadWriter payloadWriter;
+    private final TaskIdGenerator taskIdGenerator;
+    private final Compression compression;
+    private final ClaimCheck claimCheck;
     private final ExecutorService executor;
+    /** Journal the tasks are submitted through, {@code null} to send them right away. */
+    private final Outbox outbox;
+    /** Results of the tasks waiting in the outbox, completed once the tasks are sent. */
+    private final Map<String, SettableFuture<Object>> outboxResults;
+    /** Clients sharing the outbox by their queue, a task from the outbox is sent by the client of its queue. */
+    private final Map<String, CeleryClientCore> outboxClients;
 
     // Memoized suppliers help us to deal with a connection that can't be established yet. It may fail several times
     // with an exception but when it succeeds, it then always returns the same instance.
     //
     // This is tailored for the RabbitMQ connections - they fail to be created if the host can't be reached but they
     // can heal automatically. If other brokers/backends don't work this way, we might need to rework it.
-    private final Supplier<Optional<ResultsProvider<?>>> resultsProvider =
-            Suppliers.memoize(this::resultsProviderSupplier);
-    private final Supplier<Broker> broker = Suppliers.memoize(this::brokerSupplier);
+    private final Supplier<Optional<ResultsProvider<?>>> resultsProvider;
+    private final Supplier<Broker> broker;
+
+    private final AsyncSubmitter asyncSubmitter;
+    /** Queues of {@link PartitionedRoute partitioned routes} already declared on the broker. */
+    private final Set<String> declaredQueues = ConcurrentHashMap.newKeySet();
+    /** Whether {@link #close()} closes the connections, clients sharing the connections of another one don't. */
+    private final boolean ownsConnections;
 
     /**
      * @param brokerUri connection to broker that will dispatch messages
@@ -78,12 +110,141 @@ public abstract class CeleryClientCore implements Closeable {
             @Nullable final ExecutorService executor,
             @Nullable final ObjectMapper jsonMapper
     ) {
+        this(brokerUri, backendUri, queue, executor, jsonMapper, null, null, null, null);
+    }
+
+    /**
+     * @param brokerUri connection to broker that will dispatch messages
+     * @param backendUri connection to backend providing responses
+     * @param queue routing tag (specifies into which queue the messages will go)
+     * @param executor override for the used executor service
+     * @param jsonMapper override for the used JSON mapper
+     * @param taskIdGenerator override for the generator of IDs of tasks submitted without one
+     * @param compression compression of the task messages, {@code null} not to compress them
+     * @param serializer format of the task messages, JSON using {@code jsonMapper} by default
+     * @param claimCheck offloading of large arguments, {@code null} to send all of them in the message
+     */
+    protected CeleryClientCore(
+            @Nonnull final String brokerUri,
+            @Nullable final String backendUri,
+            @Nullable final String queue,
+            @Nullable final ExecutorService executor,
+            @Nullable final ObjectMapper jsonMapper,
+            @Nullable final TaskIdGenerator taskIdGenerator,
+            @Nullable final Compression compression,
+            @Nullable final Serializer serializer,
+            @Nullable final ClaimCheck claimCheck
+    ) {
+        this(brokerUri, backendUri, queue, executor, jsonMapper, taskIdGenerator, compression, serializer, claimCheck,
+                null);
+    }
+
+    /**
+     * @param brokerUri connection to broker that will dispatch messages
+     * @param backendUri connection to backend providing responses
+     * @param queue routing tag (specifies into which queue the messages will go)
+     * @param executor override for the used executor service
+     * @param jsonMapper override for the used JSON mapper
+     * @param taskIdGenerator override for the generator of IDs of tasks submitted without one
+     * @param compression compression of the task messages, {@code null} not to compress them
+     * @param serializer format of the task messages, JSON using {@code jsonMapper} by default; the built-in binary
+     *                   formats use the modules and configuration of {@code jsonMapper} too
+     * @param claimCheck offloading of large arguments, {@code null} to send all of them in the message
+     * @param outbox journal the tasks are submitted through and sent from in the background, closed with the client;
+     *               {@code null} to send the tasks right away; groups, chunks, chords and chains can't go through it
+     */
+    protected CeleryClientCore(
+            @Nonnull final String brokerUri,
+            @Nullable final String backendUri,
+            @Nullable final String queue,
+            @Nullable final ExecutorService executor,
+            @Nullable final ObjectMapper jsonMapper,
+            @Nullable final TaskIdGenerator taskIdGenerator,
+            @Nullable final Compression compression,
+            @Nullable final Serializer serializer,
+            @Nullable final ClaimCheck claimCheck,
+            @Nullable final Outbox outbox
+    ) {
+        this.clientId = UUID.randomUUID().toString();
+        this.clientName = clientId + "@" + getLocalHostName();
         this.brokerUri = URI.create(brokerUri);
         this.backendUri = backendUri != null ? URI.create(backendUri) : null;
         this.queue = queue != null ? queue : "celery";
 
         this.executor = executor != null ? executor : Executors.newCachedThreadPool();
-        this.jsonMapper = jsonMapper != null ? jsonMapper : new ObjectMapper();
+        if (serializer == null) {
+            this.serializer = Serializers.json(jsonMapper != null ? jsonMapper : new ObjectMapper());
+        } else {
+            this.serializer = jsonMapper != null ? Serializers.withMapper(serializer, jsonMapper) : serializer;
+        }
+        this.payloadWriter = new TaskPayloadWriter(this.serializer.getMapper());
+        this.taskIdGenerator = taskIdGenerator != null ? taskIdGenerator : new RandomTaskIdGenerator();
+        this.compression = compression;
+        this.claimCheck = claimCheck;
+        this.outbox = outbox;
+        this.outboxResults = new ConcurrentHashMap<>();
+        this.outboxClients = new ConcurrentHashMap<>();
+        this.resultsProvider = Suppliers.memoize(this::resultsProviderSupplier);
+        this.broker = Suppliers.memoize(this::brokerSupplier);
+        this.asyncSubmitter = newAsyncSubmitter();
+        this.ownsConnections = true;
+        if (outbox != null) {
+            outboxClients.put(this.queue, this);
+            outbox.drainTo(new OutboxSink());
+        }
+    }
+
+    /**
+     * Creates a client sending tasks to another queue over the connections of {@code parent}. Both clients share the
+     * broker connection, the results provider (and so the client ID) and all the settings except the queue and the
+     * compression. Creating the client is cheap, it only declares its queue when it's used for the first time.
+     * <p>
+     *     The connections stay owned by {@code parent} - closing this client does nothing, closing {@code parent}
+     *     makes this client unusable.
+     * </p>
+     *
+     * @param parent client owning the connections
+     * @param queue routing tag (specifies into which queue the messages will go)
+     * @param compression compression of the task messages, {@code null} not to compress them
+     */
+    protected CeleryClientCore(
+            @Nonnull final CeleryClientCore parent,
+            @Nonnull final String queue,
+            @Nullable final Compression compression
+    ) {
+        this.clientId = parent.clientId;
+        this.clientName = parent.clientName;
+        this.brokerUri = parent.brokerUri;
+        this.backendUri = parent.backendUri;
+        this.queue = queue;
+
+        this.executor = parent.executor;
+        this.serializer = parent.serializer;
+        this.payloadWriter = parent.payloadWriter;
+        this.taskIdGenerator = parent.taskIdGenerator;
+        this.compression = compression;
+        this.claimCheck = parent.claimCheck;
+        this.outbox = parent.outbox;
+        this.outboxResults = parent.outboxResults;
+        this.outboxClients = parent.outboxClients;
+        this.resultsProvider = parent.resultsProvider;
+        this.broker = Suppliers.memoize(() -> declareQueue(parent.broker.get()));
+        this.asyncSubmitter = newAsyncSubmitter();
+        this.ownsConnections = false;
+        if (outbox != null) {
+            outboxClients.putIfAbsent(queue, this);
+        }
+    }
+
+    private AsyncSubmitter newAsyncSubmitter() {
+        if (outbox != null) {
+            // appending to the outbox doesn't need the connections
+            return new AsyncSubmitter(executor, () -> { });
+        }
+        return new AsyncSubmitter(executor, () -> {
+            resultsProvider.get();
+            broker.get();
+        });
     }
 
     /**
@@ -102,9 +263,7 @@ public abstract class CeleryClientCore implements Closeable {
                 knownProtocols.addAll(factoryProtocols);
 
                 if (factoryProtocols.contains(brokerUri.getScheme())) {
-                    Broker b = factory.createBroker(brokerUri, executor);
-                    b.declareQueue(queue);
-                    return b;
+                    return declareQueue(factory.createBroker(brokerUri, executor));
                 }
             }
 
@@ -116,6 +275,15 @@ public abstract class CeleryClientCore implements Closeable {
         }
     }
 
+    private Broker declareQueue(Broker b) {
+        try {
+            b.declareQueue(queue);
+            return b;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     /**
      * Implements a particular search method of component discovery.
      * @return available {@link BackendFactory factories} for creating {@link Backend} instances
@@ -176,7 +344,7 @@ public abstract class CeleryClientCore implements Closeable {
     }
 
     public final <R> ListenableFuture<R> submit(String name, Object[] args) throws IOException {
-        return this.submit(name, UUID.randomUUID().toString(), args);
+        return this.submit(name, null, args);
     }
     /**
      * Submit a task by name. A low level method for submitting arbitrary tasks. The message constructed by this
@@ -192,6 +360,32 @@ public abstract class CeleryClientCore implements Closeable {
      * @see <a href="http://docs.celeryproject.org/en/latest/internals/protocol.html">Celery Message Protocol Version 2</a>
      */
     public final <R> ListenableFuture<R> submit(String name, String taskId, Object[] args) throws IOException {
+        return submit(name, taskId, args, TaskOptions.DEFAULT);
+    }
+
+    /**
+     * Submit a task by name with options, eg. its priority or ETA. Otherwise the same as {@link #submit(String,
+     * String, Object[])}.
+     * <p>
+     *     With an {@link Outbox}, the task is appended to it instead of being sent, so this works (and takes just
+     *     microseconds) even when the broker can't be reached. The outbox sends the tasks in the order they were
+     *     submitted once the broker is available.
+     * </p>
+     *
+     * @param name task name as understood by the worker
+     * @param taskId task id from caller, can be null
+     * @param args positional arguments for the method (need to be JSON serializable)
+     * @param options options of the submission
+     * @param <R> task result type
+     * @return asynchronous result
+     *
+     * @throws IOException if the message couldn't be sent
+     */
+    public final <R> ListenableFuture<R> submit(String name, String taskId, Object[] args, TaskOptions options)
+            throws IOException {
+        if (outbox != null) {
+            return submitToOutbox(queue, name, taskId, args, options, ArgsReprPolicy.FULL);
+        }
         // Get the provider early to increase the chance to find out there is a connection problem before actually
         // sending the message.
         //
@@ -199,43 +393,542 @@ public abstract class CeleryClientCore implements Closeable {
         // still drop after sending the message but there isn't much we can do about it.
         Optional<ResultsProvider<?>> rp = resultsProvider.get();
         if(null == taskId || "".equals(taskId)){
-            taskId = UUID.randomUUID().toString();
+            taskId = taskIdGenerator.nextId();
+        }
+
+        Message message = newTaskMessage(
+                broker.get(), rp.isPresent(), name, taskId, args, options, ArgsReprPolicy.FULL, null);
+        message.send(queue);
+
+        return resultFor(rp, taskId);
+    }
+
+    /**
+     * Submit a task into the queue picked by a partitioned route instead of the queue of this client. The message is
+     * the same as the one sent by {@link #submit(String, String, Object[])}. The queues of the route are declared when
+     * the first task goes to them.
+     *
+     * @param route picks the queue by the task arguments
+     * @param name task name as understood by the worker
+     * @param taskId task id from caller, can be null
+     * @param args positional arguments for the method (need to be JSON serializable)
+     * @param <R> task result type
+     * @return asynchronous result
+     *
+     * @throws IOException if the message couldn't be sent
+     */
+    public final <R> ListenableFuture<R> submit(PartitionedRoute route, String name, String taskId, Object[] args)
+            throws IOException {
+        return submit(route, name, taskId, args, TaskOptions.DEFAULT);
+    }
+
+    /**
+     * Submit a task with options into the queue picked by a partitioned route, see {@link #submit(PartitionedRoute,
+     * String, String, Object[])}.
+     */
+    public final <R> ListenableFuture<R> submit(
+            PartitionedRoute route, String name, String taskId, Object[] args, TaskOptions options
+    ) throws IOException {
+        String target = route.queueFor(args);
+        if (outbox != null) {
+            return submitToOutbox(target, name, taskId, args, options, ArgsReprPolicy.FULL);
+        }
+        Optional<ResultsProvider<?>> rp = resultsProvider.get();
+        Broker b = broker.get();
+        declareQueueOnce(b, target);
+        if (Strings.isNullOrEmpty(taskId)) {
+            taskId = taskIdGenerator.nextId();
+        }
+
+        Message message = newTaskMessage(b, rp.isPresent(), name, taskId, args, options, ArgsReprPolicy.FULL, null);
+        message.send(target);
+
+        return resultFor(rp, taskId);
+    }
+
+    /**
+     * Declares a queue other than the queue of this client when the first task goes to it.
+     */
+    private void declareQueueOnce(Broker b, String target) throws IOException {
+        if (!target.equals(queue) && !declaredQueues.contains(target)) {
+            // declaring is idempotent, concurrent submits may both do it
+            b.declareQueue(target);
+            declaredQueues.add(target);
+        }
+    }
+
+    /**
+     * Appends a task to the outbox, it's sent by {@link OutboxSink}.
+     *
+     * @param target queue of the task
+     */
+    @SuppressWarnings("unchecked")
+    private <R> ListenableFuture<R> submitToOutbox(
+            String target, String name, String taskId, Object[] args, TaskOptions options, ArgsReprPolicy argsRepr
+    ) throws IOException {
+        if (Strings.isNullOrEmpty(taskId)) {
+            taskId = taskIdGenerator.nextId();
+        }
+        options.awaitRateLimit();
+        byte[] submission = OutboxSubmission.of(target, name, taskId, args, options, argsRepr)
+                .write(serializer.getMapper());
+        if (backendUri == null) {
+            outbox.append(taskId, submission);
+            return Futures.immediateFuture(null);
+        }
+
+        SettableFuture<Object> result = SettableFuture.create();
+        SettableFuture<Object> waiting = outboxResults.putIfAbsent(taskId, result);
+        if (waiting != null) {
+            // the task is in the outbox already, the outbox would skip it as a duplicate
+            return (ListenableFuture<R>) waiting;
+        }
+        try {
+            outbox.append(taskId, submission);
+        } catch (IOException | RuntimeException e) {
+            outboxResults.remove(taskId);
+            throw e;
+        }
+        return (ListenableFuture<R>) result;
+    }
+
+    /**
+     * Asynchronous variant of {@link #submit(Class, String, Object[])}, see {@link #submitAsync(String, String,
+     * Object[])}.
+     *
+     * @param taskClass task implementing class
+     * @param method method in {@code taskClass} that does the work
+     * @param args positional arguments for the method (need to be JSON serializable)
+     * @param <T> task type
+     * @param <R> task result type
+     * @return result completed when the task finishes, or exceptionally when it can't be submitted
+     */
+    public final <T, R> CompletableFuture<R> submitAsync(Class<T> taskClass, String method, Object[] args) {
+        return submitAsync(taskClass.getName() + "#" + method, null, args);
+    }
+
+    public final <R> CompletableFuture<R> submitAsync(String name, Object[] args) {
+        return submitAsync(name, null, args);
+    }
+
+    /**
+     * Submit a task by name without blocking the calling thread. The message is the same as the one sent by
+     * {@link #submit(String, String, Object[])}, but connecting and publishing happens on the client's executor.
+     * Submissions made while the connections are being established are queued and sent once they are ready.
+     *
+     * @param name task name as understood by the worker
+     * @param taskId task id from caller, can be null
+     * @param args positional arguments for the method (need to be JSON serializable)
+     * @param <R> task result type
+     * @return result completed when the task finishes, or exceptionally when it can't be submitted
+     */
+    public final <R> CompletableFuture<R> submitAsync(String name, String taskId, Object[] args) {
+        return submitAsync(name, taskId, args, TaskOptions.DEFAULT);
+    }
+
+    /**
+     * Submit a task by name with options without blocking the calling thread, see {@link #submitAsync(String,
+     * String, Object[])}.
+     *
+     * @param name task name as understood by the worker
+     * @param taskId task id from caller, can be null
+     * @param args positional arguments for the method (need to be JSON serializable)
+     * @param options options of the submission
+     * @param <R> task result type
+     * @return result completed when the task finishes, or exceptionally when it can't be submitted
+     */
+    public final <R> CompletableFuture<R> submitAsync(String name, String taskId, Object[] args, TaskOptions options) {
+        return asyncSubmitter.submit(() -> submit(name, taskId, args, options));
+    }
+
+    /**
+     * Submits a task prepared by {@link #prepare(String)} without blocking the calling thread.
+     */
+    final <R> CompletableFuture<R> submitAsync(PreparedTask<R> task, String taskId, Object[] args) {
+        return asyncSubmitter.submit(() -> submit(task, taskId, args));
+    }
+
+    /**
+     * Creates a Reactive Streams processor for submitting a stream of tasks, see {@link TaskStreamProcessor}.
+     *
+     * @param maxInFlight maximal number of tasks submitted but not yet emitted by the processor
+     * @param <R> task result type
+     * @return a new processor, subscribe it to a publisher of tasks
+     */
+    public final <R> TaskStreamProcessor<R> processor(int maxInFlight) {
+        return new TaskStreamProcessor<>(this, maxInFlight);
+    }
+
+    /**
+     * Submit many tasks at once. The messages are constructed the same way as in {@link #submit(String, String,
+     * Object[])} and they are handed over to the broker as a single batch so that it can publish them over one
+     * channel. With an {@link Outbox}, the tasks are appended to it one by one instead, in the same order.
+     *
+     * @param tasks tasks to submit, tasks without an ID get a generated one
+     * @param <R> task result type
+     * @return asynchronous results in the same order as {@code tasks}
+     *
+     * @throws IOException if the messages couldn't be sent
+     */
+    public final <R> List<ListenableFuture<R>> submitAll(Collection<Signature> tasks) throws IOException {
+        if (outbox != null) {
+            List<ListenableFuture<R>> results = new ArrayList<>(tasks.size());
+            for (Signature task : tasks) {
+                results.add(submitToOutbox(queue, task.getName(), task.getTaskId(), task.getArgs(),
+                        TaskOptions.DEFAULT, ArgsReprPolicy.FULL));
+            }
+            return results;
+        }
+        Optional<ResultsProvider<?>> rp = resultsProvider.get();
+        Broker b = broker.get();
+
+        List<String> taskIds = new ArrayList<>(tasks.size());
+        List<Message> messages = newBatchMessages(b, rp.isPresent(), tasks, null, taskIds);
+
+        b.sendAll(queue, messages);
+
+        List<ListenableFuture<R>> results = new ArrayList<>(taskIds.size());
+        for (String taskId : taskIds) {
+            results.add(resultFor(rp, taskId));
+        }
+        return results;
+    }
+
+    /**
+     * Submit a group of tasks running in parallel, failing as soon as any of them fails. See {@link #group(Collection,
+     * boolean)}.
+     */
+    public final <R> ListenableFuture<List<R>> group(Collection<Signature> tasks) throws IOException {
+        return group(tasks, true);
+    }
+
+    /**
+     * Submit a group of tasks running in parallel. The tasks are published as a single batch like in {@link
+     * #submitAll(Collection)}, under a common group ID, and their results are joined into one future. The results
+     * provider tracks the group by a counter of the missing results, so a group of thousands of tasks doesn't cost
+     * thousands of futures.
+     *
+     * @param tasks tasks of the group, tasks without an ID get a generated one
+     * @param failFast fail as soon as a task fails, otherwise the group fails once all its tasks finish
+     * @param <R> task result type
+     * @return results in the same order as {@code tasks}, failed with the first failure of a task; without a backend
+     *         the results are all {@code null}
+     *
+     * @throws IOException if the messages couldn't be sent
+     * @throws IllegalStateException if the client has an {@link Outbox}, the group can't go through it
+     */
+    public final <R> ListenableFuture<List<R>> group(Collection<Signature> tasks, boolean failFast)
+            throws IOException {
+        checkState(outbox == null, "A group can't be submitted through the outbox, it's sent as a single batch");
+        Optional<ResultsProvider<?>> rp = resultsProvider.get();
+        Broker b = broker.get();
+
+        List<String> taskIds = new ArrayList<>(tasks.size());
+        List<Message> messages = newBatchMessages(b, rp.isPresent(), tasks, taskIdGenerator.nextId(), taskIds);
+
+        ListenableFuture<List<R>> result;
+        if (rp.isPresent()) {
+            @SuppressWarnings("unchecked")
+            ResultsProvider<R> provider = (ResultsProvider<R>) rp.get();
+            // registered before sending, a result can come back before sendAll returns
+            result = provider.getGroupResult(taskIds, failFast);
+        } else {
+            result = Futures.immediateFuture(Collections.nCopies(taskIds.size(), null));
+        }
+
+        try {
+            b.sendAll(queue, messages);
+        } catch (IOException | RuntimeException e) {
+            // the caller gets the exception instead of the future, stop waiting for the results
+            result.cancel(false);
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * Submit many invocations of a small task packed into chunks, each chunk sent as a single message of Celery's
+     * {@code celery.starmap} task. The worker resolves the task once per chunk and calls it for each of the argument
+     * lists in a loop, reporting the results of the chunk at once. So there's a single message, acknowledgement and
+     * result per chunk instead of per invocation. The chunks are submitted as a {@link #group(Collection) group}.
+     *
+     * @param name task name as understood by the worker
+     * @param args argument lists of the invocations
+     * @param chunkSize max number of invocations in a chunk
+     * @param <R> task result type
+     * @return results in the order of {@code args}, failed if any chunk fails; without a backend the results are all
+     *         {@code null}
+     *
+     * @throws IOException if the messages couldn't be sent
+     * @throws IllegalStateException if the client has an {@link Outbox}, the chunks (a group) can't go through it
+     */
+    public final <R> ListenableFuture<List<R>> chunks(String name, Iterable<Object[]> args, int chunkSize)
+            throws IOException {
+        checkArgument(chunkSize > 0, "chunkSize must be positive");
+        Map<String, Object> task = Signature.of(name, new Object[0]).toMap(Collections.emptyMap());
+        List<Signature> chunks = new ArrayList<>();
+        List<Integer> chunkSizes = new ArrayList<>();
+        for (List<Object[]> chunk : Iterables.partition(args, chunkSize)) {
+            chunks.add(Signature.of(TaskDispatcher.STARMAP, new Object[]{task, chunk}));
+            chunkSizes.add(chunk.size());
+        }
+
+        ListenableFuture<List<List<R>>> results = group(chunks, true);
+        return Futures.transform(results, chunkResults -> {
+            List<R> flat = new ArrayList<>();
+            for (int i = 0; i < chunkResults.size(); i++) {
+                List<R> chunkResult = chunkResults.get(i);
+                flat.addAll(chunkResult != null ? chunkResult : Collections.nCopies(chunkSizes.get(i), null));
+            }
+            return flat;
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Submit a chord - a group of tasks running in parallel (the header) followed by a callback called with the list of
+     * their results prepended to its arguments. The header is joined by the results provider like in {@link
+     * #group(Collection, boolean)}: each result is written straight into the list passed to the callback, counting the
+     * missing ones, and the callback is sent as soon as the last one arrives, on the client's executor.
+     *
+     * @param header tasks whose results are joined, tasks without an ID get a generated one
+     * @param callback task called with the results of the header, in the order of {@code header}
+     * @param <R> result type of the callback
+     * @return result of the callback, failed with the first failure of a task of the header (the callback isn't sent
+     *         then)
+     *
+     * @throws IOException if the messages of the header couldn't be sent
+     * @throws IllegalStateException if the client has no backend to collect the results of the header, or if it has
+     *         an {@link Outbox} - the header (a group) can't go through it
+     */
+    public final <R> ListenableFuture<R> chord(Collection<Signature> header, Signature callback) throws IOException {
+        checkState(outbox == null, "A chord can't be submitted through the outbox, its header is a group");
+        checkState(resultsProvider.get().isPresent(), "A chord needs a backend to join the results of its header");
+        ListenableFuture<List<Object>> results = group(header, true);
+        return Futures.transformAsync(results, r -> {
+            Object[] args = new Object[callback.getArgs().length + 1];
+            args[0] = r;
+            System.arraycopy(callback.getArgs(), 0, args, 1, callback.getArgs().length);
+            return submit(callback.getName(), callback.getTaskId(), args);
+        }, executor);
+    }
+
+    /**
+     * Submit a chain of tasks, each of them called with the result of the previous one prepended to its arguments.
+     * Only the first task is sent by the client, the worker that finishes a task sends the next one with the rest of
+     * the chain (the same way as Python Celery does), so there's no round trip through the client between the tasks.
+     *
+     * @param tasks tasks of the chain in the order they run, tasks without an ID get a generated one
+     * @param <R> result type of the last task
+     * @return result of the last task, failed with the failure of any task of the chain
+     *
+     * @throws IOException if the message couldn't be sent
+     * @throws IllegalStateException if the client has an {@link Outbox}, the chain can't go through it
+     */
+    public final <R> ListenableFuture<R> chain(List<Signature> tasks) throws IOException {
+        checkArgument(!tasks.isEmpty(), "a chain needs at least one task");
+        checkState(outbox == null, "A chain can't be submitted through the outbox");
+        Optional<ResultsProvider<?>> rp = resultsProvider.get();
+        Broker b = broker.get();
+
+        List<String> taskIds = new ArrayList<>(tasks.size());
+        for (Signature task : tasks) {
+            taskIds.add(Strings.isNullOrEmpty(task.getTaskId()) ? taskIdGenerator.nextId() : task.getTaskId());
+        }
+        Signature first = tasks.get(0);
+        List<Map<String, Object>> links = Chain.links(
+                tasks.subList(1, tasks.size()), taskIds.subList(1, taskIds.size()), rp.isPresent() ? clientId : null);
+
+        Message message = newTemplateMessage(b, rp.isPresent(), first.getName());
+        fillTaskMessage(message, taskIds.get(0), first.getArgs(), ArgsReprPolicy.FULL, null,
+                links.isEmpty() ? null : links);
+        message.send(queue);
+
+        return resultFor(rp, taskIds.get(taskIds.size() - 1));
+    }
+
+    /**
+     * Prepare a handle for repeated submission of a Java task, see {@link #prepare(String)}.
+     *
+     * @param taskClass task implementing class
+     * @param method method in {@code taskClass} that does the work
+     * @param <R> task result type
+     * @return handle for submitting the task
+     *
+     * @throws IOException if the connection to the broker or backend can't be established
+     */
+    public final <R> PreparedTask<R> prepare(Class<?> taskClass, String method) throws IOException {
+        return prepare(taskClass.getName() + "#" + method);
+    }
+
+    /**
+     * Prepare a handle for repeated submission of a task. The parts of the message that don't depend on the
+     * arguments are built once, so submitting through the handle is cheaper than {@link #submit(String, Object[])}.
+     * The broker and backend connections are established (if they weren't yet) by this call. With an {@link Outbox}
+     * there's nothing to build and nothing is connected, the tasks are appended to the outbox like by {@link
+     * #submit(String, String, Object[], TaskOptions)}.
+     *
+     * @param name task name as understood by the worker
+     * @param <R> task result type
+     * @return handle for submitting the task
+     *
+     * @throws IOException if the connection to the broker or backend can't be established
+     */
+    public final <R> PreparedTask<R> prepare(String name) throws IOException {
+        if (outbox != null) {
+            return new PreparedTask<>(this, name, queue, null, ArgsReprPolicy.FULL);
         }
+        Optional<ResultsProvider<?>> rp = resultsProvider.get();
+        Message template = newTemplateMessage(broker.get(), rp.isPresent(), name);
+        return new PreparedTask<>(this, name, queue, template, ArgsReprPolicy.FULL);
+    }
 
-        ArrayNode payload = jsonMapper.createArrayNode();
-        // args
-        ArrayNode argsArr = payload.addArray();
-        for (Object arg : args) {
-            argsArr.addPOJO(arg);
+    /**
+     * Submits a task prepared by {@link #prepare(String)}, through its {@link ResultCache} if it has one.
+     */
+    final <R> ListenableFuture<R> submit(PreparedTask<R> task, String taskId, Object[] args) throws IOException {
+        ResultCache cache = task.getResultCache();
+        if (cache != null && Strings.isNullOrEmpty(taskId)) {
+            return cache.submit(task.getName(), args, serializer.getMapper(), () -> send(task, null, args));
         }
-        // kwargs
-        payload.addObject();
-        // embed
-        payload.addObject()
-                .putNull("callbacks")
-                .putNull("chain")
-                .putNull("chord")
-                .putNull("errbacks");
+        return send(task, taskId, args);
+    }
 
-        Message message = broker.get().newMessage();
-        message.setBody(jsonMapper.writeValueAsBytes(payload));
-        message.setContentEncoding(ENCODING);
-        message.setContentType(CONTENT_TYPE);
+    private <R> ListenableFuture<R> send(PreparedTask<R> task, String taskId, Object[] args) throws IOException {
+        if (outbox != null) {
+            return submitToOutbox(task.getQueue(), task.getName(), taskId, args, task.getOptions(), task.getArgsRepr());
+        }
+        Optional<ResultsProvider<?>> rp = resultsProvider.get();
+        if (Strings.isNullOrEmpty(taskId)) {
+            taskId = taskIdGenerator.nextId();
+        }
+
+        task.getOptions().awaitRateLimit();
+        Message message = task.getTemplate().copy();
+        task.getOptions().applyTo(message);
+        fillTaskMessage(message, taskId, args, task.getArgsRepr(), null, null);
+        message.send(task.getQueue());
+
+        return resultFor(rp, taskId);
+    }
+
+    /**
+     * Builds the messages of a batch of tasks.
+     *
+     * @param groupId ID of the group of the tasks, {@code null} if they don't form a group
+     * @param taskIds receives the IDs of the tasks
+     */
+    private List<Message> newBatchMessages(
+            Broker b, boolean replyTo, Collection<Signature> tasks, @Nullable String groupId, List<String> taskIds
+    ) throws IOException {
+        List<Message> messages = new ArrayList<>(tasks.size());
+        // an argument shared by the tasks is serialized and stored once for the whole batch
+        Map<Object, String> blobKeys = claimCheck != null ? new IdentityHashMap<>() : null;
+        for (Signature task : tasks) {
+            String taskId = Strings.isNullOrEmpty(task.getTaskId()) ? taskIdGenerator.nextId() : task.getTaskId();
+            Message message = newTaskMessage(
+                    b, replyTo, task.getName(), taskId, task.getArgs(), TaskOptions.DEFAULT, ArgsReprPolicy.FULL,
+                    blobKeys);
+            if (groupId != null) {
+                message.getHeaders().setGroup(groupId);
+            }
+            messages.add(message);
+            taskIds.add(taskId);
+        }
+        return messages;
+    }
+
+    /**
+     * Builds a message conforming Celery Message Protocol Version 2.
+     */
+    private Message newTaskMessage(
+            Broker b, boolean replyTo, String name, String taskId, Object[] args, TaskOptions options,
+            ArgsReprPolicy argsRepr, Map<Object, String> blobKeys
+    ) throws IOException {
+        options.awaitRateLimit();
+        Message message = newTemplateMessage(b, replyTo, name);
+        options.applyTo(message);
+        fillTaskMessage(message, taskId, args, argsRepr, blobKeys, null);
+        return message;
+    }
+
+    /**
+     * Builds a message with everything but the parts specific for a single task invocation.
+     */
+    private Message newTemplateMessage(Broker b, boolean replyTo, String name) {
+        Message message = b.newMessage();
+        message.setContentEncoding(serializer.getContentEncoding());
+        message.setContentType(serializer.getContentType());
 
         Message.Headers headers = message.getHeaders();
-        headers.setId(taskId);
         // presence of "task" header implies Version 2 Celery protocol
         headers.setTaskName(name);
-        headers.setArgsRepr(
-            Stream.of(args).map(CeleryClientCore::toDebugString).collect(Collectors.joining(", ", "(", ")"))
-        );
         headers.setOrigin(clientName);
-        if (rp.isPresent()) {
+        if (replyTo) {
             headers.setReplyTo(clientId);
         }
+        return message;
+    }
 
-        message.send(queue);
+    /**
+     * Sets the task ID and arguments of a message from {@link #newTemplateMessage(Broker, boolean, String)}.
+     *
+     * @param blobKeys keys of the arguments already offloaded within the same batch, {@code null} for a single task
+     * @param chain links following the task, see {@link Chain}; {@code null} if it's not chained
+     */
+    private void fillTaskMessage(
+            Message message, String taskId, Object[] args, ArgsReprPolicy argsRepr, Map<Object, String> blobKeys,
+            @Nullable Object chain
+    ) throws IOException {
+        byte[] body = payloadWriter.write(args, chain);
+        Message.Headers headers = message.getHeaders();
+        // no argument can reach the threshold if the whole payload doesn't
+        if (claimCheck != null && body.length >= claimCheck.getThreshold()) {
+            byte[] offloaded = offloadArgs(
+                    headers, args, blobKeys != null ? blobKeys : new IdentityHashMap<>(), chain);
+            body = offloaded != null ? offloaded : body;
+        }
+        byte[] compressed = compression != null ? compression.compress(body) : null;
+        if (compressed != null) {
+            message.setBody(compressed);
+            headers.setCompression(compression.getCompressor().getContentType());
+        } else {
+            message.setBody(body);
+        }
+        headers.setId(taskId);
+        headers.setArgsRepr(argsRepr.argsRepr(args));
+    }
 
+    /**
+     * Puts the arguments above the claim check threshold into the blob store.
+     *
+     * @return payload with the keys in place of the offloaded arguments, {@code null} if none was offloaded
+     */
+    @Nullable
+    private byte[] offloadArgs(
+            Message.Headers headers, Object[] args, Map<Object, String> blobKeys, @Nullable Object chain
+    ) throws IOException {
+        Object[] sent = args.clone();
+        List<Integer> blobArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String key = blobKeys.get(args[i]);
+            if (key == null) {
+                byte[] data = serializer.getMapper().writeValueAsBytes(args[i]);
+                key = data.length >= claimCheck.getThreshold() ? claimCheck.getStore().put(data) : SMALL_ARG;
+                blobKeys.put(args[i], key);
+            }
+            if (key != SMALL_ARG) {
+                sent[i] = key;
+                blobArgs.add(i);
+            }
+        }
+        if (blobArgs.isEmpty()) {
+            return null;
+        }
+        headers.setBlobArgs(blobArgs);
+        return payloadWriter.write(sent, chain);
+    }
+
+    private <R> ListenableFuture<R> resultFor(Optional<ResultsProvider<?>> rp, String taskId) {
         if (rp.isPresent()) {
             @SuppressWarnings("unchecked")
             ResultsProvider<R> provider = (ResultsProvider<R>) rp.get();
@@ -247,6 +940,12 @@ public abstract class CeleryClientCore implements Closeable {
 
     @Override
     public final void close() throws IOException {
+        if (!ownsConnections) {
+            return;
+        }
+        if (outbox != null) {
+            outbox.close();
+        }
         broker.get().close();
         Optional<Backend> b = resultsProvider.get()
                 .map(ResultsProvider::getBackend);
@@ -256,29 +955,55 @@ public abstract class CeleryClientCore implements Closeable {
     }
 
     /**
-     * Converts an arbitrary object to a String. It checks for {@code null} and tries to produce reasonably
-     * short string representations:
-     *
-     * <li>{@link CharSequence} instances are trimmed if longer then 100; the trimmed string will show the beginning
-     * and the ending characters
-     * <li>simple objects (eg. {@link Number}, {@link Boolean}, etc) are converted using their {@code toString()}
-     * <li>complex objects are converted to their class name and identity hashcode
-     *
-     * @param o object to convert
-     * @return a string representation of the object
-     */
-    private static String toDebugString(Object o) {
-        if (o == null) {
-            return "null";
-        } else if (o instanceof CharSequence) {
-            CharSequence s = (CharSequence) o;
-            return s.length() < 100
-                ? "\"" + s.toString() + "\""
-                : "\"" + s.subSequence(0, 30) + "..." + s.subSequence(s.length() - 30, s.length()) + "\"";
-        } else if (o instanceof Number || o instanceof Boolean) {
-            return o.toString();
-        } else {
-            return o.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(o));
+     * Sends the tasks drained from the outbox, each by the client of its queue, and completes their results.
+     */
+    private final class OutboxSink implements Outbox.Sink {
+
+        @Override
+        public void send(String taskId, byte[] data) throws IOException {
+            OutboxSubmission submission;
+            try {
+                submission = OutboxSubmission.read(serializer.getMapper(), data);
+            } catch (IOException e) {
+                // reading it again wouldn't help
+                IllegalArgumentException failure = new IllegalArgumentException("Unreadable task " + taskId, e);
+                complete(taskId, Futures.immediateFailedFuture(failure));
+                throw failure;
+            }
+
+            Optional<ResultsProvider<?>> rp;
+            try {
+                CeleryClientCore client = outboxClients.getOrDefault(submission.getQueue(), CeleryClientCore.this);
+                rp = resultsProvider.get();
+                Broker b = client.broker.get();
+                client.declareQueueOnce(b, submission.getQueue());
+                Message message = client.newTaskMessage(b, rp.isPresent(), submission.getName(), taskId,
+                        submission.getArgs(), submission.getOptions(), submission.getArgsRepr(), null);
+                message.send(submission.getQueue());
+            } catch (UncheckedIOException e) {
+                // the connection can't be established (yet), the outbox tries again
+                throw e.getCause();
+            } catch (RuntimeException e) {
+                // eg. AlreadyClosedException of a connection dropped by the broker, the outbox tries again too
+                throw new IOException("Can't send task " + taskId, e);
+            }
+            complete(taskId, resultFor(rp, taskId));
+        }
+
+        @Override
+        public void duplicate(String taskId) {
+            try {
+                complete(taskId, resultFor(resultsProvider.get(), taskId));
+            } catch (RuntimeException e) {
+                complete(taskId, Futures.immediateFailedFuture(e));
+            }
+        }
+
+        private void complete(String taskId, ListenableFuture<Object> result) {
+            SettableFuture<Object> waiting = outboxResults.remove(taskId);
+            if (waiting != null) {
+                waiting.setFuture(result);
+            }
         }
     }
 }
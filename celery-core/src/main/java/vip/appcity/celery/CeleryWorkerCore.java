@@ -1,14 +1,23 @@
 
 package vip.appcity.celery;
 
+import vip.appcity.celery.brokers.rabbit.RabbitBroker;
 import vip.appcity.celery.backends.rabbit.RabbitBackend;
+import vip.appcity.celery.compression.Compressors;
+import vip.appcity.celery.ids.RandomTaskIdGenerator;
+import vip.appcity.celery.ratelimit.TokenBucket;
+import vip.appcity.celery.scheduling.EtaScheduler;
+import vip.appcity.celery.serialization.Serializers;
+import vip.appcity.celery.spi.BlobStore;
+import vip.appcity.celery.spi.Serializer;
+import vip.appcity.celery.spi.TaskIdGenerator;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Stopwatch;
-import com.google.common.collect.Streams;
+import com.google.common.collect.ImmutableMap;
 import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
@@ -20,16 +29,22 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
-import java.lang.reflect.Method;
 import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Stream;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * The core implementation of a worker that listens on <b>RabbitMQ</b> queue and executes tasks.
@@ -38,12 +53,37 @@ import java.util.stream.Stream;
 @Slf4j
 public abstract class CeleryWorkerCore extends DefaultConsumer implements Closeable {
 
-    private static final Pattern TASK_NAME = Pattern.compile("^(.+)#(.+)$");
+    // AMQP prefetch count is a short, 0 means unlimited
+    private static final int MAX_PREFETCH_COUNT = 65535;
 
     private final ReentrantLock taskRunning = new ReentrantLock();
     private final RabbitBackend backend;
     private final String queue;
     private final ObjectMapper jsonMapper;
+    private final TaskDispatcher dispatcher;
+    private final Serializer json;
+    private final BlobStore blobStore;
+    private final Map<String, Object> queueArguments;
+    private final int prefetchCount;
+    /** Deliveries waiting for {@link #processor}, highest priority first. Only for queues with priorities. */
+    private final PriorityBlockingQueue<Prefetched> prefetched;
+    private Thread processor;
+    /** Accessed only by the consumer thread. */
+    private long deliveries = 0;
+    private final Map<String, TokenBucket> rateLimits;
+    /** Deliveries held unacknowledged until their ETA or until their rate limit lets them run. */
+    private final EtaScheduler<Prefetched> etaScheduler;
+    /** Handles the deliveries released by {@link #etaScheduler}, so no task runs on the scheduler thread. */
+    private final ExecutorService released;
+    private final Object qosLock = new Object();
+    private int held = 0;
+    /** Prefetch added for the held deliveries. */
+    private int heldPrefetch = 0;
+    private final LongAdder expired = new LongAdder();
+    /** Sends the next links of chains. */
+    private final RabbitBroker chainBroker;
+    private final Map<Serializer, TaskPayloadWriter> chainWriters = new ConcurrentHashMap<>();
+    private final TaskIdGenerator taskIdGenerator;
 
     /**
      * @param connection the RabbitMQ connection to be used
@@ -55,11 +95,78 @@ public abstract class CeleryWorkerCore extends DefaultConsumer implements Closea
             @Nonnull final Connection connection,
             @Nullable final String queue,
             @Nullable final ObjectMapper jsonMapper
+    ) throws IOException {
+        this(connection, queue, jsonMapper, null, null, null, null, null);
+    }
+
+    /**
+     * @param connection the RabbitMQ connection to be used
+     * @param queue routing tag (specifies the Rabbit queue where to listen)
+     * @param jsonMapper override for the used JSON mapper
+     * @param resultCompression compression of the reported results, {@code null} not to compress them
+     * @param blobStore store of the arguments offloaded by clients, see {@link ClaimCheck}
+     * @param maxPriority {@code x-max-priority} of the queue, {@code null} for a queue without priorities
+     * @param prefetchCount max number of unacknowledged messages delivered to the worker, 2 by default
+     * @param rateLimits rate limits of the tasks by their names, the buckets can be shared by more workers
+     * @throws java.io.IOException if the connection I/O problem occurs
+     */
+    protected CeleryWorkerCore(
+            @Nonnull final Connection connection,
+            @Nullable final String queue,
+            @Nullable final ObjectMapper jsonMapper,
+            @Nullable final Compression resultCompression,
+            @Nullable final BlobStore blobStore,
+            @Nullable final Integer maxPriority,
+            @Nullable final Integer prefetchCount,
+            @Nullable final Map<String, TokenBucket> rateLimits
+    ) throws IOException {
+        this(connection, queue, jsonMapper, resultCompression, blobStore, maxPriority, prefetchCount, rateLimits, null);
+    }
+
+    /**
+     * @param connection the RabbitMQ connection to be used
+     * @param queue routing tag (specifies the Rabbit queue where to listen)
+     * @param jsonMapper override for the used JSON mapper
+     * @param resultCompression compression of the reported results, {@code null} not to compress them
+     * @param blobStore store of the arguments offloaded by clients, see {@link ClaimCheck}
+     * @param maxPriority {@code x-max-priority} of the queue, {@code null} for a queue without priorities
+     * @param prefetchCount max number of unacknowledged messages delivered to the worker, 2 by default
+     * @param rateLimits rate limits of the tasks by their names, the buckets can be shared by more workers
+     * @param taskIdGenerator generator of the IDs of chained tasks sent without one, use the one of the clients so
+     *                        that they follow the same scheme; random by default
+     * @throws java.io.IOException if the connection I/O problem occurs
+     */
+    protected CeleryWorkerCore(
+            @Nonnull final Connection connection,
+            @Nullable final String queue,
+            @Nullable final ObjectMapper jsonMapper,
+            @Nullable final Compression resultCompression,
+            @Nullable final BlobStore blobStore,
+            @Nullable final Integer maxPriority,
+            @Nullable final Integer prefetchCount,
+            @Nullable final Map<String, TokenBucket> rateLimits,
+            @Nullable final TaskIdGenerator taskIdGenerator
     ) throws IOException {
         super(connection.createChannel());
         this.queue = queue != null ? queue : "celery";
         this.jsonMapper = jsonMapper != null ? jsonMapper : new ObjectMapper();
-        this.backend = new RabbitBackend(getChannel(), this.jsonMapper);
+        this.backend = new RabbitBackend(getChannel(), this.jsonMapper, resultCompression);
+        this.dispatcher = new TaskDispatcher(this.jsonMapper, this::findTask);
+        this.json = Serializers.json(this.jsonMapper);
+        this.blobStore = blobStore;
+        this.queueArguments = RabbitBroker.queueArguments(maxPriority);
+        this.prefetchCount = prefetchCount != null ? prefetchCount : 2;
+        checkArgument(this.prefetchCount > 0, "prefetchCount must be positive");
+        this.prefetched = maxPriority != null ? new PriorityBlockingQueue<>() : null;
+        this.rateLimits = rateLimits != null ? ImmutableMap.copyOf(rateLimits) : ImmutableMap.of();
+        this.etaScheduler = new EtaScheduler<>("celery-worker-eta-" + this.queue, 10, this::processDue);
+        this.released = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "celery-worker-released-" + this.queue);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.chainBroker = new RabbitBroker(connection);
+        this.taskIdGenerator = taskIdGenerator != null ? taskIdGenerator : new RandomTaskIdGenerator();
     }
 
     /**
@@ -83,14 +190,49 @@ public abstract class CeleryWorkerCore extends DefaultConsumer implements Closea
         }
     }
 
+    /**
+     * Creates new RabbitMQ connections, for workers consuming over more connections. A connection reads the frames of
+     * all its channels by one thread, spreading the workers over more connections lets consuming scale with the cores.
+     * @param uri the connection URI
+     * @param executor override for the used executor service
+     * @param count number of the connections
+     * @return new RabbitMQ connections, give them to the workers in turn
+     * @throws java.io.IOException if the connection I/O problem occurs
+     * @throws java.util.concurrent.TimeoutException if connecting times out
+     */
+    public static List<Connection> connect(
+            @Nonnull final String uri,
+            @Nullable final ExecutorService executor,
+            final int count
+    ) throws IOException, TimeoutException {
+        checkArgument(count > 0, "count must be positive");
+        ExecutorService connectionExecutor = executor != null ? executor : Executors.newCachedThreadPool();
+        List<Connection> connections = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                connections.add(connect(uri, connectionExecutor));
+            }
+        } catch (IOException | TimeoutException | RuntimeException e) {
+            connections.forEach(Connection::abort);
+            throw e;
+        }
+        return connections;
+    }
+
     /**
      * Starts this worker listening on a RabbitMQ queue.
      * @throws java.io.IOException if an I/O problem occurs
      */
     public final void start() throws IOException {
-        // max number of unacknowledged messages "in-flight" from the queue to the consumer
-        getChannel().basicQos(2, false);
-        getChannel().queueDeclare(queue, true, false, false, null);
+        // max number of unacknowledged messages "in-flight" from the queue to the consumer; channel-wide, as a
+        // per-consumer prefetch changed later by updateHeld wouldn't apply to the running consumer
+        getChannel().basicQos(prefetchCount, true);
+        getChannel().queueDeclare(queue, true, false, false, queueArguments);
+        if (prefetched != null) {
+            processor = new Thread(this::processPrefetched, "celery-worker-" + queue);
+            processor.setDaemon(true);
+            processor.start();
+        }
         getChannel().basicConsume(queue, false, "", true, false, null, this);
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -108,39 +250,179 @@ public abstract class CeleryWorkerCore extends DefaultConsumer implements Closea
             String consumerTag, Envelope envelope,
             BasicProperties properties, byte[] body
     ) throws IOException {
+        if (discardExpired(envelope, properties)) {
+            return;
+        }
+        Prefetched delivery = new Prefetched(envelope, properties, body, deliveries++);
+        if (hold(delivery)) {
+            // acknowledged once executed, so that it's redelivered if the worker stops before it's released
+            updateHeld(1);
+            return;
+        }
+        process(delivery);
+    }
+
+    /**
+     * Holds the delivery until its ETA and then until its task is allowed by the rate limit. The task waiting for the
+     * rate limit is deferred rather than blocking, so the other tasks of the queue keep running meanwhile.
+     *
+     * @return {@code true} if the delivery is held
+     */
+    private boolean hold(Prefetched delivery) {
+        if (!delivery.etaPassed) {
+            delivery.etaPassed = true;
+            Instant eta = Timestamps.parse(delivery.properties.getHeaders().get("eta"));
+            if (eta != null && etaScheduler.schedule(eta.toEpochMilli(), delivery)) {
+                return true;
+            }
+        }
+        TokenBucket rateLimit = rateLimits.get(String.valueOf(delivery.properties.getHeaders().get("task")));
+        if (rateLimit != null && !delivery.rateLimitPassed) {
+            delivery.rateLimitPassed = true;
+            long delay = rateLimit.reserve();
+            // a reserved token is kept, so the task isn't limited again when it's released
+            return delay > 0 && etaScheduler.schedule(
+                    System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(delay) + 1, delivery);
+        }
+        return false;
+    }
+
+    private void process(Prefetched delivery) throws IOException {
+        if (prefetched != null) {
+            // the prefetched messages are processed by priority, not in the order they were delivered
+            prefetched.add(delivery);
+        } else {
+            processDelivery(delivery.envelope, delivery.properties, delivery.body);
+        }
+    }
+
+    private void processDue(Prefetched delivery) {
+        released.execute(() -> release(delivery));
+    }
+
+    private void release(Prefetched delivery) {
+        try {
+            boolean discarded = discardExpired(delivery.envelope, delivery.properties);
+            if (!discarded && hold(delivery)) {
+                // after the ETA it waits for the rate limit
+                return;
+            }
+            updateHeld(-1);
+            if (!discarded) {
+                process(delivery);
+            }
+        } catch (IOException e) {
+            log.error(String.format("Could not acknowledge deliveryTag=%d", delivery.envelope.getDeliveryTag()), e);
+        }
+    }
+
+    /**
+     * The held deliveries count against the prefetch, it's raised not to stop the other deliveries. It grows and
+     * shrinks geometrically, so that it isn't changed for each held delivery.
+     */
+    private void updateHeld(int change) throws IOException {
+        synchronized (qosLock) {
+            held += change;
+            if (held > heldPrefetch || held < heldPrefetch / 4) {
+                heldPrefetch = held * 2;
+                int prefetch = prefetchCount + heldPrefetch;
+                getChannel().basicQos(prefetch <= MAX_PREFETCH_COUNT ? prefetch : 0, true);
+            }
+        }
+    }
+
+    private void processPrefetched() {
+        while (true) {
+            Prefetched delivery;
+            try {
+                delivery = prefetched.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                if (!discardExpired(delivery.envelope, delivery.properties)) {
+                    processDelivery(delivery.envelope, delivery.properties, delivery.body);
+                }
+            } catch (IOException | RuntimeException e) {
+                log.error(String.format("Could not acknowledge deliveryTag=%d",
+                        delivery.envelope.getDeliveryTag()), e);
+            }
+        }
+    }
+
+    /**
+     * Acknowledges the delivery without executing it if its task expired, by the headers only. The client waiting for
+     * the result gets it revoked.
+     *
+     * @return {@code true} if the task expired
+     */
+    private boolean discardExpired(Envelope envelope, BasicProperties properties) throws IOException {
+        Instant expires = Timestamps.parse(properties.getHeaders().get("expires"));
+        if (expires == null || expires.isAfter(Instant.now())) {
+            return false;
+        }
+        expired.increment();
+        String taskId = String.valueOf(properties.getHeaders().get("id"));
+        log.info("CeleryTask {} expired at {}, discarded", taskId, expires);
+        if (properties.getReplyTo() != null) {
+            backend.reportRevoked(taskId, properties.getReplyTo(), properties.getCorrelationId(), "expired");
+        }
+        getChannel().basicAck(envelope.getDeliveryTag(), false);
+        return true;
+    }
+
+    private void processDelivery(Envelope envelope, BasicProperties properties, byte[] body) throws IOException {
         String taskId = properties.getHeaders().get("id").toString();
+        // results are reported in the format of the task, JSON until we know it
+        Serializer serializer = json;
+        // the rest of the chain, until the next link is sent
+        Chain chain = null;
         taskRunning.lock();
         try {
             Stopwatch stopwatch = Stopwatch.createStarted();
-            String message = new String(body, properties.getContentEncoding());
+            serializer = Serializers.forContentType(properties.getContentType(), json);
+            byte[] decompressed = Compressors.decompress(properties.getHeaders().get("compression"), body);
 
-            JsonNode payload = jsonMapper.readTree(message);
+            JsonNode payload = serializer == json
+                    ? jsonMapper.readTree(new String(decompressed, properties.getContentEncoding()))
+                    : serializer.getMapper().readTree(decompressed);
+            chain = Chain.of(payload);
 
             String taskName = properties.getHeaders().get("task").toString();
-            Object result = processTask(
+            Object result = dispatcher.dispatch(
                     taskName,
                     (ArrayNode) payload.get(0),
-                    (ObjectNode) payload.get(1)
+                    (ObjectNode) payload.get(1),
+                    BlobArgs.of(properties.getHeaders().get(BlobArgs.HEADER), blobStore, serializer.getMapper())
             );
 
             log.info("CeleryTask {}[{}] succeeded in {}", taskName, taskId, stopwatch);
             log.debug("CeleryTask {}[{}] result was: {}", taskName, taskId, result);
 
-            backend.reportResult(taskId, properties.getReplyTo(), properties.getCorrelationId(), result);
+            if (chain != null) {
+                String origin = String.valueOf(properties.getHeaders().get("origin"));
+                chain.sendNext(chainBroker, queue, origin, result, serializer, chainWriter(serializer),
+                        taskIdGenerator);
+                chain = null;
+            }
+            backend.reportResult(taskId, properties.getReplyTo(), properties.getCorrelationId(), result, serializer);
 
             getChannel().basicAck(envelope.getDeliveryTag(), false);
         } catch (DispatchException e) {
             Throwable cause = e.getCause() != null ? e.getCause() : e;
             log.error(String.format("CeleryTask %s - dispatch error", taskId), e);
-            backend.reportException(taskId, properties.getReplyTo(), properties.getCorrelationId(), cause);
+            backend.reportException(taskId, properties.getReplyTo(), properties.getCorrelationId(), cause, serializer);
+            failChain(chain, cause, serializer);
             getChannel().basicAck(envelope.getDeliveryTag(), false);
         } catch (IOException e) {
             log.error(String.format("CeleryTask %s - processing error", taskId), e);
-            backend.reportException(taskId, properties.getReplyTo(), properties.getCorrelationId(), e);
+            backend.reportException(taskId, properties.getReplyTo(), properties.getCorrelationId(), e, serializer);
+            failChain(chain, e, serializer);
             getChannel().basicNack(envelope.getDeliveryTag(), false, false);
         } catch (RuntimeException e) {
             log.error(String.format("CeleryTask %s - runtime error", taskId), e);
-            backend.reportException(taskId, properties.getReplyTo(), properties.getCorrelationId(), e);
+            backend.reportException(taskId, properties.getReplyTo(), properties.getCorrelationId(), e, serializer);
+            failChain(chain, e, serializer);
             getChannel().basicNack(envelope.getDeliveryTag(), false, false);
         } finally {
             taskRunning.unlock();
@@ -148,51 +430,50 @@ public abstract class CeleryWorkerCore extends DefaultConsumer implements Closea
     }
 
     /**
-     * Implements a particular search method of component discovery.
-     * @param className class name for a task to be executed
-     * @return the found "task object", or {@code null} when it could not be found
+     * @return writer of the tasks chained after a task in the format, reused for its per-thread buffers
      */
-    protected abstract Object findTask(String className);
-
-    private Object processTask(String taskName, ArrayNode args, ObjectNode kwargs) throws DispatchException {
-        Matcher matcher = TASK_NAME.matcher(taskName);
-        if (!matcher.matches()) {
-            throw new DispatchException(
-                    "This worker can only process tasks with name in form \"package.ClassName#method\", " +
-                    "got: \"%s\"", taskName
-            );
-        }
-        String className = matcher.group(1);
-        String methodName = matcher.group(2);
+    private TaskPayloadWriter chainWriter(Serializer serializer) {
+        return chainWriters.computeIfAbsent(serializer, s -> new TaskPayloadWriter(s.getMapper()));
+    }
 
-        Object taskObj = findTask(className);
-        if (taskObj == null) {
-            throw new DispatchException("CeleryTask \"%s\" could not be found!", className);
+    /**
+     * The links after a failed task won't run, the failure is reported for them too, so that the client waiting for
+     * the end of the chain gets it.
+     */
+    private void failChain(@Nullable Chain chain, Throwable cause, Serializer serializer) throws IOException {
+        if (chain == null) {
+            return;
         }
-
-        Method method = Stream.of(taskObj.getClass().getDeclaredMethods())
-                .filter(m -> m.getName().equals(methodName))
-                .findFirst().orElse(null);
-        if (method == null) {
-            throw new DispatchException("CeleryTask \"%s:%s\" could not be found!", className, methodName);
+        for (Map.Entry<String, String> link : chain.remaining().entrySet()) {
+            if (link.getValue() != null) {
+                backend.reportException(link.getKey(), link.getValue(), link.getKey(), cause, serializer);
+            }
         }
+    }
 
-        try {
-            Object[] convertedArgs = Streams.mapWithIndex(
-                    Stream.of(method.getParameterTypes()),
-                    (paramType, i) -> jsonMapper.convertValue(args.get((int) i), paramType)
-            ).toArray();
-
-            return method.invoke(taskObj, convertedArgs);
-        } catch (IllegalArgumentException | ReflectiveOperationException e) {
-            Throwable cause = e.getCause() != null ? e.getCause() : e;
-            throw new DispatchException(cause, "Error calling %s", method);
-        }
+    /**
+     * @return number of the tasks discarded because they expired before they were executed
+     */
+    public final long getExpiredCount() {
+        return expired.sum();
     }
 
+    /**
+     * Implements a particular search method of component discovery.
+     * @param className class name for a task to be executed
+     * @return the found "task object", or {@code null} when it could not be found
+     */
+    protected abstract Object findTask(String className);
+
     @Override
     public final void close() throws IOException {
         getChannel().abort();
+        // the held and prefetched messages are redelivered as they were not acknowledged
+        etaScheduler.close();
+        released.shutdownNow();
+        if (processor != null) {
+            processor.interrupt();
+        }
         backend.close();
     }
 
@@ -200,4 +481,34 @@ public abstract class CeleryWorkerCore extends DefaultConsumer implements Closea
         taskRunning.lock();
         taskRunning.unlock();
     }
+
+    /**
+     * A delivery waiting for its ETA or for the processing thread.
+     */
+    private static final class Prefetched implements Comparable<Prefetched> {
+
+        final Envelope envelope;
+        final BasicProperties properties;
+        final byte[] body;
+        final int priority;
+        final long sequence;
+        // handed over to the scheduler thread through its lock
+        boolean etaPassed = false;
+        boolean rateLimitPassed = false;
+
+        Prefetched(Envelope envelope, BasicProperties properties, byte[] body, long sequence) {
+            this.envelope = envelope;
+            this.properties = properties;
+            this.body = body;
+            this.priority = properties.getPriority() != null ? properties.getPriority() : 0;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Prefetched other) {
+            // higher priority first, then in the order of delivery
+            int byPriority = Integer.compare(other.priority, priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
 }
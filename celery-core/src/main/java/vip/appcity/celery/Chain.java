@@ -0,0 +1,115 @@
+package vip.appcity.celery;
+
+import vip.appcity.celery.spi.Broker;
+import vip.appcity.celery.spi.Message;
+import vip.appcity.celery.spi.Serializer;
+import vip.appcity.celery.spi.TaskIdGenerator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The rest of a chain of tasks, carried in the {@code chain} field of the embed object of a task message. As in
+ * Python Celery the links are signatures in reverse order - the next one to run is the last. Once a task succeeds,
+ * the worker sends its next link with the result prepended to the arguments, so the chain runs without the client.
+ */
+final class Chain {
+
+    private final ArrayNode links;
+
+    private Chain(ArrayNode links) {
+        this.links = links;
+    }
+
+    /**
+     * @param payload decoded task payload, {@code [args, kwargs, embed]}
+     * @return the rest of the chain, {@code null} if the task is its last link or not chained at all
+     */
+    @Nullable
+    static Chain of(JsonNode payload) {
+        JsonNode embed = payload.get(2);
+        JsonNode links = embed != null ? embed.get("chain") : null;
+        return links instanceof ArrayNode && links.size() > 0 ? new Chain((ArrayNode) links) : null;
+    }
+
+    /**
+     * Describes the links following the first task of a chain, for the {@code chain} field of its payload.
+     *
+     * @param tasks the following tasks, in the order they run
+     * @param taskIds IDs of the following tasks
+     * @param replyTo client the results are reported to, {@code null} without a backend
+     * @return the signatures, in reverse order
+     */
+    static List<Map<String, Object>> links(List<Signature> tasks, List<String> taskIds, @Nullable String replyTo) {
+        List<Map<String, Object>> links = new ArrayList<>(tasks.size());
+        for (int i = tasks.size() - 1; i >= 0; i--) {
+            Map<String, Object> options = new HashMap<>();
+            options.put("task_id", taskIds.get(i));
+            options.put("reply_to", replyTo);
+            links.add(tasks.get(i).toMap(options));
+        }
+        return links;
+    }
+
+    /**
+     * Sends the next link, to the queue of its options or to the queue of the finished task.
+     *
+     * @param result result of the finished task, the first argument of the next one unless it's immutable
+     * @param serializer format of the finished task, the next one is sent in the same
+     * @param payloadWriter writer of the {@code serializer}, shared by the tasks in the format
+     * @param taskIdGenerator generator of the ID of a link without one
+     */
+    void sendNext(
+            Broker broker, String queue, String origin, @Nullable Object result, Serializer serializer,
+            TaskPayloadWriter payloadWriter, TaskIdGenerator taskIdGenerator
+    ) throws IOException {
+        JsonNode link = links.get(links.size() - 1);
+        JsonNode options = link.path("options");
+
+        List<Object> args = new ArrayList<>();
+        if (!link.path("immutable").asBoolean(false)) {
+            args.add(result);
+        }
+        link.path("args").forEach(args::add);
+        ArrayNode rest = links.deepCopy();
+        rest.remove(rest.size() - 1);
+
+        Message message = broker.newMessage();
+        message.setContentEncoding(serializer.getContentEncoding());
+        message.setContentType(serializer.getContentType());
+        message.setBody(payloadWriter.write(args.toArray(), rest.size() > 0 ? rest : null));
+
+        Message.Headers headers = message.getHeaders();
+        headers.setTaskName(link.path("task").asText());
+        headers.setId(options.hasNonNull("task_id") ? options.get("task_id").asText() : taskIdGenerator.nextId());
+        headers.setArgsRepr(ArgsReprPolicy.FULL.argsRepr(args.toArray()));
+        headers.setOrigin(origin);
+        if (options.hasNonNull("reply_to")) {
+            headers.setReplyTo(options.get("reply_to").asText());
+        }
+        message.send(options.hasNonNull("queue") ? options.get("queue").asText() : queue);
+    }
+
+    /**
+     * @return IDs of the links that won't run after a failure, with the clients they report to ({@code null} for
+     *         none), in the order they would run
+     */
+    Map<String, String> remaining() {
+        Map<String, String> remaining = new LinkedHashMap<>();
+        for (int i = links.size() - 1; i >= 0; i--) {
+            JsonNode options = links.get(i).path("options");
+            if (options.hasNonNull("task_id")) {
+                remaining.put(options.get("task_id").asText(), options.path("reply_to").textValue());
+            }
+        }
+        return remaining;
+    }
+}
@@ -0,0 +1,43 @@
+package vip.appcity.celery;
+
+import vip.appcity.celery.spi.BlobStore;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * When and where to offload large task arguments (the <i>claim check</i> pattern). Arguments whose serialized form is
+ * at least the threshold are put into the {@link BlobStore} and only their keys travel in the message, listed by the
+ * {@code blob_args} header. The worker reads them from the same store when it calls the task.
+ * <p>
+ *     Only Java workers understand the offloaded arguments.
+ * </p>
+ */
+public final class ClaimCheck {
+
+    private final BlobStore store;
+    private final int threshold;
+
+    private ClaimCheck(BlobStore store, int threshold) {
+        checkArgument(threshold >= 0, "threshold must not be negative");
+        this.store = checkNotNull(store, "store");
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param store store shared with the workers, eg. {@link vip.appcity.celery.blobs.FileBlobStore}
+     * @param threshold minimal size in bytes of a serialized argument to be offloaded
+     * @return claim check settings
+     */
+    public static ClaimCheck of(BlobStore store, int threshold) {
+        return new ClaimCheck(store, threshold);
+    }
+
+    public BlobStore getStore() {
+        return store;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+}
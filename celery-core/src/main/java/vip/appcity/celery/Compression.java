@@ -0,0 +1,61 @@
+package vip.appcity.celery;
+
+import vip.appcity.celery.compression.Compressor;
+import vip.appcity.celery.compression.Compressors;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * When and how to compress message bodies. Bodies smaller than the threshold are sent as they are, larger ones are
+ * compressed and marked by the {@code compression} header, the same way Python Celery does it. The receiving side
+ * decompresses them transparently.
+ */
+public final class Compression {
+
+    private final Compressor compressor;
+    private final int threshold;
+
+    private Compression(Compressor compressor, int threshold) {
+        checkArgument(threshold >= 0, "threshold must not be negative");
+        this.compressor = checkNotNull(compressor, "compressor");
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param codec codec name, see {@link Compressors}
+     * @param threshold minimal body size in bytes to be compressed
+     * @return compression settings
+     */
+    public static Compression of(String codec, int threshold) {
+        return new Compression(Compressors.forName(codec), threshold);
+    }
+
+    /**
+     * @param compressor the codec
+     * @param threshold minimal body size in bytes to be compressed
+     * @return compression settings
+     */
+    public static Compression of(Compressor compressor, int threshold) {
+        return new Compression(compressor, threshold);
+    }
+
+    public Compressor getCompressor() {
+        return compressor;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @param body body to be sent
+     * @return the compressed body, or {@code null} if the body is below the threshold
+     */
+    @Nullable
+    public byte[] compress(byte[] body) {
+        return body.length >= threshold ? compressor.compress(body) : null;
+    }
+}
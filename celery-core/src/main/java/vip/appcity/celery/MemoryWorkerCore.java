@@ -0,0 +1,307 @@
+package vip.appcity.celery;
+
+import vip.appcity.celery.backends.memory.MemoryBackend;
+import vip.appcity.celery.brokers.memory.MemoryBroker;
+import vip.appcity.celery.brokers.memory.MemoryMessage;
+import vip.appcity.celery.brokers.memory.MemoryVirtualHost;
+import vip.appcity.celery.compression.Compressors;
+import vip.appcity.celery.ids.RandomTaskIdGenerator;
+import vip.appcity.celery.ratelimit.TokenBucket;
+import vip.appcity.celery.scheduling.EtaScheduler;
+import vip.appcity.celery.serialization.Serializers;
+import vip.appcity.celery.spi.BlobStore;
+import vip.appcity.celery.spi.Serializer;
+import vip.appcity.celery.spi.TaskIdGenerator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * The core implementation of a worker that executes tasks sent through a {@code memory://} broker by clients in the
+ * same JVM. It always uses the {@link MemoryBackend}.
+ * <p>
+ *     The worker consumes its queue by a fixed number of threads, the same threads execute the tasks released after
+ *     their ETA or rate limit. There are no acknowledgements - tasks taken from the
+ *     queue when the worker is closed are lost, including the ones waiting for their ETA.
+ * </p>
+ */
+@Slf4j
+public abstract class MemoryWorkerCore implements Closeable {
+
+    private static final long RELEASED_POLL_MILLIS = 10;
+
+    private final MemoryVirtualHost host;
+    private final MemoryBackend backend;
+    private final String queue;
+    private final int concurrency;
+    private final ObjectMapper jsonMapper;
+    private final TaskDispatcher dispatcher;
+    private final Serializer json;
+    private final BlobStore blobStore;
+    private final List<Thread> threads = new ArrayList<>();
+    private final Map<String, TokenBucket> rateLimits;
+    private final EtaScheduler<Runnable> etaScheduler;
+    /** Messages released by {@link #etaScheduler}, handled by the consuming threads before taking new ones. */
+    private final Queue<Runnable> released = new ConcurrentLinkedQueue<>();
+    private final LongAdder expired = new LongAdder();
+    /** Sends the next links of chains. */
+    private final MemoryBroker chainBroker;
+    private final Map<Serializer, TaskPayloadWriter> chainWriters = new ConcurrentHashMap<>();
+    private final TaskIdGenerator taskIdGenerator;
+
+    private volatile boolean running = false;
+
+    /**
+     * @param uri the {@code memory://name} URI shared with the clients
+     * @param queue routing tag (specifies the queue where to listen)
+     * @param jsonMapper override for the used JSON mapper
+     * @param concurrency number of threads executing the tasks
+     */
+    protected MemoryWorkerCore(
+            @Nonnull final String uri,
+            @Nullable final String queue,
+            @Nullable final ObjectMapper jsonMapper,
+            final int concurrency
+    ) {
+        this(uri, queue, jsonMapper, concurrency, null, null);
+    }
+
+    /**
+     * @param uri the {@code memory://name} URI shared with the clients
+     * @param queue routing tag (specifies the queue where to listen)
+     * @param jsonMapper override for the used JSON mapper
+     * @param concurrency number of threads executing the tasks
+     * @param blobStore store of the arguments offloaded by clients, see {@link ClaimCheck}
+     */
+    protected MemoryWorkerCore(
+            @Nonnull final String uri,
+            @Nullable final String queue,
+            @Nullable final ObjectMapper jsonMapper,
+            final int concurrency,
+            @Nullable final BlobStore blobStore
+    ) {
+        this(uri, queue, jsonMapper, concurrency, blobStore, null);
+    }
+
+    /**
+     * @param uri the {@code memory://name} URI shared with the clients
+     * @param queue routing tag (specifies the queue where to listen)
+     * @param jsonMapper override for the used JSON mapper
+     * @param concurrency number of threads executing the tasks
+     * @param blobStore store of the arguments offloaded by clients, see {@link ClaimCheck}
+     * @param rateLimits rate limits of the tasks by their names, the buckets can be shared by more workers
+     */
+    protected MemoryWorkerCore(
+            @Nonnull final String uri,
+            @Nullable final String queue,
+            @Nullable final ObjectMapper jsonMapper,
+            final int concurrency,
+            @Nullable final BlobStore blobStore,
+            @Nullable final Map<String, TokenBucket> rateLimits
+    ) {
+        this(uri, queue, jsonMapper, concurrency, blobStore, rateLimits, null);
+    }
+
+    /**
+     * @param uri the {@code memory://name} URI shared with the clients
+     * @param queue routing tag (specifies the queue where to listen)
+     * @param jsonMapper override for the used JSON mapper
+     * @param concurrency number of threads executing the tasks
+     * @param blobStore store of the arguments offloaded by clients, see {@link ClaimCheck}
+     * @param rateLimits rate limits of the tasks by their names, the buckets can be shared by more workers
+     * @param taskIdGenerator generator of the IDs of chained tasks sent without one, use the one of the clients so
+     *                        that they follow the same scheme; random by default
+     */
+    protected MemoryWorkerCore(
+            @Nonnull final String uri,
+            @Nullable final String queue,
+            @Nullable final ObjectMapper jsonMapper,
+            final int concurrency,
+            @Nullable final BlobStore blobStore,
+            @Nullable final Map<String, TokenBucket> rateLimits,
+            @Nullable final TaskIdGenerator taskIdGenerator
+    ) {
+        checkArgument(concurrency > 0, "concurrency must be positive");
+        this.host = MemoryVirtualHost.forUri(URI.create(uri));
+        this.queue = queue != null ? queue : "celery";
+        this.concurrency = concurrency;
+        this.jsonMapper = jsonMapper != null ? jsonMapper : new ObjectMapper();
+        this.backend = new MemoryBackend(host, this.jsonMapper);
+        this.dispatcher = new TaskDispatcher(this.jsonMapper, this::findTask);
+        this.json = Serializers.json(this.jsonMapper);
+        this.blobStore = blobStore;
+        this.rateLimits = rateLimits != null ? ImmutableMap.copyOf(rateLimits) : ImmutableMap.of();
+        this.etaScheduler = new EtaScheduler<>("celery-memory-worker-eta-" + this.queue, 10, released::add);
+        this.chainBroker = new MemoryBroker(host);
+        this.taskIdGenerator = taskIdGenerator != null ? taskIdGenerator : new RandomTaskIdGenerator();
+    }
+
+    /**
+     * Starts the threads consuming the queue.
+     */
+    public final synchronized void start() {
+        checkState(!running, "the worker is already running");
+        running = true;
+        BlockingQueue<MemoryMessage> messages = host.queue(queue);
+        for (int i = 0; i < concurrency; i++) {
+            Thread thread = new Thread(() -> consume(messages), "celery-memory-worker-" + queue + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    private void consume(BlockingQueue<MemoryMessage> messages) {
+        while (running) {
+            Runnable due = released.poll();
+            if (due != null) {
+                due.run();
+                continue;
+            }
+            MemoryMessage message;
+            try {
+                // wakes up with the ticks of the scheduler to pick the released messages
+                message = messages.poll(RELEASED_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (message == null) {
+                continue;
+            }
+            Instant eta = Timestamps.parse(message.getHeader("eta"));
+            if (eta == null || !etaScheduler.schedule(eta.toEpochMilli(), () -> release(message))) {
+                release(message);
+            }
+        }
+    }
+
+    /**
+     * Handles the message once its task is allowed by the rate limit, it's deferred meanwhile.
+     */
+    private void release(MemoryMessage message) {
+        TokenBucket rateLimit = rateLimits.get(String.valueOf(message.getHeader("task")));
+        long delay = rateLimit != null ? rateLimit.reserve() : 0;
+        long releaseAt = System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(delay) + 1;
+        if (delay == 0 || !etaScheduler.schedule(releaseAt, () -> handleMessage(message))) {
+            handleMessage(message);
+        }
+    }
+
+    private void handleMessage(MemoryMessage message) {
+        String taskId = String.valueOf(message.getHeader("id"));
+        Instant expires = Timestamps.parse(message.getHeader("expires"));
+        if (expires != null && !expires.isAfter(Instant.now())) {
+            // checked by the headers only, the body is not decoded
+            expired.increment();
+            log.debug("CeleryTask {} expired at {}, discarded", taskId, expires);
+            backend.reportRevoked(taskId, message.getReplyTo(), message.getCorrelationId(), "expired");
+            return;
+        }
+        // the rest of the chain, until the next link is sent
+        Chain chain = null;
+        try {
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            byte[] body = Compressors.decompress(message.getHeader("compression"), message.getBody());
+            Serializer serializer = Serializers.forContentType(message.getContentType(), json);
+            ObjectMapper mapper = serializer.getMapper();
+            JsonNode payload = mapper.readTree(body);
+            chain = Chain.of(payload);
+
+            String taskName = String.valueOf(message.getHeader("task"));
+            Object result = dispatcher.dispatch(
+                    taskName,
+                    (ArrayNode) payload.get(0),
+                    (ObjectNode) payload.get(1),
+                    BlobArgs.of(message.getHeader(BlobArgs.HEADER), blobStore, mapper)
+            );
+
+            log.debug("CeleryTask {}[{}] succeeded in {}", taskName, taskId, stopwatch);
+            if (chain != null) {
+                chain.sendNext(chainBroker, queue, String.valueOf(message.getHeader("origin")), result, serializer,
+                        chainWriter(serializer), taskIdGenerator);
+                chain = null;
+            }
+            backend.reportResult(taskId, message.getReplyTo(), message.getCorrelationId(), result);
+        } catch (DispatchException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            log.error(String.format("CeleryTask %s - dispatch error", taskId), e);
+            backend.reportException(taskId, message.getReplyTo(), message.getCorrelationId(), cause);
+            failChain(chain, cause);
+        } catch (IOException e) {
+            log.error(String.format("CeleryTask %s - processing error", taskId), e);
+            backend.reportException(taskId, message.getReplyTo(), message.getCorrelationId(), e);
+            failChain(chain, e);
+        } catch (RuntimeException e) {
+            log.error(String.format("CeleryTask %s - runtime error", taskId), e);
+            backend.reportException(taskId, message.getReplyTo(), message.getCorrelationId(), e);
+            failChain(chain, e);
+        }
+    }
+
+    /**
+     * @return writer of the tasks chained after a task in the format, reused for its per-thread buffers
+     */
+    private TaskPayloadWriter chainWriter(Serializer serializer) {
+        return chainWriters.computeIfAbsent(serializer, s -> new TaskPayloadWriter(s.getMapper()));
+    }
+
+    /**
+     * The links after a failed task won't run, the failure is reported for them too, so that the client waiting for
+     * the end of the chain gets it.
+     */
+    private void failChain(@Nullable Chain chain, Throwable cause) {
+        if (chain != null) {
+            chain.remaining().forEach((taskId, replyTo) -> backend.reportException(taskId, replyTo, taskId, cause));
+        }
+    }
+
+    /**
+     * @return number of the tasks discarded because they expired before they were executed
+     */
+    public final long getExpiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * Implements a particular search method of component discovery.
+     * @param className class name for a task to be executed
+     * @return the found "task object", or {@code null} when it could not be found
+     */
+    protected abstract Object findTask(String className);
+
+    /**
+     * Stops the threads consuming the queue, they are interrupted. Tasks still waiting in the queue stay there.
+     */
+    @Override
+    public final synchronized void close() {
+        running = false;
+        threads.forEach(Thread::interrupt);
+        threads.clear();
+        etaScheduler.close();
+        backend.close();
+    }
+}
@@ -0,0 +1,110 @@
+package vip.appcity.celery;
+
+import vip.appcity.celery.outbox.Outbox;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A task submitted through the {@link Outbox}, written in the format of the client's serializer. The options are
+ * fixed at the submission, so the countdown and expiration count from it, not from the time the task is sent.
+ * An {@code argsrepr} other than the full one is computed at the submission too, the policy itself can't be written.
+ */
+final class OutboxSubmission {
+
+    private final String queue;
+    private final String name;
+    private final String taskId;
+    private final Object[] args;
+    private final TaskOptions options;
+    private final ArgsReprPolicy argsRepr;
+
+    private OutboxSubmission(
+            String queue, String name, String taskId, Object[] args, TaskOptions options, ArgsReprPolicy argsRepr
+    ) {
+        this.queue = queue;
+        this.name = name;
+        this.taskId = taskId;
+        this.args = args;
+        this.options = options;
+        this.argsRepr = argsRepr;
+    }
+
+    static OutboxSubmission of(
+            String queue, String name, String taskId, Object[] args, TaskOptions options, ArgsReprPolicy argsRepr
+    ) {
+        return new OutboxSubmission(queue, name, taskId, args, options.fixedAt(Instant.now()), argsRepr);
+    }
+
+    static OutboxSubmission read(ObjectMapper mapper, byte[] data) throws IOException {
+        JsonNode submission = mapper.readTree(data);
+        TaskOptions options = TaskOptions.DEFAULT;
+        if (submission.hasNonNull("priority")) {
+            options = options.withPriority(submission.get("priority").asInt());
+        }
+        if (submission.hasNonNull("eta")) {
+            options = options.withEta(Instant.ofEpochMilli(submission.get("eta").asLong()));
+        }
+        if (submission.hasNonNull("expires")) {
+            options = options.withExpires(Instant.ofEpochMilli(submission.get("expires").asLong()));
+        }
+        ArgsReprPolicy argsRepr = ArgsReprPolicy.FULL;
+        if (submission.has("argsrepr")) {
+            String computed = submission.get("argsrepr").textValue();
+            argsRepr = args -> computed;
+        }
+        return new OutboxSubmission(
+                submission.get("queue").asText(),
+                submission.get("task").asText(),
+                submission.get("id").asText(),
+                mapper.convertValue(submission.get("args"), Object[].class),
+                options,
+                argsRepr);
+    }
+
+    byte[] write(ObjectMapper mapper) throws IOException {
+        Map<String, Object> submission = new LinkedHashMap<>();
+        submission.put("queue", queue);
+        submission.put("task", name);
+        submission.put("id", taskId);
+        submission.put("args", args);
+        submission.put("priority", options.getPriority());
+        submission.put("eta", options.getEta() != null ? options.getEta().toEpochMilli() : null);
+        submission.put("expires", options.getExpires() != null ? options.getExpires().toEpochMilli() : null);
+        if (argsRepr != ArgsReprPolicy.FULL) {
+            // the full one is computed when the task is sent, not to write the arguments twice
+            submission.put("argsrepr", argsRepr.argsRepr(args));
+        }
+        return mapper.writeValueAsBytes(submission);
+    }
+
+    String getQueue() {
+        return queue;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getTaskId() {
+        return taskId;
+    }
+
+    Object[] getArgs() {
+        return args;
+    }
+
+    TaskOptions getOptions() {
+        return options;
+    }
+
+    ArgsReprPolicy getArgsRepr() {
+        return argsRepr;
+    }
+}
@@ -0,0 +1,152 @@
+package vip.appcity.celery;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import vip.appcity.celery.spi.Message;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A handle for submitting one particular task over and over, created by {@link CeleryClientCore#prepare(String)}.
+ * <p>
+ *     Everything that is the same for all invocations of the task - the message headers, the content type, the
+ *     target queue - is resolved once when the handle is prepared. Submitting then only sets the task ID, serializes
+ *     the arguments and publishes the message.
+ * </p>
+ *
+ * Thread safety: the handle is immutable and can be used from multiple threads.
+ *
+ * @param <R> task result type
+ */
+public final class PreparedTask<R> {
+
+    private final CeleryClientCore client;
+    private final String name;
+    private final String queue;
+    /** {@code null} with an outbox, the tasks are appended to it instead. */
+    private final Message template;
+    private final ArgsReprPolicy argsRepr;
+    private final ResultCache resultCache;
+    private final TaskOptions options;
+
+    PreparedTask(
+            CeleryClientCore client, String name, String queue, @Nullable Message template, ArgsReprPolicy argsRepr
+    ) {
+        this(client, name, queue, template, argsRepr, null, TaskOptions.DEFAULT);
+    }
+
+    private PreparedTask(
+            CeleryClientCore client, String name, String queue, @Nullable Message template, ArgsReprPolicy argsRepr,
+            @Nullable ResultCache resultCache, TaskOptions options
+    ) {
+        this.client = client;
+        this.name = name;
+        this.queue = queue;
+        this.template = template;
+        this.argsRepr = checkNotNull(argsRepr, "argsRepr");
+        this.resultCache = resultCache;
+        this.options = checkNotNull(options, "options");
+    }
+
+    /**
+     * @param policy how to compute the {@code argsrepr} header, {@link ArgsReprPolicy#FULL} by default
+     * @return copy of this handle using the given policy
+     */
+    public PreparedTask<R> withArgsRepr(ArgsReprPolicy policy) {
+        return new PreparedTask<>(client, name, queue, template, policy, resultCache, options);
+    }
+
+    /**
+     * @param options options of all the submissions, eg. their priority or countdown
+     * @return copy of this handle submitting the task with the options
+     */
+    public PreparedTask<R> withOptions(TaskOptions options) {
+        return new PreparedTask<>(client, name, queue, template, argsRepr, resultCache, options);
+    }
+
+    /**
+     * Use only for idempotent tasks - identical submissions get the same result instead of running the task again.
+     * Submissions with an explicit task ID always send the task.
+     *
+     * @param cache cache of the results, {@code null} to submit every call
+     * @return copy of this handle sharing the results through the cache
+     */
+    public PreparedTask<R> withResultCache(@Nullable ResultCache cache) {
+        return new PreparedTask<>(client, name, queue, template, argsRepr, cache, options);
+    }
+
+    /**
+     * Submit the task.
+     *
+     * @param args positional arguments for the method (need to be JSON serializable)
+     * @return asynchronous result
+     * @throws IOException if the message couldn't be sent
+     */
+    public ListenableFuture<R> submit(Object[] args) throws IOException {
+        return client.submit(this, null, args);
+    }
+
+    /**
+     * Submit the task.
+     *
+     * @param taskId task id from caller, can be null
+     * @param args positional arguments for the method (need to be JSON serializable)
+     * @return asynchronous result
+     * @throws IOException if the message couldn't be sent
+     */
+    public ListenableFuture<R> submit(@Nullable String taskId, Object[] args) throws IOException {
+        return client.submit(this, taskId, args);
+    }
+
+    /**
+     * Submit the task without blocking the calling thread, see {@link CeleryClientCore#submitAsync(String, String,
+     * Object[])}.
+     *
+     * @param args positional arguments for the method (need to be JSON serializable)
+     * @return result completed when the task finishes, or exceptionally when it can't be submitted
+     */
+    public CompletableFuture<R> submitAsync(Object[] args) {
+        return client.submitAsync(this, null, args);
+    }
+
+    /**
+     * Submit the task without blocking the calling thread, see {@link CeleryClientCore#submitAsync(String, String,
+     * Object[])}.
+     *
+     * @param taskId task id from caller, can be null
+     * @param args positional arguments for the method (need to be JSON serializable)
+     * @return result completed when the task finishes, or exceptionally when it can't be submitted
+     */
+    public CompletableFuture<R> submitAsync(@Nullable String taskId, Object[] args) {
+        return client.submitAsync(this, taskId, args);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getQueue() {
+        return queue;
+    }
+
+    @Nullable
+    Message getTemplate() {
+        return template;
+    }
+
+    ArgsReprPolicy getArgsRepr() {
+        return argsRepr;
+    }
+
+    TaskOptions getOptions() {
+        return options;
+    }
+
+    @Nullable
+    ResultCache getResultCache() {
+        return resultCache;
+    }
+}
@@ -0,0 +1,169 @@
+package vip.appcity.celery;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Results of idempotent tasks shared by identical submissions, see {@link PreparedTask#withResultCache(ResultCache)}.
+ * Submissions are identical when they have the same task name and the same serialized arguments.
+ * <p>
+ *     A submission identical to one still in flight doesn't send another message, it gets the result of the one in
+ *     flight (it is <i>coalesced</i>). Successful results are then kept for the given time, so identical submissions
+ *     don't send any message either until the result expires. Failures are not kept.
+ * </p>
+ * <p>
+ *     The futures returned for coalesced and cached submissions are shared - cancelling one of them doesn't cancel
+ *     the task. The cache is useful only for clients with a backend, without it the results are always {@code null}.
+ * </p>
+ *
+ * Thread safety: the cache can be shared by multiple tasks and clients.
+ */
+public final class ResultCache {
+
+    private final Cache<HashCode, ListenableFuture<?>> completed;
+    private final ConcurrentMap<HashCode, ListenableFuture<?>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    private ResultCache(long maximumSize, long ttl, TimeUnit unit) {
+        checkArgument(maximumSize >= 0, "maximumSize must not be negative");
+        checkArgument(ttl >= 0, "ttl must not be negative");
+        this.completed = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl, unit)
+                .build();
+    }
+
+    /**
+     * @param maximumSize maximal number of results kept
+     * @param ttl how long the results are kept after the task finished
+     * @param unit unit of {@code ttl}
+     * @return new empty cache
+     */
+    public static ResultCache of(long maximumSize, long ttl, TimeUnit unit) {
+        return new ResultCache(maximumSize, ttl, unit);
+    }
+
+    /**
+     * Submits the task, unless there's an identical submission in flight or its result is kept.
+     *
+     * @param mapper the client's mapper, the arguments are hashed in its format
+     */
+    <R> ListenableFuture<R> submit(String name, Object[] args, ObjectMapper mapper, Submission<R> submission)
+            throws IOException {
+        HashCode key = key(name, args, mapper);
+
+        @SuppressWarnings("unchecked")
+        ListenableFuture<R> cached = (ListenableFuture<R>) completed.getIfPresent(key);
+        if (cached != null) {
+            hits.increment();
+            return Futures.nonCancellationPropagating(cached);
+        }
+
+        SettableFuture<R> future = SettableFuture.create();
+        @SuppressWarnings("unchecked")
+        ListenableFuture<R> running = (ListenableFuture<R>) inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            coalesced.increment();
+            return Futures.nonCancellationPropagating(running);
+        }
+
+        misses.increment();
+        future.addListener(() -> {
+            // kept before it stops being in flight, so that an identical submission always finds one of them
+            if (isSuccessful(future)) {
+                completed.put(key, future);
+            }
+            inFlight.remove(key, future);
+        }, MoreExecutors.directExecutor());
+
+        try {
+            future.setFuture(submission.submit());
+        } catch (IOException | RuntimeException e) {
+            future.setException(e);
+            throw e;
+        }
+        return Futures.nonCancellationPropagating(future);
+    }
+
+    private static HashCode key(String name, Object[] args, ObjectMapper mapper) throws IOException {
+        Hasher hasher = Hashing.sha256().newHasher()
+                .putString(name, StandardCharsets.UTF_8)
+                .putByte((byte) 0);
+        // streamed into the hash, the serialized arguments are never held in memory as a whole
+        mapper.writeValue(Funnels.asOutputStream(hasher), args);
+        return hasher.hash();
+    }
+
+    private static boolean isSuccessful(ListenableFuture<?> future) {
+        try {
+            Futures.getDone(future);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return number of submissions answered by a kept result
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of submissions that sent the task
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of submissions that joined an identical one in flight
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return approximate number of kept results
+     */
+    public long size() {
+        return completed.size();
+    }
+
+    /**
+     * Drops all kept results, submissions in flight are not affected.
+     */
+    public void invalidateAll() {
+        completed.invalidateAll();
+    }
+
+    /**
+     * Sends the task, called for a submission that can't use a kept or in-flight result.
+     */
+    @FunctionalInterface
+    interface Submission<R> {
+        ListenableFuture<R> submit() throws IOException;
+    }
+}
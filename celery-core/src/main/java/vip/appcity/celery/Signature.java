@@ -0,0 +1,88 @@
+package vip.appcity.celery;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An immutable description of a single task invocation - task name, optional task ID and positional arguments.
+ * <p>
+ *     Used to submit several tasks at once, see {@link CeleryClientCore#submitAll(java.util.Collection)}.
+ * </p>
+ */
+public final class Signature {
+
+    private final String name;
+    private final String taskId;
+    private final Object[] args;
+
+    private Signature(@Nonnull String name, @Nullable String taskId, @Nonnull Object[] args) {
+        this.name = checkNotNull(name, "name");
+        this.taskId = taskId;
+        this.args = checkNotNull(args, "args");
+    }
+
+    /**
+     * @param name task name as understood by the worker
+     * @param args positional arguments for the method (need to be JSON serializable)
+     * @return signature with a task ID generated on submission
+     */
+    public static Signature of(String name, Object[] args) {
+        return new Signature(name, null, args);
+    }
+
+    /**
+     * @param name task name as understood by the worker
+     * @param taskId task id from caller, can be null
+     * @param args positional arguments for the method (need to be JSON serializable)
+     * @return signature of the task
+     */
+    public static Signature of(String name, String taskId, Object[] args) {
+        return new Signature(name, taskId, args);
+    }
+
+    /**
+     * @param taskClass task implementing class
+     * @param method method in {@code taskClass} that does the work
+     * @param args positional arguments for the method (need to be JSON serializable)
+     * @return signature of the Java task
+     */
+    public static Signature of(Class<?> taskClass, String method, Object[] args) {
+        return new Signature(taskClass.getName() + "#" + method, null, args);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return task ID, or {@code null} if it should be generated on submission
+     */
+    @Nullable
+    public String getTaskId() {
+        return taskId;
+    }
+
+    public Object[] getArgs() {
+        return args;
+    }
+
+    /**
+     * @param options execution options of the task, eg. {@code task_id}
+     * @return the signature as Python Celery serializes it, for the tasks embedded in other tasks' messages
+     */
+    Map<String, Object> toMap(Map<String, Object> options) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("task", name);
+        map.put("args", args);
+        map.put("kwargs", Collections.emptyMap());
+        map.put("options", options);
+        map.put("subtask_type", null);
+        map.put("immutable", false);
+        return map;
+    }
+}
@@ -0,0 +1,137 @@
+package vip.appcity.celery;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Finds the method processing a task and calls it with the arguments from the message. Shared by the workers.
+ */
+final class TaskDispatcher {
+
+    private static final Pattern TASK_NAME = Pattern.compile("^(.+)#(.+)$");
+    /** Name of the task calling another task for each of a list of argument lists, see {@link #starmap}. */
+    static final String STARMAP = "celery.starmap";
+
+    private final ObjectMapper jsonMapper;
+    private final Function<String, Object> taskFinder;
+
+    /**
+     * @param jsonMapper converts the arguments to the parameter types of the method
+     * @param taskFinder returns the "task object" for a class name, or {@code null} when it could not be found
+     */
+    TaskDispatcher(ObjectMapper jsonMapper, Function<String, Object> taskFinder) {
+        this.jsonMapper = jsonMapper;
+        this.taskFinder = taskFinder;
+    }
+
+    /**
+     * @param blobArgs arguments offloaded to a blob store, {@code null} if all of them are in {@code args}
+     * @throws IOException if an offloaded argument can't be read
+     */
+    Object dispatch(String taskName, ArrayNode args, ObjectNode kwargs, @Nullable BlobArgs blobArgs)
+            throws DispatchException, IOException {
+        if (STARMAP.equals(taskName)) {
+            return starmap(args, blobArgs);
+        }
+        return resolve(taskName).call(args, blobArgs);
+    }
+
+    /**
+     * Calls a task for each argument list of a chunk, the method is resolved once for the whole chunk.
+     *
+     * @param args {@code [signature, [args1, args2, ...]]} as sent by Celery's {@code chunks}
+     * @return the results in the order of the argument lists
+     */
+    private List<Object> starmap(ArrayNode args, @Nullable BlobArgs blobArgs) throws DispatchException, IOException {
+        JsonNode items;
+        try {
+            items = blobArgs != null && blobArgs.contains(1)
+                    ? (JsonNode) blobArgs.read(args.get(1), JsonNode.class)
+                    : args.get(1);
+        } catch (IllegalArgumentException e) {
+            throw new DispatchException(e, "Error reading arguments of %s", STARMAP);
+        }
+        if (!(items instanceof ArrayNode)) {
+            throw new DispatchException("%s expects a list of argument lists, got: %s", STARMAP, items);
+        }
+
+        ResolvedTask task = resolve(args.path(0).path("task").asText());
+        List<Object> results = new ArrayList<>(items.size());
+        for (JsonNode item : items) {
+            if (!(item instanceof ArrayNode)) {
+                throw new DispatchException("%s expects a list of argument lists, got: %s", STARMAP, item);
+            }
+            results.add(task.call((ArrayNode) item, null));
+        }
+        return results;
+    }
+
+    private ResolvedTask resolve(String taskName) throws DispatchException {
+        Matcher matcher = TASK_NAME.matcher(taskName);
+        if (!matcher.matches()) {
+            throw new DispatchException(
+                    "This worker can only process tasks with name in form \"package.ClassName#method\", " +
+                    "got: \"%s\"", taskName
+            );
+        }
+        String className = matcher.group(1);
+        String methodName = matcher.group(2);
+
+        Object taskObj = taskFinder.apply(className);
+        if (taskObj == null) {
+            throw new DispatchException("CeleryTask \"%s\" could not be found!", className);
+        }
+
+        Method method = Stream.of(taskObj.getClass().getDeclaredMethods())
+                .filter(m -> m.getName().equals(methodName))
+                .findFirst().orElse(null);
+        if (method == null) {
+            throw new DispatchException("CeleryTask \"%s:%s\" could not be found!", className, methodName);
+        }
+        return new ResolvedTask(taskObj, method);
+    }
+
+    /**
+     * A task method with its "task object".
+     */
+    private final class ResolvedTask {
+
+        private final Object taskObj;
+        private final Method method;
+        private final Class<?>[] paramTypes;
+
+        ResolvedTask(Object taskObj, Method method) {
+            this.taskObj = taskObj;
+            this.method = method;
+            this.paramTypes = method.getParameterTypes();
+        }
+
+        Object call(ArrayNode args, @Nullable BlobArgs blobArgs) throws DispatchException, IOException {
+            try {
+                Object[] convertedArgs = new Object[paramTypes.length];
+                for (int i = 0; i < paramTypes.length; i++) {
+                    convertedArgs[i] = blobArgs != null && blobArgs.contains(i)
+                            ? blobArgs.read(args.get(i), paramTypes[i])
+                            : jsonMapper.convertValue(args.get(i), paramTypes[i]);
+                }
+
+                return method.invoke(taskObj, convertedArgs);
+            } catch (IllegalArgumentException | ReflectiveOperationException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                throw new DispatchException(cause, "Error calling %s", method);
+            }
+        }
+    }
+}
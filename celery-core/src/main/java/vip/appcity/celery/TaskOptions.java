@@ -0,0 +1,207 @@
+package vip.appcity.celery;
+
+import vip.appcity.celery.ratelimit.TokenBucket;
+import vip.appcity.celery.spi.Message;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import javax.annotation.Nullable;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Options of a single task submission that are not part of the task itself, see
+ * {@link CeleryClientCore#submit(String, String, Object[], TaskOptions)}. Start with {@link #DEFAULT} and set the
+ * options by the {@code with*} methods, eg. {@code TaskOptions.DEFAULT.withPriority(9)}.
+ *
+ * The options are immutable and can be shared.
+ */
+public final class TaskOptions {
+
+    /** No options set, the task is sent the same way as by {@link CeleryClientCore#submit(String, Object[])}. */
+    public static final TaskOptions DEFAULT = new TaskOptions(null, null, null, null, null, null);
+
+    private final Integer priority;
+    private final Instant eta;
+    private final Long countdownMillis;
+    private final Instant expires;
+    private final Long expiresInMillis;
+    private final TokenBucket rateLimit;
+
+    private TaskOptions(
+            @Nullable Integer priority, @Nullable Instant eta, @Nullable Long countdownMillis,
+            @Nullable Instant expires, @Nullable Long expiresInMillis, @Nullable TokenBucket rateLimit
+    ) {
+        this.priority = priority;
+        this.eta = eta;
+        this.countdownMillis = countdownMillis;
+        this.expires = expires;
+        this.expiresInMillis = expiresInMillis;
+        this.rateLimit = rateLimit;
+    }
+
+    /**
+     * Tasks with higher priority are delivered first. It works only for queues declared with {@code x-max-priority},
+     * see {@link vip.appcity.celery.brokers.rabbit.RabbitBrokerFactory}, and priorities above its value are treated
+     * as the maximum.
+     *
+     * @param priority 0 (the lowest, default) - 255
+     * @return copy of these options with the priority
+     */
+    public TaskOptions withPriority(int priority) {
+        checkArgument(priority >= 0 && priority <= 255, "priority must be between 0 and 255");
+        return new TaskOptions(priority, eta, countdownMillis, expires, expiresInMillis, rateLimit);
+    }
+
+    /**
+     * The task is not executed before the given time, the workers hold it until then. Replaces the countdown.
+     *
+     * @param eta earliest time of the execution
+     * @return copy of these options with the ETA
+     */
+    public TaskOptions withEta(Instant eta) {
+        return new TaskOptions(priority, checkNotNull(eta, "eta"), null, expires, expiresInMillis, rateLimit);
+    }
+
+    /**
+     * The task is not executed before the countdown since its submission passes. Unlike {@link #withEta(Instant)}
+     * the ETA is computed for each submission, so the options can be shared. Replaces the ETA.
+     *
+     * @param countdown delay of the execution
+     * @param unit unit of the delay
+     * @return copy of these options with the countdown
+     */
+    public TaskOptions withCountdown(long countdown, TimeUnit unit) {
+        checkArgument(countdown >= 0, "countdown must not be negative");
+        return new TaskOptions(priority, null, unit.toMillis(countdown), expires, expiresInMillis, rateLimit);
+    }
+
+    /**
+     * The task is not executed after the given time - the workers discard it without decoding its arguments and the
+     * result is a {@link TaskRevokedException}. Replaces the relative expiration.
+     *
+     * @param expires time when the task expires
+     * @return copy of these options with the expiration
+     */
+    public TaskOptions withExpires(Instant expires) {
+        return new TaskOptions(priority, eta, countdownMillis, checkNotNull(expires, "expires"), null, rateLimit);
+    }
+
+    /**
+     * Like {@link #withExpires(Instant)} but relative to each submission, eg. the time the caller waits for the
+     * result. Replaces the absolute expiration.
+     *
+     * @param expiresIn time since the submission after which the task expires
+     * @param unit unit of the time
+     * @return copy of these options with the expiration
+     */
+    public TaskOptions withExpiresIn(long expiresIn, TimeUnit unit) {
+        checkArgument(expiresIn >= 0, "expiresIn must not be negative");
+        return new TaskOptions(priority, eta, countdownMillis, null, unit.toMillis(expiresIn), rateLimit);
+    }
+
+    /**
+     * Shapes the submissions on the client - the submitting thread waits for a token of the bucket before the task is
+     * sent. Share the bucket by all the submissions to be limited together.
+     *
+     * @param rateLimit the bucket, eg. {@code TokenBucket.of("500/s")}, {@code null} not to limit the submissions
+     * @return copy of these options with the rate limit
+     */
+    public TaskOptions withRateLimit(@Nullable TokenBucket rateLimit) {
+        return new TaskOptions(priority, eta, countdownMillis, expires, expiresInMillis, rateLimit);
+    }
+
+    /**
+     * @return the priority, {@code null} if it's not set
+     */
+    @Nullable
+    public Integer getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return the ETA, {@code null} if it's not set
+     */
+    @Nullable
+    public Instant getEta() {
+        return eta;
+    }
+
+    /**
+     * @return the countdown in milliseconds, {@code null} if it's not set
+     */
+    @Nullable
+    public Long getCountdownMillis() {
+        return countdownMillis;
+    }
+
+    /**
+     * @return the expiration time, {@code null} if it's not set
+     */
+    @Nullable
+    public Instant getExpires() {
+        return expires;
+    }
+
+    /**
+     * @return the expiration relative to the submission in milliseconds, {@code null} if it's not set
+     */
+    @Nullable
+    public Long getExpiresInMillis() {
+        return expiresInMillis;
+    }
+
+    /**
+     * @return the client side rate limit, {@code null} if it's not set
+     */
+    @Nullable
+    public TokenBucket getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * Waits for a token of the rate limit, if there's one.
+     */
+    void awaitRateLimit() {
+        if (rateLimit != null) {
+            long delay = rateLimit.reserve();
+            if (delay > 0) {
+                Uninterruptibles.sleepUninterruptibly(delay, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * @return the options with the countdown and the expiration interval turned into times counted from {@code now},
+     *         without the rate limit
+     */
+    TaskOptions fixedAt(Instant now) {
+        return new TaskOptions(
+                priority,
+                eta == null && countdownMillis != null ? now.plusMillis(countdownMillis) : eta, null,
+                expires == null && expiresInMillis != null ? now.plusMillis(expiresInMillis) : expires, null,
+                null);
+    }
+
+    /**
+     * Sets the options on a task message, right before it's sent.
+     */
+    void applyTo(Message message) {
+        if (priority != null) {
+            message.setPriority(priority);
+        }
+        if (eta != null) {
+            message.getHeaders().setEta(Timestamps.format(eta));
+        } else if (countdownMillis != null) {
+            message.getHeaders().setEta(Timestamps.format(Instant.now().plusMillis(countdownMillis)));
+        }
+        if (expires != null) {
+            message.getHeaders().setExpires(Timestamps.format(expires));
+        } else if (expiresInMillis != null) {
+            message.getHeaders().setExpires(Timestamps.format(Instant.now().plusMillis(expiresInMillis)));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package vip.appcity.celery;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes body of a task message - {@code [args, kwargs, embed]} as described by Celery Message Protocol Version 2.
+ * <p>
+ *     The arguments are streamed by a {@link JsonGenerator} into a buffer, so no intermediate tree is built. Both the
+ *     generator and the buffer are kept per thread and reused by subsequent calls. The constant part after the
+ *     arguments is encoded only once. The only allocation that grows with the payload is the resulting byte array.
+ * </p>
+ * <p>
+ *     Binary formats get a new generator for every payload, as their generators may refer to earlier output (eg.
+ *     Smile back-references to names). The tail is written structurally for them, as well as for a task carrying the
+ *     rest of a {@link Chain}.
+ * </p>
+ */
+final class TaskPayloadWriter {
+
+    /** Empty kwargs and an embed object without any callbacks. */
+    private static final SerializedString PAYLOAD_TAIL =
+            new SerializedString(",{},{\"callbacks\":null,\"chain\":null,\"chord\":null,\"errbacks\":null}");
+    private static final String[] EMBED_FIELDS = {"callbacks", "chain", "chord", "errbacks"};
+
+    private final ObjectMapper mapper;
+    private final boolean json;
+    private final ThreadLocal<Output> outputs = new ThreadLocal<>();
+
+    /**
+     * @param mapper mapper of the serializer, see {@link vip.appcity.celery.spi.Serializer#getMapper()}
+     */
+    TaskPayloadWriter(ObjectMapper mapper) {
+        this.mapper = mapper;
+        this.json = JsonFactory.FORMAT_NAME_JSON.equals(mapper.getFactory().getFormatName());
+    }
+
+    /**
+     * @param args positional arguments of the task (need to be serializable)
+     * @return the encoded payload, UTF-8 for JSON
+     * @throws IOException if some argument can't be serialized
+     */
+    byte[] write(Object[] args) throws IOException {
+        return json ? writeJson(args) : writeStructured(args, null);
+    }
+
+    /**
+     * @param args positional arguments of the task (need to be serializable)
+     * @param chain the {@code chain} field of the embed object, see {@link Chain}; {@code null} for none
+     * @return the encoded payload, UTF-8 for JSON
+     * @throws IOException if some argument can't be serialized
+     */
+    byte[] write(Object[] args, @Nullable Object chain) throws IOException {
+        return chain != null ? writeStructured(args, chain) : write(args);
+    }
+
+    private byte[] writeStructured(Object[] args, @Nullable Object chain) throws IOException {
+        Buffer buffer = new Buffer();
+        try (JsonGenerator gen = mapper.getFactory().createGenerator(buffer)) {
+            gen.writeStartArray();
+            mapper.writeValue(gen, args);
+            gen.writeStartObject();
+            gen.writeEndObject();
+            gen.writeStartObject();
+            for (String field : EMBED_FIELDS) {
+                if (field.equals("chain") && chain != null) {
+                    gen.writeFieldName(field);
+                    mapper.writeValue(gen, chain);
+                } else {
+                    gen.writeNullField(field);
+                }
+            }
+            gen.writeEndObject();
+            gen.writeEndArray();
+        }
+        return buffer.toByteArray();
+    }
+
+    private byte[] writeJson(Object[] args) throws IOException {
+        Output out = outputs.get();
+        if (out == null) {
+            out = new Output(mapper);
+            outputs.set(out);
+        }
+
+        try {
+            out.buffer.reset();
+            JsonGenerator gen = out.generator;
+            gen.writeStartArray();
+            // args as a whole, so that the serialization context is set up once per payload
+            mapper.writeValue(gen, args);
+            gen.writeRaw(PAYLOAD_TAIL);
+            gen.writeEndArray();
+            gen.flush();
+        } catch (IOException | RuntimeException e) {
+            // the generator may be left in the middle of the payload
+            outputs.remove();
+            throw e;
+        }
+
+        return out.buffer.toByteArray();
+    }
+
+    /**
+     * A generator writing into its buffer. Payloads are written one after another as root-level values.
+     */
+    private static final class Output {
+
+        private final Buffer buffer = new Buffer();
+        private final JsonGenerator generator;
+
+        Output(ObjectMapper jsonMapper) throws IOException {
+            generator = jsonMapper.getFactory().createGenerator(buffer);
+            generator.setRootValueSeparator(null);
+        }
+    }
+
+    /**
+     * Growable byte buffer without synchronization. Buffers that grew too big are dropped on reset so that a single
+     * huge payload doesn't pin the memory for the lifetime of the thread.
+     */
+    private static final class Buffer extends OutputStream {
+
+        private static final int INITIAL_SIZE = 512;
+        private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+        private byte[] bytes = new byte[INITIAL_SIZE];
+        private int count = 0;
+
+        void reset() {
+            count = 0;
+            if (bytes.length > MAX_RETAINED_SIZE) {
+                bytes = new byte[INITIAL_SIZE];
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, count);
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(count + 1);
+            bytes[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(count + len);
+            System.arraycopy(b, off, bytes, count, len);
+            count += len;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+            }
+        }
+    }
+}
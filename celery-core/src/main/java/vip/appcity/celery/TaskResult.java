@@ -0,0 +1,49 @@
+package vip.appcity.celery;
+
+import javax.annotation.Nullable;
+
+/**
+ * Outcome of one task submitted through a {@link TaskStreamProcessor} - either the value returned by the task or the
+ * exception it failed with (including failures to submit it).
+ *
+ * @param <R> task result type
+ */
+public final class TaskResult<R> {
+
+    private final Signature signature;
+    private final R value;
+    private final Throwable error;
+
+    TaskResult(Signature signature, @Nullable R value, @Nullable Throwable error) {
+        this.signature = signature;
+        this.value = value;
+        this.error = error;
+    }
+
+    /**
+     * @return the submitted task
+     */
+    public Signature getSignature() {
+        return signature;
+    }
+
+    /**
+     * @return value returned by the task, {@code null} if it failed or if it returns nothing
+     */
+    @Nullable
+    public R getValue() {
+        return value;
+    }
+
+    /**
+     * @return the failure, {@code null} if the task succeeded
+     */
+    @Nullable
+    public Throwable getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+}
@@ -0,0 +1,11 @@
+package vip.appcity.celery;
+
+/**
+ * The task was revoked by the worker instead of being executed, eg. because it expired before the worker got to it.
+ */
+public class TaskRevokedException extends WorkerException {
+
+    public TaskRevokedException(String reason) {
+        super("TaskRevokedError", reason);
+    }
+}
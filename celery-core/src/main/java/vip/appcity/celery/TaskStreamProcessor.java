@@ -0,0 +1,213 @@
+package vip.appcity.celery;
+
+import org.reactivestreams.Processor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.Queue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A <a href="http://www.reactive-streams.org/">Reactive Streams</a> processor submitting the tasks it receives and
+ * emitting their results as they complete, created by {@link CeleryClientCore#processor(int)}.
+ * <p>
+ *     Tasks are requested from the upstream publisher only when the downstream subscriber has requested their results.
+ *     At most {@code maxInFlight} tasks are submitted but not yet emitted at any time, so neither the submitted tasks
+ *     nor their results pile up in memory. The results are emitted in the order the tasks finish, not in the order
+ *     they were received.
+ * </p>
+ * <p>
+ *     A failed task doesn't terminate the stream, its {@link TaskResult} carries the exception. An error signalled by
+ *     the upstream is passed on after the results of the already submitted tasks.
+ * </p>
+ *
+ * The processor supports a single subscriber and a single upstream subscription.
+ *
+ * @param <R> task result type
+ */
+public final class TaskStreamProcessor<R> implements Processor<Signature, TaskResult<R>> {
+
+    private static final Subscription CANCELLED = new Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    };
+
+    private final CeleryClientCore client;
+    private final int maxInFlight;
+
+    private final AtomicReference<Subscription> upstream = new AtomicReference<>();
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private volatile Subscriber<? super TaskResult<R>> downstream;
+
+    private final Queue<TaskResult<R>> completed = new ConcurrentLinkedQueue<>();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicLong active = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+
+    /** Tasks requested from upstream but not yet emitted downstream. Accessed only from {@link #drain()}. */
+    private long outstanding = 0;
+
+    private volatile boolean done = false;
+    private volatile Throwable error;
+    private volatile Throwable invalidRequest;
+    private volatile boolean cancelled = false;
+
+    TaskStreamProcessor(CeleryClientCore client, int maxInFlight) {
+        checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+        this.client = client;
+        this.maxInFlight = maxInFlight;
+    }
+
+    @Override
+    public void onSubscribe(Subscription s) {
+        checkNotNull(s, "subscription");
+        if (!upstream.compareAndSet(null, s)) {
+            s.cancel();
+            return;
+        }
+        drain();
+    }
+
+    @Override
+    public void onNext(Signature task) {
+        checkNotNull(task, "task");
+        if (cancelled) {
+            return;
+        }
+        active.incrementAndGet();
+        client.<R>submitAsync(task.getName(), task.getTaskId(), task.getArgs()).whenComplete((value, t) -> {
+            completed.add(new TaskResult<>(task, value, t instanceof CompletionException ? t.getCause() : t));
+            drain();
+        });
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        checkNotNull(t, "throwable");
+        error = t;
+        done = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        done = true;
+        drain();
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super TaskResult<R>> subscriber) {
+        checkNotNull(subscriber, "subscriber");
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(CANCELLED);
+            subscriber.onError(new IllegalStateException("TaskStreamProcessor allows only a single subscriber"));
+            return;
+        }
+
+        subscriber.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    invalidRequest = new IllegalArgumentException("Requested " + n + " results, must be positive");
+                } else {
+                    requested.accumulateAndGet(n, (r, add) -> r + add < 0 ? Long.MAX_VALUE : r + add);
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                cancelUpstream();
+                drain();
+            }
+        });
+        // set only now, so that nothing is signalled before onSubscribe returns
+        downstream = subscriber;
+        drain();
+    }
+
+    private void cancelUpstream() {
+        Subscription s = upstream.getAndSet(CANCELLED);
+        if (s != null) {
+            s.cancel();
+        }
+    }
+
+    /**
+     * Emits the completed results and requests more tasks from upstream. Serialized, only one thread runs the loop at
+     * a time and others just let it know there's more work.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+        do {
+            Subscriber<? super TaskResult<R>> a = downstream;
+            if (cancelled) {
+                completed.clear();
+            } else if (a != null) {
+                if (invalidRequest != null) {
+                    cancelUpstream();
+                    terminate(a, invalidRequest);
+                    continue;
+                }
+
+                long r = requested.get();
+                long e = 0;
+                while (e != r && !cancelled) {
+                    TaskResult<R> result = completed.poll();
+                    if (result == null) {
+                        break;
+                    }
+                    a.onNext(result);
+                    active.decrementAndGet();
+                    e++;
+                }
+                outstanding -= e;
+                if (e != 0 && r != Long.MAX_VALUE) {
+                    r = requested.addAndGet(-e);
+                }
+
+                if (done && active.get() == 0 && completed.isEmpty()) {
+                    terminate(a, error);
+                    continue;
+                }
+
+                Subscription s = upstream.get();
+                if (s != null && s != CANCELLED && !done) {
+                    long more = Math.min(r, maxInFlight) - outstanding;
+                    if (more > 0) {
+                        outstanding += more;
+                        s.request(more);
+                    }
+                }
+            }
+        } while ((missed = wip.addAndGet(-missed)) != 0);
+    }
+
+    private void terminate(Subscriber<? super TaskResult<R>> a, Throwable t) {
+        cancelled = true;
+        completed.clear();
+        if (t != null) {
+            a.onError(t);
+        } else {
+            a.onComplete();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package vip.appcity.celery;
+
+import javax.annotation.Nullable;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalAccessor;
+
+/**
+ * ISO 8601 timestamps of the message headers in the format of Python's {@code datetime.isoformat()}.
+ */
+final class Timestamps {
+
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSSSSxxx");
+
+    private Timestamps() {
+    }
+
+    static String format(Instant instant) {
+        return FORMAT.format(instant.atOffset(ZoneOffset.UTC));
+    }
+
+    /**
+     * @param header header value, the timestamps without offset are in UTC
+     * @return the parsed time, {@code null} if the header is not set or not a timestamp
+     */
+    @Nullable
+    static Instant parse(@Nullable Object header) {
+        if (header == null) {
+            return null;
+        }
+        try {
+            TemporalAccessor parsed = DateTimeFormatter.ISO_DATE_TIME.parseBest(
+                    header.toString(), OffsetDateTime::from, LocalDateTime::from);
+            return parsed instanceof OffsetDateTime
+                    ? ((OffsetDateTime) parsed).toInstant()
+                    : ((LocalDateTime) parsed).toInstant(ZoneOffset.UTC);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package vip.appcity.celery.backends;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Groups of tasks a results provider waits for. A group is joined by a counter of its missing results - its tasks
+ * don't get futures or listeners of their own, so even a large group costs just a small entry per task.
+ * <p>
+ *     Thread safety: the results can be completed from multiple threads.
+ * </p>
+ */
+public final class GroupResults {
+
+    private final Cache<String, Member> members = CacheBuilder.newBuilder()
+            .expireAfterWrite(2, TimeUnit.HOURS)
+            .build();
+
+    /**
+     * Starts waiting for the results of a group. Register the group before its tasks are sent not to miss a result.
+     * Cancel the returned future to stop waiting, eg. when the tasks couldn't be sent.
+     *
+     * @param taskIds IDs of the tasks of the group
+     * @param failFast fail as soon as a task fails, otherwise the group fails once all its tasks finish
+     * @param <R> task result type
+     * @return results in the order of {@code taskIds}, failed with the first failure of a task
+     */
+    public <R> ListenableFuture<List<R>> register(List<String> taskIds, boolean failFast) {
+        Group<R> group = new Group<>(taskIds.size(), failFast);
+        Member[] groupMembers = new Member[taskIds.size()];
+        for (int i = 0; i < taskIds.size(); i++) {
+            groupMembers[i] = new Member(group, i);
+            members.put(taskIds.get(i), groupMembers[i]);
+        }
+        group.future.addListener(() -> {
+            if (group.future.isCancelled()) {
+                for (int i = 0; i < groupMembers.length; i++) {
+                    members.asMap().remove(taskIds.get(i), groupMembers[i]);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+        return group.future;
+    }
+
+    /**
+     * @param taskId ID of the finished task
+     * @param result the task result, if it succeeded
+     * @param failure the task failure, {@code null} if it succeeded
+     * @return {@code false} if the task doesn't belong to any group
+     */
+    public boolean complete(String taskId, @Nullable Object result, @Nullable Throwable failure) {
+        Member member = members.asMap().remove(taskId);
+        if (member == null) {
+            return false;
+        }
+        member.group.complete(member.index, result, failure);
+        return true;
+    }
+
+    private static final class Member {
+
+        final Group<?> group;
+        final int index;
+
+        Member(Group<?> group, int index) {
+            this.group = group;
+            this.index = index;
+        }
+    }
+
+    private static final class Group<R> {
+
+        final Object[] results;
+        final AtomicInteger remaining;
+        final boolean failFast;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final SettableFuture<List<R>> future = SettableFuture.create();
+
+        Group(int size, boolean failFast) {
+            this.results = new Object[size];
+            this.remaining = new AtomicInteger(size);
+            this.failFast = failFast;
+            if (size == 0) {
+                future.set(Collections.emptyList());
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void complete(int index, @Nullable Object result, @Nullable Throwable failure) {
+            if (failure != null) {
+                this.failure.compareAndSet(null, failure);
+                if (failFast) {
+                    future.setException(failure);
+                }
+            } else {
+                results[index] = result;
+            }
+            // the counter publishes the results written before it to the thread completing the group
+            if (remaining.decrementAndGet() == 0) {
+                Throwable first = this.failure.get();
+                if (first != null) {
+                    future.setException(first);
+                } else {
+                    future.set(Collections.unmodifiableList(Arrays.asList((R[]) results)));
+                }
+            }
+        }
+    }
+}
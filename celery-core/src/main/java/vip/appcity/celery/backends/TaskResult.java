@@ -29,5 +29,6 @@ public class TaskResult {
         RETRY,
         SUCCESS,
         FAILURE,
+        REVOKED,
     }
 }
@@ -0,0 +1,90 @@
+package vip.appcity.celery.backends.memory;
+
+import vip.appcity.celery.TaskRevokedException;
+import vip.appcity.celery.WorkerException;
+import vip.appcity.celery.brokers.memory.MemoryVirtualHost;
+import vip.appcity.celery.spi.Backend;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ *     Backend, in Celery terminology, is a way to deliver task results back to the client.
+ * </p>
+ * <p>
+ *     This one completes the result futures of a client running in the same JVM directly, the client is found by the
+ *     reply-to of the task in the {@link MemoryVirtualHost}. The results are passed through JSON, so the client gets
+ *     the same types as it would from a remote worker.
+ * </p>
+ */
+@Slf4j
+public class MemoryBackend implements Backend {
+
+    private final MemoryVirtualHost host;
+    private final ObjectMapper jsonMapper;
+    private final Set<String> registeredClients = ConcurrentHashMap.newKeySet();
+
+    public MemoryBackend(MemoryVirtualHost host, ObjectMapper jsonMapper) {
+        this.host = host;
+        this.jsonMapper = jsonMapper;
+    }
+
+    public MemoryBackend(MemoryVirtualHost host) {
+        this(host, new ObjectMapper());
+    }
+
+    @Override
+    public <R> ResultsProvider<R> resultsProviderFor(String clientId) {
+        MemoryResultsProvider<R> provider = new MemoryResultsProvider<>(this);
+        host.registerResultsProvider(clientId, provider);
+        registeredClients.add(clientId);
+        return provider;
+    }
+
+    @Override
+    public <R> void reportResult(String taskId, String queue, String correlationId, R result) throws IOException {
+        MemoryResultsProvider<?> provider = providerFor(taskId, queue);
+        if (provider != null) {
+            // the same conversion as a result sent over the wire goes through
+            Object value = jsonMapper.readValue(jsonMapper.writeValueAsBytes(result), Object.class);
+            provider.complete(taskId, value);
+        }
+    }
+
+    @Override
+    public void reportException(String taskId, String replyTo, String correlationId, Throwable e) {
+        MemoryResultsProvider<?> provider = providerFor(taskId, replyTo);
+        if (provider != null) {
+            provider.fail(taskId, new WorkerException(e.getClass().getSimpleName(), e.getMessage()));
+        }
+    }
+
+    @Override
+    public void reportRevoked(String taskId, String replyTo, String correlationId, String reason) {
+        MemoryResultsProvider<?> provider = providerFor(taskId, replyTo);
+        if (provider != null) {
+            provider.fail(taskId, new TaskRevokedException(reason));
+        }
+    }
+
+    private MemoryResultsProvider<?> providerFor(String taskId, String clientId) {
+        MemoryResultsProvider<?> provider = clientId != null
+                ? (MemoryResultsProvider<?>) host.getResultsProvider(clientId)
+                : null;
+        if (provider == null) {
+            log.debug("CeleryTask {} - no client {} to report the result to", taskId, clientId);
+        }
+        return provider;
+    }
+
+    @Override
+    public void close() {
+        registeredClients.forEach(host::unregisterResultsProvider);
+        registeredClients.clear();
+    }
+}
@@ -0,0 +1,28 @@
+package vip.appcity.celery.backends.memory;
+
+import vip.appcity.celery.brokers.memory.MemoryVirtualHost;
+import vip.appcity.celery.spi.BackendFactory;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A factory class for {@link MemoryBackend}. The URI is {@code memory://name}, see {@link MemoryVirtualHost}.
+ */
+public class MemoryBackendFactory implements BackendFactory {
+
+    private static final Set<String> PROTOCOLS = ImmutableSet.of(MemoryVirtualHost.PROTOCOL);
+
+    @Override
+    public Set<String> getProtocols() {
+        return PROTOCOLS;
+    }
+
+    @Override
+    public MemoryBackend createBackend(URI uri, ExecutorService executor) {
+        return new MemoryBackend(MemoryVirtualHost.forUri(uri));
+    }
+}
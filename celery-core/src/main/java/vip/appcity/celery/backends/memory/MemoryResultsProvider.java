@@ -0,0 +1,99 @@
+package vip.appcity.celery.backends.memory;
+
+import vip.appcity.celery.backends.GroupResults;
+import vip.appcity.celery.spi.Backend;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Results provider of {@link MemoryBackend}, completed by the backend of the worker.
+ * <p>
+ *     Results somebody asked for are kept for 2 hours like in the other backends. Results reported before anybody
+ *     asked for them (eg. of tasks submitted without waiting) are kept only for a minute, for a caller asking late.
+ * </p>
+ */
+class MemoryResultsProvider<R> implements Backend.ResultsProvider<R> {
+
+    private static final long REPORTED_EXPIRY_MINUTES = 1;
+
+    private final MemoryBackend backend;
+    /** Results asked for by {@link #getResult(String)}. */
+    private final LoadingCache<String, SettableFuture<R>> tasks;
+    /** Results reported before anybody asked for them, moved to {@code tasks} once somebody does. */
+    private final LoadingCache<String, SettableFuture<R>> reported;
+    /** Guards moving a result between the caches. */
+    private final Object lock = new Object();
+    private final GroupResults groups = new GroupResults();
+
+    MemoryResultsProvider(MemoryBackend backend) {
+        this(backend, Ticker.systemTicker());
+    }
+
+    /**
+     * @param ticker source of the time of the expiration, the system one except in tests
+     */
+    MemoryResultsProvider(MemoryBackend backend, Ticker ticker) {
+        this.backend = backend;
+        this.tasks = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .expireAfterWrite(2, TimeUnit.HOURS)
+                .build(CacheLoader.from(SettableFuture::create));
+        this.reported = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .expireAfterWrite(REPORTED_EXPIRY_MINUTES, TimeUnit.MINUTES)
+                .build(CacheLoader.from(SettableFuture::create));
+    }
+
+    @Override
+    public ListenableFuture<R> getResult(String taskId) {
+        synchronized (lock) {
+            SettableFuture<R> result = reported.asMap().remove(taskId);
+            if (result != null) {
+                tasks.put(taskId, result);
+                return result;
+            }
+            return tasks.getUnchecked(taskId);
+        }
+    }
+
+    @Override
+    public ListenableFuture<List<R>> getGroupResult(List<String> taskIds, boolean failFast) {
+        return groups.register(taskIds, failFast);
+    }
+
+    @SuppressWarnings("unchecked")
+    void complete(String taskId, Object value) {
+        if (!groups.complete(taskId, value, null)) {
+            resultOf(taskId).set((R) value);
+        }
+    }
+
+    void fail(String taskId, Throwable exception) {
+        if (!groups.complete(taskId, null, exception)) {
+            resultOf(taskId).setException(exception);
+        }
+    }
+
+    /**
+     * @return future of the result of a finished task, completed outside of the lock
+     */
+    private SettableFuture<R> resultOf(String taskId) {
+        synchronized (lock) {
+            SettableFuture<R> awaited = tasks.getIfPresent(taskId);
+            return awaited != null ? awaited : reported.getUnchecked(taskId);
+        }
+    }
+
+    @Override
+    public MemoryBackend getBackend() {
+        return backend;
+    }
+}
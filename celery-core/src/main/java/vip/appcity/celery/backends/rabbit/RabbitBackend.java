@@ -1,13 +1,17 @@
 package vip.appcity.celery.backends.rabbit;
 
+import vip.appcity.celery.Compression;
 import vip.appcity.celery.backends.TaskResult;
+import vip.appcity.celery.serialization.Serializers;
 import vip.appcity.celery.spi.Backend;
+import vip.appcity.celery.spi.Serializer;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableMap;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
@@ -23,18 +27,29 @@ import java.util.Map;
  */
 public class RabbitBackend implements Backend {
 
-    private static final String CONTENT_TYPE = "application/json";
-    private static final String ENCODING = "utf-8";
     private static final ImmutableMap<String, Object> QUEUE_ARGS = ImmutableMap.of(
             "x-expires", 24 * 3600 * 1000
     );
 
     final Channel channel;
     final ObjectMapper jsonMapper;
-
-    public RabbitBackend(Channel channel, ObjectMapper jsonMapper) {
+    final Serializer json;
+    private final Compression compression;
+
+    /**
+     * @param channel the RabbitMQ channel to be used
+     * @param jsonMapper the JSON mapper for the results
+     * @param compression compression of the reported results, {@code null} not to compress them
+     */
+    public RabbitBackend(Channel channel, ObjectMapper jsonMapper, @Nullable Compression compression) {
         this.channel = channel;
         this.jsonMapper = jsonMapper;
+        this.json = Serializers.json(jsonMapper);
+        this.compression = compression;
+    }
+
+    public RabbitBackend(Channel channel, ObjectMapper jsonMapper) {
+        this(channel, jsonMapper, null);
     }
 
     public RabbitBackend(Channel channel) {
@@ -53,42 +68,74 @@ public class RabbitBackend implements Backend {
 
     @Override
     public <R> void reportResult(String taskId, String queue, String correlationId, R result) throws IOException {
-        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
-                .correlationId(correlationId)
-                .priority(0)
-                .deliveryMode(1)
-                .contentType(CONTENT_TYPE)
-                .contentEncoding(ENCODING)
-                .build();
+        reportResult(taskId, queue, correlationId, result, json);
+    }
 
+    @Override
+    public <R> void reportResult(
+            String taskId, String queue, String correlationId, R result, Serializer serializer
+    ) throws IOException {
         TaskResult res = new TaskResult();
         res.result = result;
         res.taskId = taskId;
         res.status = TaskResult.Status.SUCCESS;
 
-        channel.basicPublish("", queue, properties, jsonMapper.writeValueAsBytes(res));
+        publish(queue, correlationId, res, serializer);
     }
 
     @Override
     public void reportException(String taskId, String replyTo, String correlationId, Throwable e) throws IOException {
-        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
-                .correlationId(correlationId)
-                .priority(0)
-                .deliveryMode(1)
-                .contentType(CONTENT_TYPE)
-                .contentEncoding(ENCODING)
-                .build();
+        reportException(taskId, replyTo, correlationId, e, json);
+    }
 
+    @Override
+    public void reportException(
+            String taskId, String replyTo, String correlationId, Throwable e, Serializer serializer
+    ) throws IOException {
+        reportFailure(taskId, replyTo, correlationId, TaskResult.Status.FAILURE,
+                e.getClass().getSimpleName(), e.getMessage(), serializer);
+    }
+
+    @Override
+    public void reportRevoked(String taskId, String replyTo, String correlationId, String reason)
+            throws IOException {
+        // the same exception a Python worker reports
+        reportFailure(taskId, replyTo, correlationId, TaskResult.Status.REVOKED, "TaskRevokedError", reason, json);
+    }
+
+    private void reportFailure(
+            String taskId, String replyTo, String correlationId, TaskResult.Status status,
+            String excType, String excMessage, Serializer serializer
+    ) throws IOException {
         Map<String, String> excInfo = new HashMap<>();
-        excInfo.put("exc_type", e.getClass().getSimpleName());
-        excInfo.put("exc_message", e.getMessage());
+        excInfo.put("exc_type", excType);
+        excInfo.put("exc_message", excMessage);
 
         TaskResult res = new TaskResult();
         res.result = excInfo;
         res.taskId = taskId;
-        res.status = TaskResult.Status.FAILURE;
+        res.status = status;
+
+        publish(replyTo, correlationId, res, serializer);
+    }
+
+    private void publish(String queue, String correlationId, TaskResult res, Serializer serializer)
+            throws IOException {
+        AMQP.BasicProperties.Builder properties = new AMQP.BasicProperties.Builder()
+                .correlationId(correlationId)
+                .priority(0)
+                .deliveryMode(1)
+                .contentType(serializer.getContentType())
+                .contentEncoding(serializer.getContentEncoding());
+
+        byte[] body = serializer.getMapper().writeValueAsBytes(res);
+        byte[] compressed = compression != null ? compression.compress(body) : null;
+        if (compressed != null) {
+            properties.headers(ImmutableMap.of("compression", compression.getCompressor().getContentType()));
+            body = compressed;
+        }
 
-        channel.basicPublish("", replyTo, properties, jsonMapper.writeValueAsBytes(res));
+        channel.basicPublish("", queue, properties.build(), body);
     }
 
     @Override
@@ -9,10 +9,16 @@ import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
 import lombok.extern.slf4j.Slf4j;
+import vip.appcity.celery.TaskRevokedException;
 import vip.appcity.celery.WorkerException;
+import vip.appcity.celery.backends.GroupResults;
 import vip.appcity.celery.backends.TaskResult;
+import vip.appcity.celery.compression.Compressors;
+import vip.appcity.celery.serialization.Serializers;
+import vip.appcity.celery.spi.Serializer;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -26,6 +32,7 @@ class RabbitResultConsumer<R> extends DefaultConsumer implements RabbitBackend.R
     private final LoadingCache<String, SettableFuture<R>> tasks = CacheBuilder.newBuilder()
             .expireAfterWrite(2, TimeUnit.HOURS)
             .build(CacheLoader.from(SettableFuture::create));
+    private final GroupResults groups = new GroupResults();
 
     RabbitResultConsumer(RabbitBackend backend) {
         super(backend.channel);
@@ -37,13 +44,23 @@ class RabbitResultConsumer<R> extends DefaultConsumer implements RabbitBackend.R
         return tasks.getUnchecked(taskId);
     }
 
+    @Override
+    public ListenableFuture<List<R>> getGroupResult(List<String> taskIds, boolean failFast) {
+        return groups.register(taskIds, failFast);
+    }
+
     @Override
     public void handleDelivery(
             String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body
     ) throws IOException {
         TaskResult payload;
         try {
-            payload = backend.jsonMapper.readValue(body, TaskResult.class);
+            Object compression = properties != null && properties.getHeaders() != null
+                    ? properties.getHeaders().get("compression")
+                    : null;
+            Serializer serializer = Serializers.forContentType(
+                    properties != null ? properties.getContentType() : null, backend.json);
+            payload = serializer.getMapper().readValue(Compressors.decompress(compression, body), TaskResult.class);
         } catch (IOException e) {
             log.error(String.format("could not read payload for deliveryTag=%d", envelope.getDeliveryTag()), e);
             getChannel().basicNack(envelope.getDeliveryTag(), false, false);
@@ -55,13 +72,21 @@ class RabbitResultConsumer<R> extends DefaultConsumer implements RabbitBackend.R
             return;
         }
 
-        SettableFuture<R> future = tasks.getUnchecked(payload.taskId);
+        Throwable failure = null;
+        if (payload.status == TaskResult.Status.REVOKED) {
+            Map<String, Object> exc = payload.getResult();
+            failure = new TaskRevokedException(String.valueOf(exc.get("exc_message")));
+        } else if (payload.status != TaskResult.Status.SUCCESS) {
+            Map<String, String> exc = payload.getResult();
+            failure = new WorkerException(exc.get("exc_type"), exc.get("exc_message"));
+        }
+
         boolean setAccepted;
-        if (payload.status == TaskResult.Status.SUCCESS) {
-            setAccepted = future.set(payload.getResult());
+        if (groups.complete(payload.taskId, failure == null ? payload.getResult() : null, failure)) {
+            setAccepted = true;
         } else {
-            Map<String, String> exc = payload.getResult();
-            setAccepted = future.setException(new WorkerException(exc.get("exc_type"), exc.get("exc_message")));
+            SettableFuture<R> future = tasks.getUnchecked(payload.taskId);
+            setAccepted = failure == null ? future.set(payload.getResult()) : future.setException(failure);
         }
 
         if (setAccepted) {
@@ -0,0 +1,84 @@
+package vip.appcity.celery.blobs;
+
+import vip.appcity.celery.spi.BlobStore;
+
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * {@link BlobStore} keeping the blobs as files in a local (or mounted) directory. The key is SHA-256 of the data, the
+ * file is {@code <directory>/<first two hex digits>/<key>}.
+ * <p>
+ *     Blobs are written to a temporary file and moved in place, so readers never see a partial blob, and a blob that
+ *     already exists is not written again. Reads map the file into memory instead of copying it to the heap.
+ * </p>
+ * <p>
+ *     The store never deletes the blobs, expire them by an external job (eg. by the file modification time).
+ * </p>
+ */
+public final class FileBlobStore implements BlobStore {
+
+    private static final Pattern KEY = Pattern.compile("[0-9a-f]{64}");
+
+    private final Path directory;
+
+    /**
+     * @param directory root directory of the store, created if it doesn't exist
+     */
+    public FileBlobStore(Path directory) {
+        this.directory = checkNotNull(directory, "directory");
+    }
+
+    @Override
+    public String put(byte[] data) throws IOException {
+        String key = Hashing.sha256().hashBytes(data).toString();
+        Path file = fileFor(key);
+        if (Files.exists(file)) {
+            return key;
+        }
+
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), key, ".tmp");
+        try {
+            Files.write(temp, data);
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file);
+            }
+        } catch (FileAlreadyExistsException e) {
+            // stored concurrently by someone else, the content is the same
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return key;
+    }
+
+    @Override
+    public ByteBuffer get(String key) throws IOException {
+        try (FileChannel channel = FileChannel.open(fileFor(key), StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private Path fileFor(String key) throws IOException {
+        // the key comes from the message, don't let it escape the directory
+        if (!KEY.matcher(key).matches()) {
+            throw new IOException("Invalid blob key: " + key);
+        }
+        return directory.resolve(key.substring(0, 2)).resolve(key);
+    }
+}
@@ -0,0 +1,38 @@
+package vip.appcity.celery.brokers.memory;
+
+import vip.appcity.celery.spi.Broker;
+import vip.appcity.celery.spi.Message;
+
+/**
+ * In-memory broker delivers messages to the workers running in the same JVM, see {@link MemoryVirtualHost}.
+ * <p>
+ *     Sending a message only puts it into a lock-free queue, nothing is copied or serialized on the way.
+ * </p>
+ */
+public class MemoryBroker implements Broker {
+
+    private final MemoryVirtualHost host;
+
+    public MemoryBroker(MemoryVirtualHost host) {
+        this.host = host;
+    }
+
+    @Override
+    public void declareQueue(String name) {
+        host.queue(name);
+    }
+
+    @Override
+    public Message newMessage() {
+        return new MemoryMessage(this);
+    }
+
+    MemoryVirtualHost getHost() {
+        return host;
+    }
+
+    @Override
+    public void close() {
+        // the queues belong to the host, the workers may still consume them
+    }
+}
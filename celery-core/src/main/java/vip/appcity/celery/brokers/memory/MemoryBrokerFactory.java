@@ -0,0 +1,27 @@
+package vip.appcity.celery.brokers.memory;
+
+import vip.appcity.celery.spi.BrokerFactory;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A factory class for {@link MemoryBroker}. The URI is {@code memory://name}, see {@link MemoryVirtualHost}.
+ */
+public class MemoryBrokerFactory implements BrokerFactory {
+
+    private static final Set<String> PROTOCOLS = ImmutableSet.of(MemoryVirtualHost.PROTOCOL);
+
+    @Override
+    public Set<String> getProtocols() {
+        return PROTOCOLS;
+    }
+
+    @Override
+    public MemoryBroker createBroker(URI uri, ExecutorService executor) {
+        return new MemoryBroker(MemoryVirtualHost.forUri(uri));
+    }
+}
@@ -0,0 +1,177 @@
+package vip.appcity.celery.brokers.memory;
+
+import vip.appcity.celery.spi.Message;
+
+import com.google.common.base.Strings;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implementation of in-memory message for {@link MemoryBroker}. Once sent, the message is handed over to the worker
+ * as it is and must not be modified anymore.
+ */
+public class MemoryMessage implements Message {
+
+    private final MemoryBroker broker;
+    private final MemoryMessageHeaders headers;
+
+    private byte[] body = null;
+    private String contentEncoding;
+    private String contentType;
+    private String replyTo;
+    private String correlationId;
+    private int priority = 0;
+
+    MemoryMessage(MemoryBroker broker) {
+        this.broker = broker;
+        this.headers = new MemoryMessageHeaders(new HashMap<>(16));
+    }
+
+    private MemoryMessage(MemoryMessage template) {
+        this.broker = template.broker;
+        this.headers = new MemoryMessageHeaders(new HashMap<>(template.headers.map));
+        this.body = template.body;
+        this.contentEncoding = template.contentEncoding;
+        this.contentType = template.contentType;
+        this.replyTo = template.replyTo;
+        this.correlationId = template.correlationId;
+        this.priority = template.priority;
+    }
+
+    @Override
+    public void setBody(byte[] body) {
+        this.body = body;
+    }
+
+    @Override
+    public void setContentEncoding(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    @Override
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    @Override
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    @Override
+    public Headers getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public Message copy() {
+        return new MemoryMessage(this);
+    }
+
+    @Override
+    public void send(String queue) {
+        broker.getHost().queue(Strings.isNullOrEmpty(queue) ? "celery" : queue).add(this);
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * @return the priority, the memory broker delivers messages in the order they were sent regardless of it
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Nullable
+    public String getReplyTo() {
+        return replyTo;
+    }
+
+    @Nullable
+    public String getCorrelationId() {
+        return correlationId;
+    }
+
+    /**
+     * @param name Celery message header, eg. {@code id} or {@code task}
+     * @return value of the header, {@code null} if it's not set
+     */
+    @Nullable
+    public Object getHeader(String name) {
+        return headers.map.get(name);
+    }
+
+    class MemoryMessageHeaders implements Headers {
+
+        private final Map<String, Object> map;
+
+        MemoryMessageHeaders(Map<String, Object> map) {
+            this.map = map;
+        }
+
+        @Override
+        public void setId(String id) {
+            correlationId = id;
+            map.put("root_id", id);
+            map.put("id", id);
+        }
+
+        @Override
+        public void setArgsRepr(String argsRepr) {
+            map.put("argsrepr", argsRepr);
+        }
+
+        @Override
+        public void setOrigin(String origin) {
+            map.put("origin", origin);
+        }
+
+        @Override
+        public void setReplyTo(String clientId) {
+            replyTo = clientId;
+        }
+
+        @Override
+        public void setTaskName(String task) {
+            map.put("task", task);
+        }
+
+        @Override
+        public void setCompression(String contentType) {
+            map.put("compression", contentType);
+        }
+
+        @Override
+        public void setBlobArgs(List<Integer> indices) {
+            map.put("blob_args", indices);
+        }
+
+        @Override
+        public void setEta(String eta) {
+            map.put("eta", eta);
+        }
+
+        @Override
+        public void setExpires(String expires) {
+            map.put("expires", expires);
+        }
+
+        @Override
+        public void setGroup(String groupId) {
+            map.put("group", groupId);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package vip.appcity.celery.brokers.memory;
+
+import vip.appcity.celery.spi.Backend.ResultsProvider;
+
+import com.google.common.base.Strings;
+
+import javax.annotation.Nullable;
+import java.net.URI;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedTransferQueue;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A named set of in-memory queues shared by all clients and workers of one JVM that use the same {@code memory://}
+ * URI. The URI authority is the name, eg. {@code memory://orders} and {@code memory://orders/} share the host.
+ * <p>
+ *     Task queues are lock-free {@link LinkedTransferQueue}s created on first use. Results are not queued at all, the
+ *     backend completes the futures of the {@link ResultsProvider} registered for the client directly.
+ * </p>
+ *
+ * The hosts live as long as the JVM, nothing is persisted.
+ */
+public final class MemoryVirtualHost {
+
+    public static final String PROTOCOL = "memory";
+
+    private static final ConcurrentMap<String, MemoryVirtualHost> HOSTS = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final ConcurrentMap<String, BlockingQueue<MemoryMessage>> queues = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ResultsProvider<?>> resultsProviders = new ConcurrentHashMap<>();
+
+    private MemoryVirtualHost(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param uri {@code memory://name} URI
+     * @return the host with the name given by the URI authority
+     */
+    public static MemoryVirtualHost forUri(URI uri) {
+        checkArgument(PROTOCOL.equals(uri.getScheme()), "the protocol must be memory://");
+        return named(Strings.nullToEmpty(uri.getAuthority()));
+    }
+
+    /**
+     * @param name host name, the URI authority
+     * @return the host, created if it doesn't exist yet
+     */
+    public static MemoryVirtualHost named(String name) {
+        return HOSTS.computeIfAbsent(name, MemoryVirtualHost::new);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param name queue name
+     * @return the queue, created if it doesn't exist yet
+     */
+    public BlockingQueue<MemoryMessage> queue(String name) {
+        return queues.computeIfAbsent(name, n -> new LinkedTransferQueue<>());
+    }
+
+    /**
+     * Makes the provider receive results of tasks sent with the given reply-to.
+     *
+     * @param clientId client ID, as used in reply-to of the messages
+     * @param provider the client's results provider
+     */
+    public void registerResultsProvider(String clientId, ResultsProvider<?> provider) {
+        resultsProviders.put(clientId, provider);
+    }
+
+    public void unregisterResultsProvider(String clientId) {
+        resultsProviders.remove(clientId);
+    }
+
+    /**
+     * @param clientId client ID, as used in reply-to of the messages
+     * @return provider registered by the client, {@code null} if there's none
+     */
+    @Nullable
+    public ResultsProvider<?> getResultsProvider(String clientId) {
+        return resultsProviders.get(clientId);
+    }
+}
@@ -0,0 +1,176 @@
+package vip.appcity.celery.brokers.rabbit;
+
+import com.rabbitmq.client.Channel;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A bounded pool of the publishing channels of {@link RabbitBroker}. A channel is borrowed for a single publish (or
+ * a batch) and returned right after, so a few channels serve any number of submitting threads.
+ * <p>
+ *     Borrowers hold a permit, there are as many permits as channels, so no more channels are ever opened and a
+ *     borrower waits when all of them are in use. The idle channels are kept in lock-striped stacks - a thread takes
+ *     and returns channels to its own stripe and only scans the other stripes if its own is empty, so the threads
+ *     don't contend on a single lock. Channels closed by the broker (eg. after a protocol error) are dropped and
+ *     replaced by new ones.
+ * </p>
+ *
+ * Thread safety: channels can be borrowed and returned from multiple threads.
+ */
+@Slf4j
+class ChannelPool {
+
+    private final int maxChannels;
+    private final long timeoutNanos;
+    private final Opener opener;
+    private final Consumer<Channel> onDiscard;
+    private final Semaphore permits;
+    private final ArrayDeque<Channel>[] stripes;
+    private final AtomicInteger opened = new AtomicInteger();
+
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+
+    /**
+     * @param maxChannels maximal number of open channels
+     * @param timeout how long to wait for a channel when all of them are in use
+     * @param unit unit of {@code timeout}
+     * @param opener opens a new channel
+     * @param onDiscard called with each channel dropped from the pool
+     */
+    @SuppressWarnings("unchecked")
+    ChannelPool(int maxChannels, long timeout, TimeUnit unit, Opener opener, Consumer<Channel> onDiscard) {
+        checkArgument(maxChannels > 0, "maxChannels must be positive");
+        this.maxChannels = maxChannels;
+        this.timeoutNanos = unit.toNanos(timeout);
+        this.opener = opener;
+        this.onDiscard = onDiscard;
+        this.permits = new Semaphore(maxChannels);
+        // a power of two to be indexed by a mask, there's no use for more stripes than channels
+        int stripeCount = Integer.highestOneBit(Math.min(maxChannels, 2 * Runtime.getRuntime().availableProcessors()));
+        this.stripes = new ArrayDeque[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Borrows a channel, it has to be {@link #giveBack(Channel) given back} once the caller is done with it.
+     *
+     * @throws IOException if no channel is available in time or a new channel can't be opened
+     */
+    Channel borrow() throws IOException {
+        long started = System.nanoTime();
+        try {
+            if (!permits.tryAcquire() && !permits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                throw new IOException("No channel available in time, all " + maxChannels + " channels are in use");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a channel", e);
+        } finally {
+            borrows.increment();
+            waitNanos.add(System.nanoTime() - started);
+        }
+
+        try {
+            return takeOrOpen();
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a borrowed channel to the pool, a closed one is dropped.
+     */
+    void giveBack(Channel channel) {
+        try {
+            if (channel.isOpen()) {
+                ArrayDeque<Channel> stripe = ownStripe();
+                synchronized (stripe) {
+                    stripe.push(channel);
+                }
+            } else {
+                discard(channel);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private Channel takeOrOpen() throws IOException {
+        int home = stripeIndex();
+        while (true) {
+            for (int i = 0; i < stripes.length; i++) {
+                ArrayDeque<Channel> stripe = stripes[(home + i) & (stripes.length - 1)];
+                Channel channel;
+                synchronized (stripe) {
+                    channel = stripe.poll();
+                }
+                if (channel == null) {
+                    continue;
+                }
+                if (channel.isOpen()) {
+                    return channel;
+                }
+                discard(channel);
+            }
+            // holding a permit, an idle channel must exist if all of them are open, it's being given back
+            int count = opened.get();
+            if (count < maxChannels && opened.compareAndSet(count, count + 1)) {
+                try {
+                    return opener.open();
+                } catch (IOException | RuntimeException e) {
+                    opened.decrementAndGet();
+                    throw e;
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    private void discard(Channel channel) {
+        opened.decrementAndGet();
+        onDiscard.accept(channel);
+        log.debug("Dropped closed channel {}", channel.getChannelNumber());
+    }
+
+    private ArrayDeque<Channel> ownStripe() {
+        return stripes[stripeIndex()];
+    }
+
+    private int stripeIndex() {
+        // spreads the sequential thread IDs over the stripes
+        int hash = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        return (hash >>> 16) & (stripes.length - 1);
+    }
+
+    int getOpenChannels() {
+        return opened.get();
+    }
+
+    long getBorrowCount() {
+        return borrows.sum();
+    }
+
+    long getWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    /**
+     * Opens a new channel.
+     */
+    interface Opener {
+        Channel open() throws IOException;
+    }
+}
@@ -0,0 +1,178 @@
+package vip.appcity.celery.brokers.rabbit;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>
+ *     Publisher confirms for {@link RabbitBroker}. Every channel of the broker is put into confirm mode and the
+ *     sequence numbers of unconfirmed messages are tracked until the broker acks (or nacks) them.
+ * </p>
+ * <p>
+ *     The number of unconfirmed messages over all channels is limited by the in-flight window. When the window is
+ *     full, publishing either waits for a free slot or fails right away.
+ * </p>
+ */
+class PublisherConfirms {
+
+    private final Semaphore window;
+    private final boolean blockWhenFull;
+    private final long timeoutNanos;
+
+    /**
+     * @param maxInFlight maximal number of messages waiting for a confirm
+     * @param blockWhenFull whether to wait (up to {@code timeout}) for a free slot when the window is full
+     * @param timeout how long to wait for a free slot or for a confirm
+     * @param unit unit of {@code timeout}
+     */
+    PublisherConfirms(int maxInFlight, boolean blockWhenFull, long timeout, TimeUnit unit) {
+        checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+        this.window = new Semaphore(maxInFlight);
+        this.blockWhenFull = blockWhenFull;
+        this.timeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Puts the channel into confirm mode.
+     *
+     * @return tracker that has to be used for all publishing on the channel
+     * @throws IOException if the channel can't be switched to confirm mode
+     */
+    Tracker enable(Channel channel) throws IOException {
+        channel.confirmSelect();
+        Tracker tracker = new Tracker(channel);
+        channel.addConfirmListener(tracker);
+        channel.addShutdownListener(tracker);
+        return tracker;
+    }
+
+    /**
+     * Waits until the broker confirms the message.
+     *
+     * @param confirm as returned by {@link Tracker#publish(Publish)}
+     * @throws IOException if the message was nacked or not confirmed in time
+     */
+    void await(ListenableFuture<Void> confirm) throws IOException {
+        try {
+            confirm.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (TimeoutException e) {
+            throw new IOException("Message not confirmed by the broker in time", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the confirm", e);
+        }
+    }
+
+    private void acquire() throws IOException {
+        boolean acquired;
+        try {
+            acquired = blockWhenFull
+                    ? window.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)
+                    : window.tryAcquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the in-flight window", e);
+        }
+        if (!acquired) {
+            throw new IOException("Too many messages waiting for a publisher confirm");
+        }
+    }
+
+    /**
+     * The publishing action, called with the sequence number already registered.
+     */
+    interface Publish {
+        void run() throws IOException;
+    }
+
+    /**
+     * Outstanding confirms of a single channel.
+     */
+    class Tracker implements ConfirmListener, ShutdownListener {
+
+        private final Channel channel;
+        private final ConcurrentNavigableMap<Long, SettableFuture<Void>> outstanding = new ConcurrentSkipListMap<>();
+
+        private Tracker(Channel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Publishes a message and registers it for confirmation. The caller must not publish on the same channel
+         * concurrently.
+         *
+         * @return future completed once the broker confirms the message
+         * @throws IOException if publishing fails or the in-flight window is full
+         */
+        ListenableFuture<Void> publish(Publish publish) throws IOException {
+            acquire();
+            long seqNo = channel.getNextPublishSeqNo();
+            SettableFuture<Void> confirm = SettableFuture.create();
+            outstanding.put(seqNo, confirm);
+            try {
+                publish.run();
+            } catch (IOException | RuntimeException e) {
+                if (outstanding.remove(seqNo) != null) {
+                    window.release();
+                }
+                throw e;
+            }
+            return confirm;
+        }
+
+        @Override
+        public void handleAck(long deliveryTag, boolean multiple) {
+            complete(deliveryTag, multiple, null);
+        }
+
+        @Override
+        public void handleNack(long deliveryTag, boolean multiple) {
+            complete(deliveryTag, multiple, new IOException("Message rejected by the broker"));
+        }
+
+        @Override
+        public void shutdownCompleted(ShutdownSignalException cause) {
+            for (Map.Entry<Long, SettableFuture<Void>> entry : outstanding.entrySet()) {
+                if (outstanding.remove(entry.getKey(), entry.getValue())) {
+                    window.release();
+                    entry.getValue().setException(new IOException("Channel closed before confirm", cause));
+                }
+            }
+        }
+
+        private void complete(long deliveryTag, boolean multiple, IOException error) {
+            Map<Long, SettableFuture<Void>> confirmed = multiple
+                    ? outstanding.headMap(deliveryTag, true)
+                    : outstanding.subMap(deliveryTag, true, deliveryTag, true);
+
+            for (Map.Entry<Long, SettableFuture<Void>> entry : confirmed.entrySet()) {
+                if (outstanding.remove(entry.getKey(), entry.getValue())) {
+                    window.release();
+                    if (error == null) {
+                        entry.getValue().set(null);
+                    } else {
+                        entry.getValue().setException(error);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -3,71 +3,190 @@ package vip.appcity.celery.brokers.rabbit;
 import vip.appcity.celery.spi.Broker;
 import vip.appcity.celery.spi.Message;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalNotification;
-import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
-import lombok.extern.slf4j.Slf4j;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
-import java.util.concurrent.ExecutionException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * RabbitMQ broker delivers messages to the workers.
+ * <p>
+ *     When created with {@link PublisherConfirms}, every publish waits for the broker to confirm the message.
+ *     Batches sent via {@link #sendAll(String, List)} are published first and only then the confirms are awaited.
+ * </p>
+ * <p>
+ *     Messages are published over a bounded pool of channels, see {@link ChannelPool}. A channel is held only while
+ *     publishing, not while waiting for the confirms, so the default of {@value #DEFAULT_CHANNEL_POOL_SIZE} channels
+ *     serves any number of submitting threads.
+ * </p>
+ * <p>
+ *     A single connection writes all the frames of its channels through one socket. Created with more connections,
+ *     the broker opens the pooled channels over them in turn, so that publishing scales with the cores.
+ * </p>
  */
-@Slf4j
 public class RabbitBroker implements Broker {
 
-    private final Connection connection;
-    private final Cache<Long, Channel> channels = CacheBuilder.newBuilder()
-            .expireAfterAccess(10, TimeUnit.MINUTES)
-            .removalListener(this::closeRemovedChannel)
-            .build();
+    static final int DEFAULT_CHANNEL_POOL_SIZE = 16;
+    private static final long CHANNEL_WAIT_TIMEOUT_SECONDS = 30;
+
+    private final List<Connection> connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    private final ChannelPool channels;
+    private final PublisherConfirms confirms;
+    private final Map<String, Object> queueArguments;
+    private final Map<Channel, PublisherConfirms.Tracker> confirmTrackers = new ConcurrentHashMap<>();
 
     public RabbitBroker(Connection connection) {
-        this.connection = connection;
+        this(connection, null);
     }
 
-    private void closeRemovedChannel(RemovalNotification<Long, Channel> notification) {
-        if (!connection.isOpen()) {
-            return;
-        }
-        try {
-            Channel channel = notification.getValue();
-            if (channel != null) {
-                channel.abort();
-            } else {
-                log.warn("RemovalNotification without channel, cause={}", notification.getCause());
-            }
-        } catch (IOException e) {
-            log.warn("Error when closing channel.", e);
+    /**
+     * @param connection the RabbitMQ connection to be used
+     * @param confirms publisher confirms settings, {@code null} to publish without confirms
+     */
+    RabbitBroker(Connection connection, @Nullable PublisherConfirms confirms) {
+        this(connection, confirms, null);
+    }
+
+    /**
+     * @param connection the RabbitMQ connection to be used
+     * @param confirms publisher confirms settings, {@code null} to publish without confirms
+     * @param maxPriority {@code x-max-priority} of the declared queues, {@code null} to declare them without
+     *                    priorities
+     */
+    RabbitBroker(Connection connection, @Nullable PublisherConfirms confirms, @Nullable Integer maxPriority) {
+        this(connection, confirms, maxPriority, null);
+    }
+
+    /**
+     * @param connection the RabbitMQ connection to be used
+     * @param confirms publisher confirms settings, {@code null} to publish without confirms
+     * @param maxPriority {@code x-max-priority} of the declared queues, {@code null} to declare them without
+     *                    priorities
+     * @param channelPoolSize maximal number of channels publishing at once, {@value #DEFAULT_CHANNEL_POOL_SIZE} by
+     *                        default
+     */
+    RabbitBroker(
+            Connection connection, @Nullable PublisherConfirms confirms, @Nullable Integer maxPriority,
+            @Nullable Integer channelPoolSize
+    ) {
+        this(Collections.singletonList(connection), confirms, maxPriority, channelPoolSize);
+    }
+
+    /**
+     * @param connections the RabbitMQ connections to be used, the channels are spread over them
+     * @param confirms publisher confirms settings, {@code null} to publish without confirms
+     * @param maxPriority {@code x-max-priority} of the declared queues, {@code null} to declare them without
+     *                    priorities
+     * @param channelPoolSize maximal number of channels publishing at once, {@value #DEFAULT_CHANNEL_POOL_SIZE} by
+     *                        default
+     */
+    RabbitBroker(
+            List<Connection> connections, @Nullable PublisherConfirms confirms, @Nullable Integer maxPriority,
+            @Nullable Integer channelPoolSize
+    ) {
+        checkArgument(!connections.isEmpty(), "at least one connection is needed");
+        this.connections = ImmutableList.copyOf(connections);
+        this.confirms = confirms;
+        this.queueArguments = queueArguments(maxPriority);
+        int poolSize = channelPoolSize != null ? channelPoolSize : DEFAULT_CHANNEL_POOL_SIZE;
+        this.channels = new ChannelPool(
+                Math.min(poolSize, maxChannels(connections)),
+                CHANNEL_WAIT_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                this::openChannel, confirmTrackers::remove);
+    }
+
+    private static int maxChannels(List<Connection> connections) {
+        long max = 0;
+        for (Connection connection : connections) {
+            int channelMax = connection.getChannelMax();
+            // channel 0 is the connection's own, 0 means no limit
+            max += channelMax > 0 ? channelMax - 1 : Integer.MAX_VALUE;
         }
+        return (int) Math.min(max, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxPriority {@code x-max-priority} of the queue, {@code null} for a queue without priorities
+     * @return arguments for declaring the queue, shared by the brokers and workers as they must declare it the same
+     */
+    @Nullable
+    public static Map<String, Object> queueArguments(@Nullable Integer maxPriority) {
+        return maxPriority != null ? Collections.singletonMap("x-max-priority", maxPriority) : null;
     }
 
     @Override
     public void declareQueue(String name) throws IOException {
-        getChannel().queueDeclare(name, true, false, false, null);
+        Channel channel = borrowChannel();
+        try {
+            channel.queueDeclare(name, true, false, false, queueArguments);
+        } finally {
+            returnChannel(channel);
+        }
     }
 
     /**
-     * @return channel usable by the current thread (may return different channels on subsequent calls)
-     * @throws IOException if the channel opening fails
+     * @return channel for exclusive use by the caller until it's {@link #returnChannel(Channel) returned}
+     * @throws IOException if no channel is available in time or the channel opening fails
      */
-    Channel getChannel() throws IOException {
-        try {
-            return channels.get(Thread.currentThread().getId(), connection::createChannel);
-        } catch (ExecutionException | UncheckedExecutionException e) {
-            final Throwable cause = e.getCause();
-            if (cause instanceof IOException) {
-                throw (IOException) cause;
-            } else if (cause instanceof RuntimeException) {
-                throw (RuntimeException) cause;
-            } else {
-                throw new RuntimeException(cause);
-            }
+    Channel borrowChannel() throws IOException {
+        return channels.borrow();
+    }
+
+    void returnChannel(Channel channel) {
+        channels.giveBack(channel);
+    }
+
+    private Channel openChannel() throws IOException {
+        // round robin, the pool opens a channel only when it has none idle so they end up spread evenly
+        Connection connection = connections.get(Math.floorMod(nextConnection.getAndIncrement(), connections.size()));
+        Channel channel = connection.createChannel();
+        if (confirms != null) {
+            confirmTrackers.put(channel, confirms.enable(channel));
+        }
+        return channel;
+    }
+
+    /**
+     * Publishes on a channel obtained from {@link #borrowChannel()}.
+     *
+     * @return future completed when the broker confirms the message (or immediately if confirms are disabled)
+     * @throws IOException if the publishing fails
+     */
+    ListenableFuture<Void> publish(
+            Channel channel, String queue, AMQP.BasicProperties properties, byte[] body
+    ) throws IOException {
+        PublisherConfirms.Tracker tracker = confirmTrackers.get(channel);
+        if (tracker == null) {
+            channel.basicPublish("", queue, properties, body);
+            return Futures.immediateFuture(null);
+        }
+        return tracker.publish(() -> channel.basicPublish("", queue, properties, body));
+    }
+
+    /**
+     * Waits for the broker to confirm the published message.
+     *
+     * @param confirm as returned from {@link #publish(Channel, String, AMQP.BasicProperties, byte[])}
+     * @throws IOException if the message was rejected or the confirm timed out
+     */
+    void awaitConfirm(ListenableFuture<Void> confirm) throws IOException {
+        if (confirms != null) {
+            confirms.await(confirm);
         }
     }
 
@@ -76,8 +195,52 @@ public class RabbitBroker implements Broker {
         return new RabbitMessage(this);
     }
 
+    @Override
+    public void sendAll(String queue, List<? extends Message> messages) throws IOException {
+        List<ListenableFuture<Void>> pendingConfirms = new ArrayList<>(messages.size());
+        Channel channel = borrowChannel();
+        try {
+            for (Message message : messages) {
+                if (message instanceof RabbitMessage && ((RabbitMessage) message).getBroker() == this) {
+                    pendingConfirms.add(((RabbitMessage) message).publish(channel, queue));
+                } else {
+                    message.send(queue);
+                }
+            }
+        } finally {
+            returnChannel(channel);
+        }
+        for (ListenableFuture<Void> confirm : pendingConfirms) {
+            awaitConfirm(confirm);
+        }
+    }
+
+    /**
+     * @return number of the open publishing channels
+     */
+    public int getOpenChannels() {
+        return channels.getOpenChannels();
+    }
+
+    /**
+     * @return number of times a publishing channel was borrowed from the pool
+     */
+    public long getChannelBorrowCount() {
+        return channels.getBorrowCount();
+    }
+
+    /**
+     * @return total time spent waiting for a publishing channel, in nanoseconds; divided by {@link
+     *         #getChannelBorrowCount()} it's the mean wait
+     */
+    public long getChannelWaitNanos() {
+        return channels.getWaitNanos();
+    }
+
     @Override
     public void close() throws IOException {
-        connection.abort();
+        for (Connection connection : connections) {
+            connection.abort();
+        }
     }
 }
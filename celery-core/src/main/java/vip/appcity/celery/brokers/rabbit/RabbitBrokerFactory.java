@@ -3,19 +3,45 @@ package vip.appcity.celery.brokers.rabbit;
 import vip.appcity.celery.spi.BrokerFactory;
 
 import com.google.common.collect.ImmutableSet;
+import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URIBuilder;
 
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
  * A factory class for {@link RabbitBroker}.
+ * <p>
+ *     Besides the standard AMQP URI parts, the following query parameters are understood:
+ * </p>
+ * <ul>
+ *     <li>{@code confirm_publish} - {@code true} to wait for publisher confirms of every message</li>
+ *     <li>{@code max_in_flight} - maximal number of messages waiting for a confirm (default 1000)</li>
+ *     <li>{@code in_flight_full} - {@code block} (default) to wait for a free slot when there are too many messages
+ *     waiting for a confirm, {@code fail} to fail right away</li>
+ *     <li>{@code confirm_timeout} - seconds to wait for a confirm or a free slot (default 30)</li>
+ *     <li>{@code max_priority} - declare the queues with {@code x-max-priority}, so that messages with higher
+ *     priority are delivered first; workers must declare their queue the same way and an existing queue has to be
+ *     deleted first to change it</li>
+ *     <li>{@code channel_pool_size} - maximal number of channels publishing at once (default 16), the submitting
+ *     threads share them</li>
+ *     <li>{@code connections} - number of connections the channels are spread over (default 1), more connections
+ *     let publishing scale with the cores of a large node</li>
+ * </ul>
+ * For example {@code amqp://localhost/%2F?confirm_publish=true&max_in_flight=5000}.
  */
 public class RabbitBrokerFactory implements BrokerFactory {
 
@@ -35,6 +61,45 @@ public class RabbitBrokerFactory implements BrokerFactory {
             throw new IOException(e);
         }
 
-        return new RabbitBroker(factory.newConnection(executor));
+        Map<String, String> params = queryParams(uri);
+        String maxPriority = params.get("max_priority");
+        String channelPoolSize = params.get("channel_pool_size");
+        int connectionCount = Integer.parseInt(params.getOrDefault("connections", "1"));
+        if (connectionCount < 1) {
+            throw new IllegalArgumentException("connections must be positive, got " + connectionCount);
+        }
+        List<Connection> connections = new ArrayList<>(connectionCount);
+        try {
+            for (int i = 0; i < connectionCount; i++) {
+                connections.add(factory.newConnection(executor));
+            }
+        } catch (IOException | TimeoutException e) {
+            connections.forEach(Connection::abort);
+            throw e;
+        }
+        return new RabbitBroker(
+                connections,
+                publisherConfirms(params),
+                maxPriority != null ? Integer.valueOf(maxPriority) : null,
+                channelPoolSize != null ? Integer.valueOf(channelPoolSize) : null
+        );
+    }
+
+    private static PublisherConfirms publisherConfirms(Map<String, String> params) {
+        if (!Boolean.parseBoolean(params.get("confirm_publish"))) {
+            return null;
+        }
+        int maxInFlight = Integer.parseInt(params.getOrDefault("max_in_flight", "1000"));
+        boolean blockWhenFull = !"fail".equals(params.get("in_flight_full"));
+        long timeoutMillis = (long) (Double.parseDouble(params.getOrDefault("confirm_timeout", "30")) * 1000);
+        return new PublisherConfirms(maxInFlight, blockWhenFull, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static Map<String, String> queryParams(URI uri) {
+        Map<String, String> params = new HashMap<>();
+        for (NameValuePair param : new URIBuilder(uri).getQueryParams()) {
+            params.put(param.getName(), param.getValue());
+        }
+        return params;
     }
 }
@@ -3,11 +3,15 @@ package vip.appcity.celery.brokers.rabbit;
 import vip.appcity.celery.spi.Message;
 
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -15,6 +19,33 @@ import java.util.Map;
  */
 class RabbitMessage implements Message {
 
+    /** Headers that are the same for all messages, copied to every new message. */
+    private static final Map<String, Object> DEFAULT_HEADERS;
+
+    static {
+        Map<String, Object> defaults = new HashMap<>();
+        // http://docs.celeryproject.org/en/latest/internals/protocol.html
+        // required:
+        // task
+        // id
+        // root_id
+        defaults.put("parent_id", null);
+        defaults.put("lang", "py"); // sic
+        defaults.put("group", null);
+
+        // optional:
+        // meth
+        // shadow
+        // origin
+        defaults.put("timelimit", Collections.unmodifiableList(Arrays.asList(null, null)));
+        defaults.put("retries", 0);
+        defaults.put("kwargsrepr", "{}");
+        defaults.put("argsrepr", null);
+        defaults.put("expires", null);
+        defaults.put("eta", null);
+        DEFAULT_HEADERS = Collections.unmodifiableMap(defaults);
+    }
+
     private final RabbitBroker broker;
     private final RabbitMessageHeaders headers;
     private final AMQP.BasicProperties.Builder props;
@@ -23,12 +54,19 @@ class RabbitMessage implements Message {
 
     public RabbitMessage(RabbitBroker broker) {
         this.broker = broker;
-        headers = new RabbitMessageHeaders();
+        headers = new RabbitMessageHeaders(DEFAULT_HEADERS);
         props = new AMQP.BasicProperties.Builder()
                 .deliveryMode(2)
                 .priority(0);
     }
 
+    private RabbitMessage(RabbitMessage template) {
+        this.broker = template.broker;
+        this.headers = new RabbitMessageHeaders(template.headers.map);
+        this.props = template.props.build().builder();
+        this.body = template.body;
+    }
+
     @Override
     public void setBody(byte[] body) {
         this.body = body;
@@ -44,42 +82,56 @@ class RabbitMessage implements Message {
         props.contentType(contentType);
     }
 
+    @Override
+    public void setPriority(int priority) {
+        props.priority(priority);
+    }
+
     @Override
     public Headers getHeaders() {
         return headers;
     }
 
+    @Override
+    public Message copy() {
+        return new RabbitMessage(this);
+    }
+
     @Override
     public void send(String queue) throws IOException {
+        ListenableFuture<Void> confirm;
+        Channel channel = broker.borrowChannel();
+        try {
+            confirm = publish(channel, queue);
+        } finally {
+            broker.returnChannel(channel);
+        }
+        broker.awaitConfirm(confirm);
+    }
+
+    /**
+     * Publishes the message using the given channel, so that a batch of messages can share one.
+     *
+     * @return future completed when the broker confirms the message
+     */
+    ListenableFuture<Void> publish(Channel channel, String queue) throws IOException {
         queue = Strings.isNullOrEmpty(queue) ? "celery" : queue;
         AMQP.BasicProperties messageProperties = props.headers(headers.map).build();
-        broker.getChannel().basicPublish("", queue, messageProperties, body);
+        return broker.publish(channel, queue, messageProperties, body);
+    }
+
+    RabbitBroker getBroker() {
+        return broker;
     }
 
     class RabbitMessageHeaders implements Headers {
 
-        private final Map<String, Object> map = new HashMap<>();
-
-        RabbitMessageHeaders() {
-            // http://docs.celeryproject.org/en/latest/internals/protocol.html
-            // required:
-            // task
-            // id
-            // root_id
-            map.put("parent_id", null);
-            map.put("lang", "py"); // sic
-            map.put("group", null);
-
-            // optional:
-            // meth
-            // shadow
-            // origin
-            map.put("timelimit", Arrays.asList(null, null));
-            map.put("retries", 0);
-            map.put("kwargsrepr", "{}");
-            map.put("argsrepr", null);
-            map.put("expires", null);
-            map.put("eta", null);
+        private final Map<String, Object> map;
+
+        RabbitMessageHeaders(Map<String, Object> template) {
+            // room for the task specific headers, so that the map doesn't need to grow
+            map = new HashMap<>(32);
+            map.putAll(template);
         }
 
         @Override
@@ -108,5 +160,30 @@ class RabbitMessage implements Message {
         public void setTaskName(String task) {
             map.put("task", task);
         }
+
+        @Override
+        public void setCompression(String contentType) {
+            map.put("compression", contentType);
+        }
+
+        @Override
+        public void setBlobArgs(List<Integer> indices) {
+            map.put("blob_args", indices);
+        }
+
+        @Override
+        public void setEta(String eta) {
+            map.put("eta", eta);
+        }
+
+        @Override
+        public void setExpires(String expires) {
+            map.put("expires", expires);
+        }
+
+        @Override
+        public void setGroup(String groupId) {
+            map.put("group", groupId);
+        }
     }
 }
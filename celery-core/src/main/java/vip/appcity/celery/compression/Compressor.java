@@ -0,0 +1,27 @@
+package vip.appcity.celery.compression;
+
+import java.io.IOException;
+
+/**
+ * A codec for message bodies. The content type identifies the codec in the {@code compression} message header.
+ */
+public interface Compressor {
+
+    /**
+     * @return value of the {@code compression} header, as understood by Python Celery (kombu) if possible
+     */
+    String getContentType();
+
+    /**
+     * @param data uncompressed body
+     * @return compressed body
+     */
+    byte[] compress(byte[] data);
+
+    /**
+     * @param data compressed body
+     * @return uncompressed body
+     * @throws IOException if the data is corrupted
+     */
+    byte[] decompress(byte[] data) throws IOException;
+}
@@ -0,0 +1,83 @@
+package vip.appcity.celery.compression;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+
+/**
+ * The available {@link Compressor codecs}, looked up by name when configuring and by content type when decoding.
+ * <ul>
+ *     <li>{@code zlib} (alias {@code gzip}) - the same as in Python Celery</li>
+ *     <li>{@code zlib-fast} - zlib with the fastest compression level, still readable by Python Celery</li>
+ *     <li>{@code lz4} - fast, only for Java to Java, needs {@code org.lz4:lz4-java}</li>
+ * </ul>
+ */
+public final class Compressors {
+
+    public static final Compressor ZLIB = new ZlibCompressor(6);
+    public static final Compressor ZLIB_FAST = new ZlibCompressor(1);
+
+    private Compressors() {
+    }
+
+    /**
+     * @param name codec name, see the class description
+     * @return the codec
+     * @throws IllegalArgumentException if there's no such codec
+     */
+    public static Compressor forName(String name) {
+        switch (name) {
+            case "zlib":
+            case "gzip":
+                return ZLIB;
+            case "zlib-fast":
+                return ZLIB_FAST;
+            case "lz4":
+                return lz4();
+            default:
+                throw new IllegalArgumentException("Unknown compression " + name);
+        }
+    }
+
+    /**
+     * @param contentType value of the {@code compression} header
+     * @return the codec
+     * @throws IOException if the codec is not supported
+     */
+    public static Compressor forContentType(String contentType) throws IOException {
+        if (ZLIB.getContentType().equals(contentType)) {
+            return ZLIB;
+        } else if (Lz4Compressor.CONTENT_TYPE.equals(contentType)) {
+            try {
+                return lz4();
+            } catch (IllegalStateException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+        throw new IOException("Unsupported compression " + contentType);
+    }
+
+    /**
+     * Decompresses a received body.
+     *
+     * @param contentType value of the {@code compression} header, {@code null} if the body is not compressed
+     * @param body the received body
+     * @return the uncompressed body
+     * @throws IOException if the codec is not supported or the body is corrupted
+     */
+    public static byte[] decompress(@Nullable Object contentType, byte[] body) throws IOException {
+        return contentType == null ? body : forContentType(contentType.toString()).decompress(body);
+    }
+
+    private static Compressor lz4() {
+        try {
+            return Lz4Holder.LZ4;
+        } catch (NoClassDefFoundError e) {
+            throw new IllegalStateException("lz4 compression needs org.lz4:lz4-java on the classpath", e);
+        }
+    }
+
+    // holder that loads the optional dependency on first use
+    private static final class Lz4Holder {
+        private static final Compressor LZ4 = new Lz4Compressor();
+    }
+}
@@ -0,0 +1,56 @@
+package vip.appcity.celery.compression;
+
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * LZ4 block compression - much faster than zlib at a lower ratio. Python Celery doesn't understand it, use it only
+ * between Java clients and workers. Needs {@code org.lz4:lz4-java} on the classpath.
+ * <p>
+ *     The data is the length of the uncompressed body (4 bytes, big endian) followed by a single LZ4 block.
+ * </p>
+ */
+final class Lz4Compressor implements Compressor {
+
+    static final String CONTENT_TYPE = "application/x-lz4";
+
+    private static final int MAX_RATIO = 255;
+
+    private final LZ4Factory lz4 = LZ4Factory.fastestInstance();
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public byte[] compress(byte[] data) {
+        byte[] out = new byte[4 + lz4.fastCompressor().maxCompressedLength(data.length)];
+        ByteBuffer.wrap(out).putInt(data.length);
+        int length = lz4.fastCompressor().compress(data, 0, data.length, out, 4, out.length - 4);
+        return Arrays.copyOf(out, 4 + length);
+    }
+
+    @Override
+    public byte[] decompress(byte[] data) throws IOException {
+        if (data.length < 4) {
+            throw new IOException("Truncated lz4 data");
+        }
+        int length = ByteBuffer.wrap(data).getInt();
+        // LZ4 can't compress better than 255:1, a larger length means the data is not what we expect
+        if (length < 0 || length > (long) (data.length - 4) * MAX_RATIO) {
+            throw new IOException("Corrupted lz4 data");
+        }
+        try {
+            byte[] out = new byte[length];
+            lz4.fastDecompressor().decompress(data, 4, out, 0, length);
+            return out;
+        } catch (LZ4Exception e) {
+            throw new IOException("Corrupted lz4 data", e);
+        }
+    }
+}
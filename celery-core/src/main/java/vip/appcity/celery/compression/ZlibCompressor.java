@@ -0,0 +1,80 @@
+package vip.appcity.celery.compression;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * The default codec of Python Celery. Kombu calls it {@code zlib} or {@code gzip} and sends it as
+ * {@code application/x-gzip}, but the data is a zlib stream. Decompressing accepts a real gzip stream as well.
+ */
+final class ZlibCompressor implements Compressor {
+
+    private static final String CONTENT_TYPE = "application/x-gzip";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final int level;
+
+    /**
+     * @param level compression level, 1 (fastest) to 9 (smallest)
+     */
+    ZlibCompressor(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public byte[] decompress(byte[] data) throws IOException {
+        if (data.length > 1 && data[0] == (byte) 0x1f && data[1] == (byte) 0x8b) {
+            try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data), BUFFER_SIZE)) {
+                return ByteStreams.toByteArray(in);
+            }
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated zlib data");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted zlib data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
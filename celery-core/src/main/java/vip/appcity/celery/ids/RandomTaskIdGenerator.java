@@ -0,0 +1,39 @@
+package vip.appcity.celery.ids;
+
+import vip.appcity.celery.spi.TaskIdGenerator;
+
+/**
+ * <p>
+ *     Generates IDs formatted as random (version 4) UUIDs without touching any shared state.
+ * </p>
+ * <p>
+ *     Every thread draws a seed from {@link java.security.SecureRandom} once. The high half of the UUID is the
+ *     thread seed, the low half is a per-thread counter scrambled by a bijection of
+ *     its 62 bits. So unlike {@link java.util.UUID#randomUUID()} the generator never blocks and doesn't contend
+ *     between threads, yet the IDs are unique as long as no two threads draw the same 60-bit seed (and no thread
+ *     generates 2<sup>62</sup> IDs).
+ * </p>
+ * <p>
+ *     The IDs are not suitable where unpredictability matters (eg. as secrets).
+ * </p>
+ */
+public class RandomTaskIdGenerator implements TaskIdGenerator {
+
+    private static final ThreadLocal<State> STATE = ThreadLocal.withInitial(State::new);
+
+    @Override
+    public String nextId() {
+        State state = STATE.get();
+        long lsb = Uuids.mix(state.counter++);
+        // version 4, IETF variant
+        return Uuids.format(
+                (state.msb & 0xffffffffffff0fffL) | 0x0000000000004000L,
+                lsb | 0x8000000000000000L
+        );
+    }
+
+    private static final class State {
+        private final long msb = Uuids.seed();
+        private long counter = Uuids.seed();
+    }
+}
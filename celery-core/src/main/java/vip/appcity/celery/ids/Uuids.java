@@ -0,0 +1,65 @@
+package vip.appcity.celery.ids;
+
+import java.security.SecureRandom;
+
+/**
+ * Helpers for building UUID strings without going through {@link java.util.UUID}.
+ */
+final class Uuids {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    /** Bits of the low half of a UUID left next to its 2-bit variant. */
+    private static final long LOW_62_BITS = (1L << 62) - 1;
+    private static final SecureRandom SEEDS = new SecureRandom();
+
+    private Uuids() {
+    }
+
+    /**
+     * @return random seed for per-thread generator state (the shared {@link SecureRandom} is used only once per
+     * thread)
+     */
+    static long seed() {
+        synchronized (SEEDS) {
+            return SEEDS.nextLong();
+        }
+    }
+
+    /**
+     * The finalizer of MurmurHash3 narrowed to 62 bits, so that it fits next to the variant of a UUID. The xor-shifts
+     * and the multiplications by odd constants modulo 2<sup>62</sup> are all invertible, so it's a bijection of the
+     * low 62 bits - inputs distinct in them always give distinct outputs.
+     *
+     * @return the scrambled low 62 bits of {@code z}, the top 2 bits are zero
+     */
+    static long mix(long z) {
+        z &= LOW_62_BITS;
+        z = ((z ^ (z >>> 31)) * 0xff51afd7ed558ccdL) & LOW_62_BITS;
+        z = ((z ^ (z >>> 31)) * 0xc4ceb9fe1a85ec53L) & LOW_62_BITS;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @return the canonical {@code 8-4-4-4-12} hex representation, the same as {@link java.util.UUID#toString()}
+     */
+    static String format(long msb, long lsb) {
+        char[] buf = new char[36];
+        hex(msb >>> 32, buf, 0, 8);
+        buf[8] = '-';
+        hex(msb >>> 16, buf, 9, 4);
+        buf[13] = '-';
+        hex(msb, buf, 14, 4);
+        buf[18] = '-';
+        hex(lsb >>> 48, buf, 19, 4);
+        buf[23] = '-';
+        hex(lsb, buf, 24, 12);
+        return new String(buf);
+    }
+
+    private static void hex(long value, char[] buf, int offset, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            buf[i] = HEX[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package vip.appcity.celery.outbox;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * An append-only log of records in memory-mapped segment files, read in order by a single consumer. Appending copies
+ * the record into the mapping, it doesn't wait for the disk. A sync thread forces the mappings to the disk every sync
+ * interval, all the records appended meanwhile with a single {@code msync} (group commit).
+ * <p>
+ *     Each record is preceded by its length, CRC-32 and sequence number. A segment is named by the sequence number
+ *     of its first record and a new one is started once a record doesn't fit. The sequence number of the last record
+ *     read and committed by the consumer is kept in the {@code checkpoint} file, segments read completely are
+ *     deleted. On opening, the journal resumes from the checkpoint and drops a torn record at the end of the last
+ *     segment, eg. after a power failure.
+ * </p>
+ * <p>
+ *     A single journal may use the directory at a time, it's held by a lock on the {@code lock} file.
+ * </p>
+ *
+ * Thread safety: records can be appended from multiple threads, but only one thread may read.
+ */
+@Slf4j
+final class Journal implements Closeable {
+
+    /** Length, CRC-32 and sequence number preceding each record. */
+    static final int HEADER = 16;
+    private static final String SUFFIX = ".log";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String LOCK = "lock";
+
+    private final Path directory;
+    private final FileChannel lockChannel;
+    private final int segmentSize;
+    private final long syncIntervalMillis;
+
+    /** Segments from the one being read to the one being appended to, guarded by {@code this}. */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final FileChannel checkpointChannel;
+    private final MappedByteBuffer checkpoint;
+    private final Object syncLock = new Object();
+    private final Thread syncThread;
+
+    private volatile long appended;
+    private volatile long committed;
+    private long synced;
+    private long syncedCheckpoint;
+    /** Failure of the last sync, {@code null} if it succeeded, guarded by {@code syncLock}. */
+    private Exception syncFailure;
+    private boolean readerWaiting = false;
+    private boolean closed = false;
+
+    // owned by the reading thread
+    private ByteBuffer reader;
+    private int readPosition;
+    private int readSize;
+    private long readSeq;
+
+    private Journal(Path directory, FileChannel lockChannel, int segmentSize, long syncIntervalMillis)
+            throws IOException {
+        this.directory = directory;
+        this.lockChannel = lockChannel;
+        this.segmentSize = segmentSize;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.checkpointChannel = FileChannel.open(directory.resolve(CHECKPOINT),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.checkpoint = checkpointChannel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+        this.committed = checkpoint.getLong(0);
+        this.syncedCheckpoint = committed;
+        recover();
+        this.syncThread = new Thread(this::syncPeriodically, "celery-outbox-sync");
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    /**
+     * @param directory directory of the segment files, created if it doesn't exist
+     * @param segmentSize size of a segment file, the largest record must fit
+     * @param syncIntervalMillis how often the appended records are forced to the disk
+     * @throws IOException if the directory is used by another journal, or it can't be read
+     */
+    static Journal open(Path directory, int segmentSize, long syncIntervalMillis) throws IOException {
+        checkArgument(segmentSize > HEADER, "segmentSize must be larger than %s", HEADER);
+        checkArgument(syncIntervalMillis > 0, "syncIntervalMillis must be positive");
+        Files.createDirectories(directory);
+        FileChannel lockChannel = lock(directory);
+        try {
+            return new Journal(directory, lockChannel, segmentSize, syncIntervalMillis);
+        } catch (IOException | RuntimeException e) {
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return channel of the lock file holding the lock of the directory, closing it releases the lock
+     */
+    private static FileChannel lock(Path directory) throws IOException {
+        FileChannel channel = FileChannel.open(directory.resolve(LOCK),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by another journal of this process
+            lock = null;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Outbox directory " + directory + " is used by another outbox");
+        }
+        return channel;
+    }
+
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(f -> f.getFileName().toString().endsWith(SUFFIX)).sorted()
+                    .collect(Collectors.toList());
+        }
+
+        long next = files.isEmpty() ? committed + 1 : firstSeq(files.get(0));
+        for (int i = 0; i < files.size(); i++) {
+            Segment segment = openSegment(files.get(i));
+            segments.addLast(segment);
+            if (firstSeq(files.get(i)) != next) {
+                throw new IOException("Missing records before outbox segment " + files.get(i));
+            }
+            next = scan(segment, next, i == files.size() - 1);
+        }
+        appended = next - 1;
+        // the checkpoint can't be ahead of the records unless the segments were removed by hand
+        committed = Math.min(committed, appended);
+
+        while (segments.size() > 1 && segments.getFirst().lastSeq <= committed) {
+            delete(segments.removeFirst());
+        }
+        if (segments.isEmpty()) {
+            segments.addLast(newSegment(appended + 1));
+        }
+        reader = segments.getFirst().buffer.duplicate();
+        readPosition = 0;
+    }
+
+    /**
+     * Finds the end of the records of a segment, leaving the mapping positioned there.
+     *
+     * @return sequence number following the last record
+     */
+    private long scan(Segment segment, long next, boolean last) throws IOException {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + HEADER <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || position + HEADER + length > buffer.limit()
+                    || buffer.getLong(position + 8) != next || buffer.getInt(position + 4) != crc(buffer, position)) {
+                if (!last) {
+                    throw new IOException("Corrupted outbox segment " + segment.file);
+                }
+                log.warn("Dropped a torn record at the end of outbox segment {}", segment.file);
+                for (int i = position; i < buffer.limit(); i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                break;
+            }
+            segment.lastSeq = next++;
+            position += HEADER + length;
+        }
+        buffer.position(position);
+        return next;
+    }
+
+    private static int crc(ByteBuffer buffer, int position) {
+        ByteBuffer data = buffer.duplicate();
+        data.position(position + HEADER).limit(position + HEADER + buffer.getInt(position));
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    private static long firstSeq(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private Segment newSegment(long firstSeq) throws IOException {
+        return openSegment(directory.resolve(String.format("%020d%s", firstSeq, SUFFIX)));
+    }
+
+    private Segment openSegment(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size() > 0 ? channel.size() : segmentSize;
+        return new Segment(file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+
+    /**
+     * @param record data of the record, not empty
+     * @return sequence number of the record
+     * @throws IOException if the journal is closed or a new segment can't be created
+     */
+    long append(byte[] record) throws IOException {
+        checkArgument(record.length > 0, "record must not be empty");
+        checkArgument(HEADER + record.length <= segmentSize,
+                "record of %s bytes doesn't fit into a segment", record.length);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("The outbox is closed");
+            }
+            Segment tail = segments.getLast();
+            if (tail.buffer.remaining() < HEADER + record.length) {
+                tail = newSegment(appended + 1);
+                segments.addLast(tail);
+            }
+            long seq = appended + 1;
+            MappedByteBuffer buffer = tail.buffer;
+            int position = buffer.position();
+            buffer.position(position + 4);
+            buffer.putInt((int) crc.getValue()).putLong(seq).put(record);
+            // the length goes last, so a record is never found without its data
+            buffer.putInt(position, record.length);
+            tail.lastSeq = seq;
+            appended = seq;
+            if (readerWaiting) {
+                notifyAll();
+            }
+            return seq;
+        }
+    }
+
+    /**
+     * Waits until a record is forced to the disk together with all the records before it.
+     *
+     * @param seq sequence number of the record
+     * @throws IOException if the last sync failed
+     */
+    void awaitSynced(long seq) throws InterruptedException, IOException {
+        synchronized (syncLock) {
+            while (synced < seq) {
+                if (syncFailure != null) {
+                    throw new IOException("Can't force the outbox journal to the disk", syncFailure);
+                }
+                syncLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Waits for the first record not committed yet. The same record is returned until it's {@link #commit()
+     * committed}.
+     *
+     * @return data of the record, {@code null} if none was appended in time or the journal is closed
+     */
+    @Nullable
+    byte[] next(long timeout, TimeUnit unit) throws InterruptedException {
+        if (committed >= appended) {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (this) {
+                readerWaiting = true;
+                try {
+                    long remaining;
+                    while (!closed && committed >= appended && (remaining = deadline - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                    if (closed || committed >= appended) {
+                        return null;
+                    }
+                } finally {
+                    readerWaiting = false;
+                }
+            }
+        }
+
+        while (true) {
+            int length = readPosition + HEADER <= reader.limit() ? reader.getInt(readPosition) : 0;
+            if (length == 0) {
+                // the record is there since it was appended, so it's in the next segment
+                nextSegment();
+                continue;
+            }
+            readSize = HEADER + length;
+            readSeq = reader.getLong(readPosition + 8);
+            if (readSeq <= committed) {
+                // committed before the journal was reopened
+                readPosition += readSize;
+                continue;
+            }
+            byte[] record = new byte[length];
+            ByteBuffer data = reader.duplicate();
+            data.position(readPosition + HEADER);
+            data.get(record);
+            return record;
+        }
+    }
+
+    /**
+     * Marks the record returned by {@link #next(long, TimeUnit)} as read, the next call returns the following one.
+     */
+    void commit() {
+        readPosition += readSize;
+        committed = readSeq;
+        checkpoint.putLong(0, readSeq);
+    }
+
+    private void nextSegment() {
+        Segment done;
+        synchronized (this) {
+            done = segments.removeFirst();
+            reader = segments.getFirst().buffer.duplicate();
+        }
+        readPosition = 0;
+        delete(done);
+    }
+
+    private void delete(Segment segment) {
+        try {
+            // the mapping stays valid until it's garbage collected, deleting the file is fine on POSIX systems
+            segment.channel.close();
+            Files.deleteIfExists(segment.file);
+        } catch (IOException e) {
+            log.warn("Can't delete drained outbox segment {}", segment.file, e);
+        }
+    }
+
+    /**
+     * @return number of the records not committed yet
+     */
+    long pending() {
+        return appended - committed;
+    }
+
+    private void syncPeriodically() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(syncIntervalMillis);
+                sync();
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    private void sync() {
+        long target = appended;
+        long checkpointed = committed;
+        if (target > synced) {
+            List<Segment> dirty = new ArrayList<>();
+            synchronized (this) {
+                for (Segment segment : segments) {
+                    if (segment.lastSeq > synced) {
+                        dirty.add(segment);
+                    }
+                }
+            }
+            try {
+                // one msync per segment for all the records appended since the last sync
+                dirty.forEach(segment -> segment.buffer.force());
+            } catch (Exception e) {
+                // Java 8 throws the IOException of msync undeclared, later versions wrap it in an UncheckedIOException
+                log.error("Can't force the outbox journal to the disk, retrying with the next sync", e);
+                synchronized (syncLock) {
+                    syncFailure = e;
+                    syncLock.notifyAll();
+                }
+                return;
+            }
+            synchronized (syncLock) {
+                synced = target;
+                syncFailure = null;
+                syncLock.notifyAll();
+            }
+        }
+        if (checkpointed != syncedCheckpoint) {
+            try {
+                checkpoint.force();
+                syncedCheckpoint = checkpointed;
+            } catch (Exception e) {
+                // the records are already durable, at worst some are sent again after a crash
+                log.warn("Can't force the outbox checkpoint to the disk", e);
+            }
+        }
+    }
+
+    /**
+     * Forces the records to the disk, closes the files and releases the directory. Appending fails afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        syncThread.interrupt();
+        Uninterruptibles.joinUninterruptibly(syncThread);
+        sync();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                segment.channel.close();
+            }
+        }
+        checkpointChannel.close();
+        lockChannel.close();
+    }
+
+    private static final class Segment {
+        final Path file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        /** Sequence number of the last record of the segment, {@code 0} if it's empty. */
+        volatile long lastSeq;
+
+        Segment(Path file, FileChannel channel, MappedByteBuffer buffer) {
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package vip.appcity.celery.outbox;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A durable local outbox of submitted tasks, so that submitting works while the broker can't be reached (eg. during
+ * its maintenance). The tasks are appended to a journal of memory-mapped segment files in the outbox directory, which
+ * takes microseconds, and a drainer thread sends them to a {@link Sink} in the order they were appended. When the sink
+ * fails, the drainer retries the same task with an exponential backoff, so the order is kept once the connection
+ * heals. The tasks not sent yet are sent after a restart.
+ * <p>
+ *     The journal is forced to the disk every sync interval, all the tasks appended meanwhile at once, so a crash
+ *     of the machine may lose the tasks of the last interval, a crash of the process loses none. Use {@link
+ *     #awaitDurable(long)} to wait for a task to be on the disk.
+ * </p>
+ * <p>
+ *     The delivery is at least once - a task sent just before a crash may be sent again after the restart. Tasks
+ *     with the ID of a task sent recently aren't sent again, see {@link Sink#duplicate(String)}.
+ * </p>
+ *
+ * Thread safety: tasks can be appended from multiple threads.
+ */
+@Slf4j
+public final class Outbox implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 10;
+
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    private static final int REMEMBERED_TASK_IDS = 100_000;
+
+    private final Journal journal;
+    /** IDs of the tasks sent recently, to skip their duplicates. */
+    private final Cache<String, Boolean> sentTaskIds = CacheBuilder.newBuilder()
+            .maximumSize(REMEMBERED_TASK_IDS)
+            .build();
+
+    private Thread drainer;
+    private volatile boolean closed = false;
+
+    private Outbox(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Opens the outbox in a directory with {@link #DEFAULT_SEGMENT_SIZE 64 MiB} segments synced to the disk every
+     * {@link #DEFAULT_SYNC_INTERVAL_MILLIS 10 ms}.
+     *
+     * @param directory directory of the outbox, created if it doesn't exist; a single outbox may use it at a time
+     * @throws IOException if the directory is used by another outbox, or it can't be read
+     */
+    public static Outbox open(Path directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param directory directory of the outbox, created if it doesn't exist; a single outbox may use it at a time
+     * @throws IOException if the directory is used by another outbox, or it can't be read
+     * @param segmentSize size of a segment file, the largest task must fit
+     * @param syncIntervalMillis how often the appended tasks are forced to the disk
+     */
+    public static Outbox open(Path directory, int segmentSize, long syncIntervalMillis) throws IOException {
+        return new Outbox(Journal.open(directory, segmentSize, syncIntervalMillis));
+    }
+
+    /**
+     * Appends a task, it's sent by the drainer after all the tasks appended before it.
+     *
+     * @param taskId ID of the task
+     * @param submission the task as understood by the {@link Sink}
+     * @return position of the task, for {@link #awaitDurable(long)}
+     * @throws IOException if the outbox is closed or the task can't be written
+     */
+    public long append(String taskId, byte[] submission) throws IOException {
+        byte[] id = taskId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + id.length + submission.length);
+        record.putInt(id.length).put(id).put(submission);
+        return journal.append(record.array());
+    }
+
+    /**
+     * Waits until a task, and all the tasks appended before it, is forced to the disk by the next sync.
+     *
+     * @param position position of the task returned by {@link #append(String, byte[])}
+     * @throws IOException if the last sync failed, the task may not be on the disk
+     */
+    public void awaitDurable(long position) throws InterruptedException, IOException {
+        journal.awaitSynced(position);
+    }
+
+    /**
+     * Starts the drainer thread sending the tasks to a sink.
+     *
+     * @throws IllegalStateException if the outbox is already drained or closed
+     */
+    public synchronized void drainTo(Sink sink) {
+        checkState(!closed, "The outbox is closed");
+        checkState(drainer == null, "The outbox is already drained");
+        drainer = new Thread(() -> drain(sink), "celery-outbox-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * @return number of the tasks not sent yet
+     */
+    public long getPending() {
+        return journal.pending();
+    }
+
+    private void drain(Sink sink) {
+        long backoff = MIN_BACKOFF_MILLIS;
+        try {
+            while (!closed) {
+                byte[] record = journal.next(1, TimeUnit.SECONDS);
+                if (record == null) {
+                    continue;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                byte[] id = new byte[buffer.getInt()];
+                buffer.get(id);
+                String taskId = new String(id, StandardCharsets.UTF_8);
+
+                if (sentTaskIds.getIfPresent(taskId) != null) {
+                    try {
+                        sink.duplicate(taskId);
+                    } catch (RuntimeException e) {
+                        log.error("Sink failed on duplicate task {}", taskId, e);
+                    }
+                } else {
+                    try {
+                        sink.send(taskId, Arrays.copyOfRange(record, buffer.position(), record.length));
+                    } catch (IOException | UncheckedIOException e) {
+                        log.warn("Can't send task {} from the outbox, retrying in {} ms: {}", taskId, backoff, e);
+                        Thread.sleep(backoff);
+                        backoff = Math.min(2 * backoff, MAX_BACKOFF_MILLIS);
+                        continue;
+                    } catch (RuntimeException e) {
+                        // retrying wouldn't help, don't let it block the tasks after it
+                        log.error("Dropped task {} from the outbox", taskId, e);
+                    }
+                    sentTaskIds.put(taskId, Boolean.TRUE);
+                }
+                backoff = MIN_BACKOFF_MILLIS;
+                journal.commit();
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Stops the drainer and closes the journal, the tasks not sent yet are sent once the outbox is opened again.
+     */
+    @Override
+    public void close() throws IOException {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            thread = drainer;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            Uninterruptibles.joinUninterruptibly(thread);
+        }
+        journal.close();
+    }
+
+    /**
+     * Receives the tasks drained from an outbox.
+     */
+    public interface Sink {
+
+        /**
+         * Sends a task. The drainer retries it later if it throws an {@link IOException} (or an {@link
+         * UncheckedIOException}), the tasks after it wait meanwhile; the task is dropped on other exceptions.
+         *
+         * @param taskId ID of the task
+         * @param submission the task as appended to the outbox
+         */
+        void send(String taskId, byte[] submission) throws IOException;
+
+        /**
+         * Called instead of {@link #send(String, byte[])} for a task with the ID of a task sent recently.
+         *
+         * @param taskId ID of the task
+         */
+        default void duplicate(String taskId) {
+        }
+    }
+}
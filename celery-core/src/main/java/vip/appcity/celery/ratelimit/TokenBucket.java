@@ -0,0 +1,120 @@
+package vip.appcity.celery.ratelimit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Token bucket limiting the rate of tasks, shared by all the threads using it.
+ * <p>
+ *     The bucket is kept as the time when it's full again (the generic cell rate algorithm), so taking a token is a
+ *     single compare-and-set without any lock. A token is never refused - {@link #reserve()} returns how long the
+ *     caller has to wait for it, so the callers are served in the order they came and nobody spins retrying.
+ * </p>
+ */
+public final class TokenBucket {
+
+    private static final Pattern RATE = Pattern.compile("(\\d+(?:\\.\\d+)?)(?:/([smh]))?");
+
+    private final double permitsPerSecond;
+    private final int burst;
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final LongSupplier nanoTime;
+    // theoretical arrival time of the next token, nanoTime based
+    private final AtomicLong nextArrival;
+
+    private TokenBucket(double permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, System::nanoTime);
+    }
+
+    /**
+     * @param nanoTime source of the time, {@link System#nanoTime()} except in tests
+     */
+    TokenBucket(double permitsPerSecond, int burst, LongSupplier nanoTime) {
+        checkArgument(permitsPerSecond > 0, "permitsPerSecond must be positive");
+        checkArgument(burst > 0, "burst must be positive");
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.intervalNanos = Math.max(1, Math.round(TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.toleranceNanos = intervalNanos * (burst - 1);
+        this.nanoTime = nanoTime;
+        this.nextArrival = new AtomicLong(nanoTime.getAsLong());
+    }
+
+    /**
+     * @param permitsPerSecond rate of the tokens
+     * @param burst number of tokens that can be taken at once after the bucket wasn't used for a while
+     * @return new full bucket
+     */
+    public static TokenBucket of(double permitsPerSecond, int burst) {
+        return new TokenBucket(permitsPerSecond, burst);
+    }
+
+    /**
+     * @param rate rate in the format of Celery's {@code rate_limit}, eg. {@code "500/s"}, {@code "10/m"},
+     *             {@code "100/h"} or just {@code "500"} per second
+     * @return new bucket without bursts - the tasks are evenly spaced
+     */
+    public static TokenBucket of(String rate) {
+        Matcher matcher = RATE.matcher(checkNotNull(rate, "rate").trim());
+        checkArgument(matcher.matches(), "rate must be like 500/s, 10/m or 100/h: %s", rate);
+        double permits = Double.parseDouble(matcher.group(1));
+        String unit = matcher.group(2) != null ? matcher.group(2) : "s";
+        double perSecond = unit.equals("s") ? permits : unit.equals("m") ? permits / 60 : permits / 3600;
+        return new TokenBucket(perSecond, 1);
+    }
+
+    /**
+     * Takes a token, even when the bucket is empty.
+     *
+     * @return nanoseconds the caller has to wait before using the token, 0 if it can be used right away
+     */
+    public long reserve() {
+        while (true) {
+            long now = nanoTime.getAsLong();
+            long arrival = nextArrival.get();
+            long start = arrival - now > 0 ? arrival : now;
+            if (nextArrival.compareAndSet(arrival, start + intervalNanos)) {
+                return Math.max(0, start - now - toleranceNanos);
+            }
+        }
+    }
+
+    /**
+     * Takes a token only if it can be used right away.
+     *
+     * @return {@code true} if the token was taken
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            long now = nanoTime.getAsLong();
+            long arrival = nextArrival.get();
+            long start = arrival - now > 0 ? arrival : now;
+            if (start - now > toleranceNanos) {
+                return false;
+            }
+            if (nextArrival.compareAndSet(arrival, start + intervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    @Override
+    public String toString() {
+        return permitsPerSecond + "/s";
+    }
+}
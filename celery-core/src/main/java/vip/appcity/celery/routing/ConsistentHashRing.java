@@ -0,0 +1,125 @@
+package vip.appcity.celery.routing;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Consistent hash ring mapping keys to queues. Each queue is placed on the ring at {@code virtualNodes} points and a
+ * key belongs to the queue owning the first point following the hash of the key. Adding or removing a queue moves only
+ * the keys of its points, about {@code 1/N} of them, all the other keys stay with their queues.
+ * <p>
+ *     The ring is immutable, {@link #withQueues(Collection)} creates a resized one. Looking up a key is a binary
+ *     search over a sorted array of the points.
+ * </p>
+ */
+public final class ConsistentHashRing {
+
+    /** Number of points per queue used by {@link #of(Collection)}, enough to spread the keys evenly. */
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final Set<String> queues;
+    private final int virtualNodes;
+    private final long[] points;
+    private final String[] owners;
+
+    private ConsistentHashRing(Collection<String> queues, int virtualNodes) {
+        checkArgument(!queues.isEmpty(), "the ring needs at least one queue");
+        checkArgument(virtualNodes > 0, "virtualNodes must be positive");
+        this.queues = ImmutableSet.copyOf(queues);
+        this.virtualNodes = virtualNodes;
+
+        List<Point> ring = new ArrayList<>(this.queues.size() * virtualNodes);
+        for (String queue : this.queues) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.add(new Point(hash(queue + "#" + i), queue));
+            }
+        }
+        // ties broken by the name, so that the ring doesn't depend on the order of the queues
+        ring.sort(Comparator.<Point>comparingLong(p -> p.hash).thenComparing(p -> p.queue));
+
+        this.points = new long[ring.size()];
+        this.owners = new String[ring.size()];
+        for (int i = 0; i < ring.size(); i++) {
+            points[i] = ring.get(i).hash;
+            owners[i] = ring.get(i).queue;
+        }
+    }
+
+    /**
+     * @param queues the queues, eg. {@code orders.0} .. {@code orders.7}
+     * @return ring with {@link #DEFAULT_VIRTUAL_NODES} points per queue
+     */
+    public static ConsistentHashRing of(Collection<String> queues) {
+        return of(queues, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * @param queues the queues
+     * @param virtualNodes number of points per queue
+     * @return new ring
+     */
+    public static ConsistentHashRing of(Collection<String> queues, int virtualNodes) {
+        return new ConsistentHashRing(checkNotNull(queues, "queues"), virtualNodes);
+    }
+
+    /**
+     * @param queues the queues of the new ring
+     * @return ring with the same number of points per queue over another set of queues
+     */
+    public ConsistentHashRing withQueues(Collection<String> queues) {
+        return of(queues, virtualNodes);
+    }
+
+    /**
+     * @param key routing key, eg. customer ID
+     * @return queue owning the key
+     */
+    public String queueFor(String key) {
+        long hash = hash(key);
+        int i = Arrays.binarySearch(points, hash);
+        if (i < 0) {
+            // insertion point - the first point after the hash, wrapping around the end of the ring
+            i = -i - 1;
+            if (i == points.length) {
+                i = 0;
+            }
+        }
+        return owners[i];
+    }
+
+    public Set<String> getQueues() {
+        return queues;
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    private static long hash(String s) {
+        return HASH.hashString(s, StandardCharsets.UTF_8).asLong();
+    }
+
+    private static final class Point {
+        final long hash;
+        final String queue;
+
+        Point(long hash, String queue) {
+            this.hash = hash;
+            this.queue = queue;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package vip.appcity.celery.routing;
+
+import java.util.Collection;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Spreads a task across a set of queues by a key taken from its arguments, so that tasks with the same key always go
+ * to the same queue (and the same worker shard). The queues are picked by a {@link ConsistentHashRing}.
+ * <p>
+ *     The set of queues can be changed while the route is in use, see {@link #resize(Collection)}.
+ * </p>
+ *
+ * Thread safety: the route can be used from multiple threads.
+ */
+public final class PartitionedRoute {
+
+    private final RoutingKeyExtractor keyExtractor;
+    private volatile ConsistentHashRing ring;
+
+    private PartitionedRoute(ConsistentHashRing ring, RoutingKeyExtractor keyExtractor) {
+        this.ring = checkNotNull(ring, "ring");
+        this.keyExtractor = checkNotNull(keyExtractor, "keyExtractor");
+    }
+
+    /**
+     * @param ring ring of the queues
+     * @param keyExtractor extracts the routing key from the task arguments, eg. {@code RoutingKeyExtractor.arg(0)}
+     * @return new route
+     */
+    public static PartitionedRoute of(ConsistentHashRing ring, RoutingKeyExtractor keyExtractor) {
+        return new PartitionedRoute(ring, keyExtractor);
+    }
+
+    /**
+     * @param args positional arguments of the task
+     * @return queue for the task
+     * @throws IllegalArgumentException if the arguments have no routing key
+     */
+    public String queueFor(Object[] args) {
+        Object key = keyExtractor.routingKey(args);
+        checkArgument(key != null, "the task has no routing key");
+        return ring.queueFor(String.valueOf(key));
+    }
+
+    /**
+     * Replaces the queues, eg. when a worker shard is added. Only the keys moved to or from the added or removed
+     * queues change their queue.
+     *
+     * @param queues the new queues
+     */
+    public void resize(Collection<String> queues) {
+        ring = ring.withQueues(queues);
+    }
+
+    public ConsistentHashRing getRing() {
+        return ring;
+    }
+}
@@ -0,0 +1,28 @@
+package vip.appcity.celery.routing;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Extracts the routing key from the arguments of a task, eg. the customer ID, see {@link PartitionedRoute}.
+ */
+@FunctionalInterface
+public interface RoutingKeyExtractor {
+
+    /**
+     * @param args positional arguments of the task
+     * @return the key, converted to a string by {@link String#valueOf(Object)}
+     */
+    @Nullable
+    Object routingKey(Object[] args);
+
+    /**
+     * @param index position of the argument
+     * @return extractor using the argument at the position as the key
+     */
+    static RoutingKeyExtractor arg(int index) {
+        checkArgument(index >= 0, "index must not be negative");
+        return args -> index < args.length ? args[index] : null;
+    }
+}
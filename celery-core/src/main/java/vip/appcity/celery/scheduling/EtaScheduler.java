@@ -0,0 +1,108 @@
+package vip.appcity.celery.scheduling;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Holds items until their ETA in a {@link TimingWheel} and hands them to a consumer once it passes. The wheel is
+ * advanced by a daemon thread started with the first scheduled item; the consumer runs on that thread too.
+ * <p>
+ *     Holding an item costs a single small node, so the scheduler can hold millions of them.
+ * </p>
+ *
+ * Thread safety: items can be scheduled from multiple threads.
+ *
+ * @param <T> type of the scheduled items
+ */
+@Slf4j
+public final class EtaScheduler<T> implements Closeable {
+
+    private final String name;
+    private final long tickMillis;
+    private final Consumer<? super T> onDue;
+    private final TimingWheel<T> wheel;
+
+    private Thread thread;
+    private boolean closed = false;
+
+    /**
+     * @param name name of the thread advancing the wheel
+     * @param tickMillis resolution of the scheduler, in milliseconds
+     * @param onDue called with each item once its ETA passes
+     */
+    public EtaScheduler(String name, long tickMillis, Consumer<? super T> onDue) {
+        checkArgument(tickMillis > 0, "tickMillis must be positive");
+        this.name = name;
+        this.tickMillis = tickMillis;
+        this.onDue = onDue;
+        this.wheel = new TimingWheel<>(tickMillis, System.currentTimeMillis());
+    }
+
+    /**
+     * @param etaMillis when the item is due, epoch millis
+     * @param item the scheduled item
+     * @return {@code false} if the item is already due (it's not scheduled, the caller should handle it right away)
+     */
+    public boolean schedule(long etaMillis, T item) {
+        synchronized (wheel) {
+            if (closed || !wheel.add(etaMillis, item)) {
+                return false;
+            }
+            if (thread == null) {
+                thread = new Thread(this::run, name);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return number of the items waiting for their ETA
+     */
+    public int size() {
+        synchronized (wheel) {
+            return wheel.size();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // the wheel follows the clock, so oversleeping delays the items but doesn't accumulate
+                Thread.sleep(tickMillis);
+                List<T> due;
+                synchronized (wheel) {
+                    due = wheel.advance(System.currentTimeMillis());
+                }
+                for (T item : due) {
+                    try {
+                        onDue.accept(item);
+                    } catch (RuntimeException e) {
+                        log.error("Scheduled item failed", e);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Stops the scheduler, the items still waiting for their ETA are dropped.
+     */
+    @Override
+    public void close() {
+        synchronized (wheel) {
+            closed = true;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+}
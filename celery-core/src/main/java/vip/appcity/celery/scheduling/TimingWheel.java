@@ -0,0 +1,151 @@
+package vip.appcity.celery.scheduling;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Hierarchical timing wheel holding items until their deadline. Adding an item and expiring it costs O(1) no matter
+ * how many items are held, unlike a heap (eg. {@link java.util.concurrent.ScheduledExecutorService}) which costs
+ * O(log n) per item.
+ * <p>
+ *     The time is divided into ticks. The lowest wheel has a bucket for each of its 256 ticks, each higher wheel has
+ *     a bucket for each revolution of the wheel below it. An item goes to the lowest wheel spanning its deadline and
+ *     is cascaded to the lower wheels as the deadline gets closer, so it moves at most once per wheel. Items expire in
+ *     the first tick after their deadline, never before it.
+ * </p>
+ *
+ * Thread safety: the wheel is not thread safe, {@link EtaScheduler} drives it from its own thread.
+ *
+ * @param <T> type of the held items
+ */
+public final class TimingWheel<T> {
+
+    private static final int BITS = 8;
+    private static final int SIZE = 1 << BITS;
+    private static final int MASK = SIZE - 1;
+    // enough wheels to hold any positive long number of ticks
+    private static final int LEVELS = (Long.SIZE - 1 + BITS - 1) / BITS;
+
+    private final long tickMillis;
+    private final long startMillis;
+    // the wheels are allocated once they hold an item, most deadlines need just the lowest two
+    private final Node<T>[][] wheels;
+    private long currentTick = 0;
+    private int size = 0;
+
+    /**
+     * @param tickMillis resolution of the wheel, in milliseconds
+     * @param nowMillis current time, the wheel starts at it
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, long nowMillis) {
+        checkArgument(tickMillis > 0, "tickMillis must be positive");
+        this.tickMillis = tickMillis;
+        this.startMillis = nowMillis;
+        this.wheels = new Node[LEVELS][];
+    }
+
+    /**
+     * @param deadlineMillis when the item expires, epoch millis
+     * @param item the held item
+     * @return {@code false} if the deadline has already passed, the item is not added then
+     */
+    public boolean add(long deadlineMillis, T item) {
+        long elapsed = deadlineMillis - startMillis;
+        // rounded up, not to expire before the deadline
+        long deadlineTick = elapsed > 0 ? (elapsed - 1) / tickMillis + 1 : 0;
+        if (deadlineTick <= currentTick) {
+            return false;
+        }
+        insert(new Node<>(deadlineTick, item));
+        size++;
+        return true;
+    }
+
+    /**
+     * Moves the wheel to the given time.
+     *
+     * @param nowMillis current time, epoch millis
+     * @return the items whose deadline has passed, in the order of their deadlines
+     */
+    public List<T> advance(long nowMillis) {
+        long nowTick = (nowMillis - startMillis) / tickMillis;
+        if (size == 0) {
+            currentTick = Math.max(currentTick, nowTick);
+            return Collections.emptyList();
+        }
+
+        List<T> expired = new ArrayList<>();
+        while (currentTick < nowTick && size > 0) {
+            currentTick++;
+            cascade();
+            Node<T>[] lowest = wheels[0];
+            int index = (int) currentTick & MASK;
+            if (lowest != null && lowest[index] != null) {
+                for (Node<T> node = lowest[index]; node != null; node = node.next) {
+                    expired.add(node.item);
+                    size--;
+                }
+                lowest[index] = null;
+            }
+        }
+        currentTick = Math.max(currentTick, nowTick);
+        return expired;
+    }
+
+    /**
+     * @return number of the held items
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Moves the items of the current bucket of each wheel that has just completed a revolution of the wheel below it.
+     */
+    private void cascade() {
+        for (int level = 1; level < LEVELS && (currentTick & ((1L << (BITS * level)) - 1)) == 0; level++) {
+            Node<T>[] wheel = wheels[level];
+            if (wheel == null) {
+                continue;
+            }
+            int index = (int) (currentTick >>> (BITS * level)) & MASK;
+            Node<T> node = wheel[index];
+            wheel[index] = null;
+            while (node != null) {
+                Node<T> next = node.next;
+                insert(node);
+                node = next;
+            }
+        }
+    }
+
+    private void insert(Node<T> node) {
+        long delta = node.deadlineTick - currentTick;
+        // the lowest wheel spanning the delta, delta < SIZE^(level + 1)
+        int level = delta < SIZE ? 0 : (Long.SIZE - 1 - Long.numberOfLeadingZeros(delta)) / BITS;
+        if (wheels[level] == null) {
+            @SuppressWarnings("unchecked")
+            Node<T>[] wheel = new Node[SIZE];
+            wheels[level] = wheel;
+        }
+        int index = (int) (node.deadlineTick >>> (BITS * level)) & MASK;
+        node.next = wheels[level][index];
+        wheels[level][index] = node;
+    }
+
+    private static final class Node<T> {
+
+        final long deadlineTick;
+        final T item;
+        Node<T> next;
+
+        Node(long deadlineTick, T item) {
+            this.deadlineTick = deadlineTick;
+            this.item = item;
+        }
+    }
+}
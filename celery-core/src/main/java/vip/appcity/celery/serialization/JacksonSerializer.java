@@ -0,0 +1,54 @@
+package vip.appcity.celery.serialization;
+
+import vip.appcity.celery.spi.Serializer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * {@link Serializer} for any format Jackson has a data format for.
+ */
+final class JacksonSerializer implements Serializer {
+
+    private final String contentType;
+    private final String contentEncoding;
+    private final ObjectMapper mapper;
+    /** Serializers of other formats derived from the mapper, by their content type. */
+    private final Map<String, Serializer> derived = new ConcurrentHashMap<>();
+
+    JacksonSerializer(String contentType, String contentEncoding, ObjectMapper mapper) {
+        this.contentType = contentType;
+        this.contentEncoding = contentEncoding;
+        this.mapper = mapper;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    @Override
+    public ObjectMapper getMapper() {
+        return mapper;
+    }
+
+    /**
+     * @return serializer of another format derived from the mapper, created on the first call
+     */
+    Serializer derived(String contentType, Function<ObjectMapper, Serializer> format) {
+        return derived.computeIfAbsent(contentType, t -> format.apply(mapper));
+    }
+
+    @Override
+    public String toString() {
+        return contentType;
+    }
+}
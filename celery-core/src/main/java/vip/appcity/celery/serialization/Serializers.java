@@ -0,0 +1,226 @@
+package vip.appcity.celery.serialization;
+
+import vip.appcity.celery.spi.Serializer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.deser.DefaultDeserializationContext;
+import com.fasterxml.jackson.databind.ser.DefaultSerializerProvider;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * The available {@link Serializer serializers}, looked up by name when configuring and by content type when decoding.
+ * <ul>
+ *     <li>{@code json} - the default, the same as in Python Celery</li>
+ *     <li>{@code msgpack} - binary, the same as in Python Celery, needs {@code org.msgpack:jackson-dataformat-msgpack}
+ *     </li>
+ *     <li>{@code smile} - binary Jackson format, the fastest, only for Java to Java, needs
+ *     {@code com.fasterxml.jackson.dataformat:jackson-dataformat-smile}</li>
+ * </ul>
+ * The binary formats can be derived from a JSON mapper, so that its modules and configuration apply to them too.
+ * Workers and backends decode them by the serializers derived from their JSON mapper.
+ * Other serializers can be {@link #register(Serializer) registered}, so that workers and clients can decode them.
+ */
+public final class Serializers {
+
+    public static final String JSON = "application/json";
+    public static final String MSGPACK = "application/x-msgpack";
+    public static final String SMILE = "application/x-jackson-smile";
+
+    private static final String TEXT_ENCODING = "utf-8";
+    private static final String BINARY_ENCODING = "binary";
+
+    private static final Map<String, Serializer> REGISTERED = new ConcurrentHashMap<>();
+
+    private Serializers() {
+    }
+
+    /**
+     * @param mapper mapper configured for JSON
+     * @return JSON serializer using the mapper
+     */
+    public static Serializer json(ObjectMapper mapper) {
+        return new JacksonSerializer(JSON, TEXT_ENCODING, mapper);
+    }
+
+    /**
+     * @return MessagePack serializer with a default mapper
+     * @throws IllegalStateException if the MessagePack data format is not on the classpath
+     */
+    public static Serializer msgpack() {
+        try {
+            return MsgpackHolder.MSGPACK;
+        } catch (NoClassDefFoundError e) {
+            throw msgpackMissing(e);
+        }
+    }
+
+    /**
+     * @param mapper mapper configured for JSON
+     * @return MessagePack serializer with the modules and configuration of the mapper
+     * @throws IllegalStateException if the MessagePack data format is not on the classpath
+     */
+    public static Serializer msgpack(ObjectMapper mapper) {
+        try {
+            return new JacksonSerializer(MSGPACK, BINARY_ENCODING, derive(mapper, MsgpackHolder.factory()));
+        } catch (NoClassDefFoundError e) {
+            throw msgpackMissing(e);
+        }
+    }
+
+    /**
+     * @return Smile serializer with a default mapper
+     * @throws IllegalStateException if the Smile data format is not on the classpath
+     */
+    public static Serializer smile() {
+        try {
+            return SmileHolder.SMILE;
+        } catch (NoClassDefFoundError e) {
+            throw smileMissing(e);
+        }
+    }
+
+    /**
+     * @param mapper mapper configured for JSON
+     * @return Smile serializer with the modules and configuration of the mapper
+     * @throws IllegalStateException if the Smile data format is not on the classpath
+     */
+    public static Serializer smile(ObjectMapper mapper) {
+        try {
+            return new JacksonSerializer(SMILE, BINARY_ENCODING, derive(mapper, SmileHolder.factory()));
+        } catch (NoClassDefFoundError e) {
+            throw smileMissing(e);
+        }
+    }
+
+    /**
+     * Applies a JSON mapper to a built-in binary serializer with the default mapper, eg. the {@code jsonMapper} of a
+     * client to {@link #msgpack()}.
+     *
+     * @param serializer the serializer
+     * @param mapper mapper configured for JSON
+     * @return the serializer derived from the mapper, other serializers as they are
+     */
+    public static Serializer withMapper(Serializer serializer, ObjectMapper mapper) {
+        if (MSGPACK.equals(serializer.getContentType()) && serializer == MsgpackHolder.MSGPACK) {
+            return msgpack(mapper);
+        } else if (SMILE.equals(serializer.getContentType()) && serializer == SmileHolder.SMILE) {
+            return smile(mapper);
+        }
+        return serializer;
+    }
+
+    /**
+     * @param name serializer name, see the class description
+     * @return the serializer, JSON with a default mapper for {@code json}
+     * @throws IllegalArgumentException if there's no such serializer
+     */
+    public static Serializer forName(String name) {
+        switch (name) {
+            case "json":
+                return json(new ObjectMapper());
+            case "msgpack":
+                return msgpack();
+            case "smile":
+                return smile();
+            default:
+                throw new IllegalArgumentException("Unknown serializer " + name);
+        }
+    }
+
+    /**
+     * @param contentType content type of a received message, {@code null} means JSON
+     * @param json serializer to use for JSON, so that the receiver's mapper configuration applies; the binary formats
+     *             are derived from its mapper once
+     * @return serializer decoding the message
+     * @throws IOException if the content type is not supported
+     */
+    public static Serializer forContentType(@Nullable String contentType, Serializer json) throws IOException {
+        if (contentType == null || JSON.equals(contentType)) {
+            return json;
+        }
+        try {
+            if (MSGPACK.equals(contentType)) {
+                return derived(json, MSGPACK, Serializers::msgpack);
+            } else if (SMILE.equals(contentType)) {
+                return derived(json, SMILE, Serializers::smile);
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+
+        Serializer serializer = REGISTERED.get(contentType);
+        if (serializer == null) {
+            throw new IOException("Unsupported content type " + contentType);
+        }
+        return serializer;
+    }
+
+    /**
+     * Makes a custom serializer available for decoding messages of its content type.
+     *
+     * @param serializer the serializer
+     */
+    public static void register(Serializer serializer) {
+        REGISTERED.put(serializer.getContentType(), serializer);
+    }
+
+    private static Serializer derived(Serializer json, String contentType, Function<ObjectMapper, Serializer> format) {
+        return json instanceof JacksonSerializer
+                ? ((JacksonSerializer) json).derived(contentType, format)
+                : format.apply(json.getMapper());
+    }
+
+    /**
+     * Copies a mapper for another data format - the (de)serializers of its modules, mix-ins, type and subtype
+     * resolution and features. Jackson 2.9 can't replace the factory of a mapper copy.
+     */
+    private static ObjectMapper derive(ObjectMapper mapper, JsonFactory factory) {
+        ObjectMapper derived = new ObjectMapper(factory,
+                ((DefaultSerializerProvider) mapper.getSerializerProvider()).copy(),
+                ((DefaultDeserializationContext) mapper.getDeserializationContext()).copy());
+        derived.setSerializerFactory(mapper.getSerializerFactory());
+        derived.setTypeFactory(mapper.getTypeFactory());
+        derived.setSubtypeResolver(mapper.getSubtypeResolver());
+        derived.setInjectableValues(mapper.getInjectableValues());
+        derived.setConfig(mapper.getSerializationConfig());
+        derived.setConfig(mapper.getDeserializationConfig());
+        return derived;
+    }
+
+    private static IllegalStateException msgpackMissing(NoClassDefFoundError e) {
+        return new IllegalStateException(
+                "msgpack serializer needs org.msgpack:jackson-dataformat-msgpack on the classpath", e);
+    }
+
+    private static IllegalStateException smileMissing(NoClassDefFoundError e) {
+        return new IllegalStateException(
+                "smile serializer needs com.fasterxml.jackson.dataformat:jackson-dataformat-smile on the classpath", e);
+    }
+
+    // holders that load the optional dependencies on first use
+    private static final class MsgpackHolder {
+        private static final Serializer MSGPACK = new JacksonSerializer(
+                Serializers.MSGPACK, BINARY_ENCODING, new ObjectMapper(factory()));
+
+        static JsonFactory factory() {
+            return new MessagePackFactory();
+        }
+    }
+
+    private static final class SmileHolder {
+        private static final Serializer SMILE = new JacksonSerializer(
+                Serializers.SMILE, BINARY_ENCODING, new ObjectMapper(factory()));
+
+        static JsonFactory factory() {
+            return new SmileFactory();
+        }
+    }
+}
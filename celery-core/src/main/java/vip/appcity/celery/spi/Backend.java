@@ -1,10 +1,15 @@
 package vip.appcity.celery.spi;
 
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import vip.appcity.celery.CeleryClientCore;
+import vip.appcity.celery.TaskRevokedException;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * <i>Internal, used by {@link CeleryClientCore} and implemented by backend providers.</i>
@@ -48,6 +53,55 @@ public interface Backend extends Closeable {
      */
     void reportException(String taskId, String queue, String correlationId, Throwable exception) throws IOException;
 
+    /**
+     * Report successful result of computation back to the client, encoded the same way as the task was. Backends
+     * that always use their own format ignore the serializer.
+     *
+     * @param taskId unique task ID as received
+     * @param queue which queue to report the result to (usually the client ID)
+     * @param correlationId correlation ID as received
+     * @param <R> task result type
+     * @param result the computation result (needs to be serializable)
+     * @param serializer serializer of the task message
+     * @throws IOException in case of connection problem
+     */
+    default <R> void reportResult(
+            String taskId, String queue, String correlationId, R result, Serializer serializer
+    ) throws IOException {
+        reportResult(taskId, queue, correlationId, result);
+    }
+
+    /**
+     * Report erroneous result of computation back to the client, encoded the same way as the task was. Backends
+     * that always use their own format ignore the serializer.
+     *
+     * @param taskId unique task ID as received
+     * @param queue which queue to report the result to (usually the client ID)
+     * @param correlationId correlation ID as received
+     * @param exception description of the problem
+     * @param serializer serializer of the task message
+     * @throws IOException in case of connection problem
+     */
+    default void reportException(
+            String taskId, String queue, String correlationId, Throwable exception, Serializer serializer
+    ) throws IOException {
+        reportException(taskId, queue, correlationId, exception);
+    }
+
+    /**
+     * Report that the task was revoked instead of being executed, eg. because it expired. The client gets a
+     * {@link TaskRevokedException}.
+     *
+     * @param taskId unique task ID as received
+     * @param queue which queue to report the result to (usually the client ID)
+     * @param correlationId correlation ID as received
+     * @param reason why the task was revoked, eg. {@code "expired"}
+     * @throws IOException in case of connection problem
+     */
+    default void reportRevoked(String taskId, String queue, String correlationId, String reason) throws IOException {
+        reportException(taskId, queue, correlationId, new TaskRevokedException(reason));
+    }
+
     /**
      * A way to get notified about completion of the tasks.
      */
@@ -59,6 +113,26 @@ public interface Backend extends Closeable {
          */
         ListenableFuture<R> getResult(String taskId);
 
+        /**
+         * Providers should override this not to track each task of the group separately, see
+         * {@link vip.appcity.celery.backends.GroupResults}.
+         *
+         * @param taskIds unique IDs of the tasks of a group, asked for before the tasks are sent
+         * @param failFast fail as soon as a task fails, otherwise the group fails once all its tasks finish
+         * @return results of the tasks in the order of {@code taskIds}, failed with the first failure of a task
+         */
+        default ListenableFuture<List<R>> getGroupResult(List<String> taskIds, boolean failFast) {
+            List<ListenableFuture<R>> results = new ArrayList<>(taskIds.size());
+            for (String taskId : taskIds) {
+                results.add(getResult(taskId));
+            }
+            ListenableFuture<List<R>> all = Futures.allAsList(results);
+            if (failFast) {
+                return all;
+            }
+            return Futures.whenAllComplete(results).callAsync(() -> all, MoreExecutors.directExecutor());
+        }
+
         /**
          * @return the parent backend instance
          */
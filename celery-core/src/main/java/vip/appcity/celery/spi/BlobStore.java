@@ -0,0 +1,30 @@
+package vip.appcity.celery.spi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <i>Stores task arguments too large to be sent in the message, see {@link vip.appcity.celery.ClaimCheck}.</i>
+ *
+ * <p>
+ *     The store is content-addressed - the key is derived from the data only, so storing the same data twice yields
+ *     the same key and keeps a single copy. Clients and workers have to share the store (eg. a network file system).
+ *     Implementations must be thread safe.
+ * </p>
+ */
+public interface BlobStore {
+
+    /**
+     * @param data the blob
+     * @return key under which the blob can be read, the same for the same data
+     * @throws IOException if the blob can't be stored
+     */
+    String put(byte[] data) throws IOException;
+
+    /**
+     * @param key key returned by {@link #put(byte[])}
+     * @return read-only view of the blob, may be backed by the store (eg. memory-mapped file)
+     * @throws IOException if the blob doesn't exist or can't be read
+     */
+    ByteBuffer get(String key) throws IOException;
+}
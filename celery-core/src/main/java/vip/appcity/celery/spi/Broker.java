@@ -4,6 +4,7 @@ import vip.appcity.celery.CeleryClientCore;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.List;
 
 /**
  * <i>Internal, used by {@link CeleryClientCore} and implemented by broker providers.</i>
@@ -29,4 +30,18 @@ public interface Broker extends Closeable {
      * @return message that can be constructed and later sent
      */
     Message newMessage();
+
+    /**
+     * Sends a batch of messages into one queue. Brokers should override this so that the whole batch goes through
+     * a single connection channel; the default implementation simply sends the messages one by one.
+     *
+     * @param queue into which queue to send the messages
+     * @param messages messages created by {@link #newMessage()} of this broker
+     * @throws IOException in case of connection problem
+     */
+    default void sendAll(String queue, List<? extends Message> messages) throws IOException {
+        for (Message message : messages) {
+            message.send(queue);
+        }
+    }
 }
@@ -2,6 +2,7 @@ package vip.appcity.celery.spi;
 
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * A message (most often a unit of work) to be sent to the queue.
@@ -23,11 +24,26 @@ public interface Message {
      */
     void setContentType(String contentType);
 
+    /**
+     * @param priority delivery priority, higher is delivered first; brokers without priorities ignore it
+     */
+    default void setPriority(int priority) {
+    }
+
     /**
      * @return message headers builder
      */
     Headers getHeaders();
 
+    /**
+     * Creates a new message with the same properties and headers as this one. The client uses it to prepare a
+     * template message once and to derive messages for each task invocation from it. Modifying the copy must not
+     * affect this message.
+     *
+     * @return new message that can be completed and sent
+     */
+    Message copy();
+
     /**
      * Once ready, you can send the message.
      *
@@ -65,5 +81,41 @@ public interface Message {
          * @param task name of the task to be executed (worker looks for a function/class by this name)
          */
         void setTaskName(String task);
+
+        /**
+         * @param contentType codec the body is compressed with, see {@link vip.appcity.celery.compression.Compressor}
+         */
+        default void setCompression(String contentType) {
+            throw new UnsupportedOperationException("This broker doesn't support compression");
+        }
+
+        /**
+         * @param indices positions of the arguments sent as {@link BlobStore} keys, see
+         *                {@link vip.appcity.celery.ClaimCheck}
+         */
+        default void setBlobArgs(List<Integer> indices) {
+            throw new UnsupportedOperationException("This broker doesn't support offloaded arguments");
+        }
+
+        /**
+         * @param eta ISO 8601 time before which the task must not be executed
+         */
+        default void setEta(String eta) {
+            throw new UnsupportedOperationException("This broker doesn't support ETA");
+        }
+
+        /**
+         * @param expires ISO 8601 time after which the task must not be executed
+         */
+        default void setExpires(String expires) {
+            throw new UnsupportedOperationException("This broker doesn't support expiration");
+        }
+
+        /**
+         * @param groupId ID of the group the task belongs to
+         */
+        default void setGroup(String groupId) {
+            throw new UnsupportedOperationException("This broker doesn't support groups");
+        }
     }
 }
@@ -0,0 +1,33 @@
+package vip.appcity.celery.spi;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * <i>Used by {@link vip.appcity.celery.CeleryClientCore}, the workers and the backends to encode task messages and
+ * results.</i>
+ *
+ * <p>
+ *     A serializer is identified by the content type of the messages it produces, the receiving side picks the
+ *     serializer by the content type of the message. Serializers are based on Jackson, so the same object mapping
+ *     applies regardless of the format.
+ * </p>
+ *
+ * Serializers must be thread safe.
+ */
+public interface Serializer {
+
+    /**
+     * @return MIME type of the encoded messages, as understood by Python Celery (kombu) if possible
+     */
+    String getContentType();
+
+    /**
+     * @return content encoding of the encoded messages, {@code binary} for binary formats
+     */
+    String getContentEncoding();
+
+    /**
+     * @return mapper reading and writing the format
+     */
+    ObjectMapper getMapper();
+}
@@ -0,0 +1,20 @@
+package vip.appcity.celery.spi;
+
+import vip.appcity.celery.CeleryClientCore;
+
+/**
+ * <i>Used by {@link CeleryClientCore} for tasks submitted without an explicit ID.</i>
+ *
+ * <p>
+ *     Generators must be thread safe and the IDs should be unique across all clients, Celery expects them to be
+ *     formatted as UUIDs.
+ * </p>
+ */
+@FunctionalInterface
+public interface TaskIdGenerator {
+
+    /**
+     * @return new unique task ID
+     */
+    String nextId();
+}
@@ -1,12 +1,29 @@
 package vip.appcity.celery
 
+import vip.appcity.celery.compression.Compressors
+import vip.appcity.celery.outbox.Outbox
+import vip.appcity.celery.ratelimit.TokenBucket
+import vip.appcity.celery.routing.ConsistentHashRing
+import vip.appcity.celery.routing.PartitionedRoute
+import vip.appcity.celery.routing.RoutingKeyExtractor
 import vip.appcity.celery.spi.Backend
+import vip.appcity.celery.spi.BlobStore
 import vip.appcity.celery.spi.Broker
 import vip.appcity.celery.spi.Message
 import com.google.common.util.concurrent.SettableFuture
+import com.rabbitmq.client.AlreadyClosedException
+import com.rabbitmq.client.ShutdownSignalException
 import groovy.json.JsonSlurper
 import spock.genesis.Gen
+import org.reactivestreams.Subscriber
+import org.reactivestreams.Subscription
 import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.nio.file.Files
+import java.time.Instant
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
 
 class ClientTest extends Specification {
 
@@ -42,6 +59,68 @@ class ClientTest extends Specification {
         1 * message.send("celery")
     }
 
+    def "Client should send empty kwargs and embed without callbacks"() {
+        when:
+        client.submit(TestingTask.class, "doWork", [[1, 2], null, "x"] as Object[])
+
+        then:
+        1 * message.setBody({
+            new JsonSlurper().parse(it, "utf-8") == [
+                    [[1, 2], null, "x"],
+                    [:],
+                    [callbacks: null, chain: null, chord: null, errbacks: null]
+            ]
+        })
+    }
+
+    def "Client should pack invocations into starmap chunks"() {
+        def payloads = []
+        def result
+
+        when:
+        result = client.chunks("tasks.add", (1..5).collect { [it, 1] as Object[] }, 2)
+
+        then:
+        3 * message.headers.setTaskName("celery.starmap")
+        3 * message.setBody({ payloads << new JsonSlurper().parse(it, "utf-8") })
+        3 * message.send("celery")
+
+        payloads*.getAt(0)*.getAt(0)*.task == ["tasks.add"] * 3
+        payloads*.getAt(0)*.getAt(1) == [[[1, 1], [2, 1]], [[3, 1], [4, 1]], [[5, 1]]]
+        result.get() == [null] * 5
+    }
+
+    def "Client should refuse a chord without a backend"() {
+        when:
+        client.chord([Signature.of("tasks.add", [1, 2] as Object[])], Signature.of("tasks.sum", [] as Object[]))
+
+        then:
+        thrown(IllegalStateException)
+        0 * message.send(_)
+    }
+
+    def "Client should send the first task of a chain carrying the rest in reverse order"() {
+        def payload
+
+        when:
+        client.chain([
+                Signature.of("tasks.fetch", "id-1", ["url"] as Object[]),
+                Signature.of("tasks.parse", "id-2", [] as Object[]),
+                Signature.of("tasks.store", "id-3", ["table"] as Object[]),
+        ])
+
+        then:
+        1 * message.headers.setTaskName("tasks.fetch")
+        1 * message.headers.setId("id-1")
+        1 * message.setBody({ payload = new JsonSlurper().parse(it, "utf-8") })
+        1 * message.send("celery")
+
+        payload[0] == ["url"]
+        payload[2].chain*.task == ["tasks.store", "tasks.parse"]
+        payload[2].chain*.args == [["table"], []]
+        payload[2].chain*.options*.task_id == ["id-3", "id-2"]
+    }
+
     def "Client should set task properties"() {
         def payload = new Payload(prop1: "p1val")
         def tooLongString = ""
@@ -57,6 +136,73 @@ class ClientTest extends Specification {
         1 * message.headers.setOrigin({it.endsWith("@" + InetAddress.getLocalHost().getHostName())})
     }
 
+    def "Client should set priority from the task options"() {
+        when:
+        client.submit("x.Task#run", null, [] as Object[], TaskOptions.DEFAULT.withPriority(9))
+
+        then:
+        1 * message.setPriority(9)
+        1 * message.send("celery")
+
+        when:
+        client.submit("x.Task#run", null, [] as Object[], TaskOptions.DEFAULT)
+
+        then:
+        0 * message.setPriority(_)
+    }
+
+    def "Client should set ETA from the task options"() {
+        def before = Instant.now()
+
+        when:
+        client.submit("x.Task#run", null, [] as Object[],
+                TaskOptions.DEFAULT.withEta(Instant.parse("2030-01-02T03:04:05Z")))
+
+        then:
+        1 * message.headers.setEta("2030-01-02T03:04:05.000000+00:00")
+
+        when:
+        client.submit("x.Task#run", null, [] as Object[], TaskOptions.DEFAULT.withCountdown(10, TimeUnit.SECONDS))
+
+        then:
+        1 * message.headers.setEta({
+            def eta = Timestamps.parse(it)
+            !eta.isBefore(before.plusSeconds(10)) && eta.isBefore(Instant.now().plusSeconds(11))
+        })
+    }
+
+    def "Client should set expiration from the task options"() {
+        when:
+        client.submit("x.Task#run", null, [] as Object[],
+                TaskOptions.DEFAULT.withExpires(Instant.parse("2030-01-02T03:04:05Z")))
+
+        then:
+        1 * message.headers.setExpires("2030-01-02T03:04:05.000000+00:00")
+    }
+
+    def "Client should wait for the rate limit before sending"() {
+        def options = TaskOptions.DEFAULT.withRateLimit(TokenBucket.of(20, 1))
+        def started = System.nanoTime()
+
+        when:
+        3.times { client.submit("x.Task#run", null, [] as Object[], options) }
+
+        then:
+        3 * message.send("celery")
+        System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(90)
+    }
+
+    def "Task options should reject priority out of range"() {
+        when:
+        TaskOptions.DEFAULT.withPriority(priority)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        priority << [-1, 256]
+    }
+
     def "Task ID should be different for each task submitted"() {
         def taskIds = []
         when:
@@ -95,6 +241,213 @@ class ClientTest extends Specification {
         result.get() == null
     }
 
+    def "Client should submit asynchronously"() {
+        def result
+        when:
+        result = client.submitAsync(TestingTask.class, "doWork", [0.5, new Payload(prop1: "p1val")] as Object[])
+        result.get(5, TimeUnit.SECONDS)
+
+        then:
+        1 * message.headers.setTaskName("vip.appcity.celery.TestingTask#doWork")
+        1 * message.send("celery")
+        result.isDone()
+        result.get() == null
+    }
+
+    def "Asynchronous submit should fail when the broker can't be reached"() {
+        def result
+        when:
+        client = new TestCeleryClient("unknown://anything", null, null)
+        result = client.submitAsync(TestingTask.class, "doWork", [] as Object[])
+        result.get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof UnsupportedProtocolException
+        0 * message.send(_)
+    }
+
+    def "Client should compress large bodies"() {
+        def body
+        client = new TestCeleryClient("mock://anything", null, null, Compression.of("zlib", 100))
+
+        when:
+        client.submit(TestingTask.class, "doWork", [size, "x"] as Object[])
+        client.submit(TestingTask.class, "doWork", [size, "x" * size] as Object[])
+
+        then:
+        1 * message.setBody({ body = it })
+
+        then:
+        1 * message.setBody({ body = it })
+        1 * message.headers.setCompression("application/x-gzip")
+        new JsonSlurper().parse(Compressors.ZLIB.decompress(body), "utf-8")[0] == [size, "x" * size]
+
+        where:
+        size = 1000
+    }
+
+    def "Client should offload large arguments to the blob store"() {
+        def store = Mock(BlobStore)
+        def body
+        client = new TestCeleryClient("mock://anything", null, null, ClaimCheck.of(store, 100))
+
+        when:
+        client.submit(TestingTask.class, "doWork", [1, "x"] as Object[])
+
+        then:
+        0 * store.put(_)
+        0 * message.headers.setBlobArgs(_)
+
+        when:
+        client.submit(TestingTask.class, "doWork", [1, "x" * 1000, "y"] as Object[])
+
+        then:
+        1 * store.put({ new String(it, "utf-8") == '"' + "x" * 1000 + '"' }) >> "key-1"
+        1 * message.headers.setBlobArgs([1])
+        1 * message.setBody({ body = it })
+        new JsonSlurper().parse(body, "utf-8")[0] == [1, "key-1", "y"]
+    }
+
+    def "Argument shared by a batch of tasks should be offloaded once"() {
+        def store = Mock(BlobStore)
+        def shared = "x" * 1000
+        client = new TestCeleryClient("mock://anything", null, null, ClaimCheck.of(store, 100))
+
+        when:
+        client.submitAll((1..3).collect { Signature.of("tasks.process", [it, shared] as Object[]) })
+
+        then:
+        1 * store.put(_) >> "key-1"
+        3 * message.headers.setBlobArgs([1])
+    }
+
+    def "Client should send partitioned tasks to the queue of their key"() {
+        def route = PartitionedRoute.of(ConsistentHashRing.of(["orders.0", "orders.1", "orders.2"]), RoutingKeyExtractor.arg(0))
+        def queue = route.queueFor(["customer-1"] as Object[])
+
+        when:
+        client.submit(route, "tasks.order", null, ["customer-1", 10] as Object[])
+        client.submit(route, "tasks.order", null, ["customer-1", 20] as Object[])
+
+        then:
+        2 * message.send(queue)
+        MockBrokerFactory.queuesDeclared == ["celery", queue]
+    }
+
+    def "Client with an outbox should send the tasks from it"() {
+        def bodies = [].asSynchronized()
+        def sent = [].asSynchronized()
+        message.setBody(_) >> { bodies << new JsonSlurper().parse(it[0] as byte[], "utf-8") }
+        def priorities = [].asSynchronized()
+        message.setPriority(_) >> { priorities << it[0] }
+        message.send(_) >> { sent << it[0] }
+        client = new TestCeleryClient("mock://anything", null, null, Outbox.open(Files.createTempDirectory("outbox")))
+
+        when:
+        def result = client.submit("tasks.add", null, [1, 2] as Object[], TaskOptions.DEFAULT.withPriority(3))
+
+        then:
+        result.get() == null
+        new PollingConditions(timeout: 5).eventually { assert sent == ["celery"] }
+        bodies[0][0] == [1, 2]
+        priorities == [3]
+
+        cleanup:
+        client.close()
+    }
+
+    def "Client with an outbox should resend the tasks once the broker connection is back"() {
+        def sent = [].asSynchronized()
+        def lastId = null
+        def attempts = 0
+        headers.setId(_) >> { lastId = it[0] }
+        message.send(_) >> {
+            if (attempts++ == 0) {
+                throw new AlreadyClosedException(new ShutdownSignalException(true, false, null, null))
+            }
+            sent << lastId
+        }
+        client = new TestCeleryClient("mock://anything", null, null, Outbox.open(Files.createTempDirectory("outbox")))
+
+        when:
+        client.submit("tasks.add", "id-1", [1, 2] as Object[])
+        client.submit("tasks.add", "id-2", [3, 4] as Object[])
+
+        then:
+        new PollingConditions(timeout: 5).eventually { assert sent.size() == 2 }
+        sent == ["id-1", "id-2"]
+        attempts == 3
+
+        cleanup:
+        client.close()
+    }
+
+    def "Prepared task should go through the outbox while the broker is down"() {
+        def sent = [].asSynchronized()
+        def argsReprs = [].asSynchronized()
+        def lastId = null
+        headers.setId(_) >> { lastId = it[0] }
+        headers.setArgsRepr(_) >> { argsReprs << it[0] }
+        message.send(_) >> { sent << lastId }
+        MockBrokerFactory.unreachable = true
+        client = new TestCeleryClient("mock://anything", null, null, Outbox.open(Files.createTempDirectory("outbox")))
+
+        when:
+        def task = client.prepare("tasks.add").withArgsRepr(ArgsReprPolicy.OFF)
+        task.submit("id-1", [1, 2] as Object[])
+        task.submit("id-2", [3, 4] as Object[])
+        MockBrokerFactory.unreachable = false
+
+        then:
+        new PollingConditions(timeout: 5).eventually { assert sent == ["id-1", "id-2"] }
+        argsReprs == [null, null]
+
+        cleanup:
+        MockBrokerFactory.unreachable = false
+        client.close()
+    }
+
+    def "Batch should go through the outbox task by task while the broker is down"() {
+        def sent = [].asSynchronized()
+        def lastId = null
+        headers.setId(_) >> { lastId = it[0] }
+        message.send(_) >> { sent << lastId }
+        MockBrokerFactory.unreachable = true
+        client = new TestCeleryClient("mock://anything", null, null, Outbox.open(Files.createTempDirectory("outbox")))
+
+        when:
+        client.submitAll([
+                Signature.of("tasks.add", "id-1", [1, 2] as Object[]),
+                Signature.of("tasks.add", "id-2", [3, 4] as Object[]),
+        ])
+        MockBrokerFactory.unreachable = false
+
+        then:
+        new PollingConditions(timeout: 5).eventually { assert sent == ["id-1", "id-2"] }
+
+        cleanup:
+        MockBrokerFactory.unreachable = false
+        client.close()
+    }
+
+    def "Group and chain should be rejected with an outbox"() {
+        client = new TestCeleryClient("mock://anything", null, null, Outbox.open(Files.createTempDirectory("outbox")))
+
+        when:
+        client.group([Signature.of("tasks.add", [1, 2] as Object[])])
+        then:
+        thrown(IllegalStateException)
+
+        when:
+        client.chain([Signature.of("tasks.add", [1, 2] as Object[])])
+        then:
+        thrown(IllegalStateException)
+
+        cleanup:
+        client.close()
+    }
+
     def "Client should set task name for class"() {
         when:
         client.submit(TestingTask.class, "doWork", [] as Object[])
@@ -102,6 +455,104 @@ class ClientTest extends Specification {
         1 * message.headers.setTaskName("vip.appcity.celery.TestingTask#doWork")
     }
 
+    def "Client should submit a batch of tasks"() {
+        def taskIds = []
+        def results
+
+        when:
+        results = client.submitAll([
+                Signature.of(TestingTask.class, "doWork", [1, 2] as Object[]),
+                Signature.of("tasks.add", "given-id", [3, 4] as Object[]),
+                Signature.of("tasks.add", [5, 6] as Object[]),
+        ])
+
+        then:
+        3 * message.headers.setId({ taskIds << it })
+        1 * message.headers.setTaskName("vip.appcity.celery.TestingTask#doWork")
+        2 * message.headers.setTaskName("tasks.add")
+        3 * message.setBody(_)
+        3 * message.send("celery")
+
+        taskIds[1] == "given-id"
+        (taskIds as Set).size() == 3
+        results.size() == 3
+        results.every { it.isDone() }
+    }
+
+    def "Client should submit a group of tasks under one group ID"() {
+        def groupIds = []
+        def result
+
+        when:
+        result = client.group((1..3).collect { Signature.of("tasks.add", [it, 1] as Object[]) })
+
+        then:
+        3 * message.headers.setGroup({ groupIds << it })
+        3 * message.send("celery")
+
+        (groupIds as Set).size() == 1
+        result.isDone()
+        result.get() == [null, null, null]
+    }
+
+    def "Prepared task should submit copies of the template message"() {
+        def copy = Mock(Message.class)
+        def copyHeaders = Mock(Message.Headers.class)
+        copy.getHeaders() >> copyHeaders
+        def task
+
+        when:
+        task = client.prepare(TestingTask.class, "doWork")
+
+        then:
+        1 * message.headers.setTaskName("vip.appcity.celery.TestingTask#doWork")
+        1 * message.setContentType("application/json")
+        0 * message.send(_)
+
+        when:
+        task.submit([1, 2] as Object[])
+        task.withArgsRepr(ArgsReprPolicy.OFF).submit("id-2", [3, 4] as Object[])
+
+        then:
+        2 * message.copy() >> copy
+        1 * copyHeaders.setArgsRepr("(1, 2)")
+        1 * copyHeaders.setArgsRepr(null)
+        1 * copyHeaders.setId("id-2")
+        2 * copy.setBody(_)
+        2 * copy.send("celery")
+        0 * message.send(_)
+    }
+
+    def "Prepared task with options should set them on each submission"() {
+        def copy = Mock(Message.class)
+        def copyHeaders = Mock(Message.Headers.class)
+        copy.getHeaders() >> copyHeaders
+
+        when:
+        def task = client.prepare(TestingTask.class, "doWork")
+                .withOptions(TaskOptions.DEFAULT.withPriority(3).withCountdown(1, TimeUnit.MINUTES))
+        task.submit([1, 2] as Object[])
+        task.submit([3, 4] as Object[])
+
+        then:
+        2 * message.copy() >> copy
+        2 * copy.setPriority(3)
+        2 * copyHeaders.setEta(_)
+        2 * copy.send("celery")
+        0 * message.setPriority(_)
+    }
+
+    def "Args repr policy should truncate long representations"() {
+        expect:
+        ArgsReprPolicy.truncated(maxLength).argsRepr(args as Object[]) == repr
+
+        where:
+        maxLength | args            | repr
+        5         | [12345, 6]      | "(1234..."
+        10        | [1, 2]          | "(1, 2)"
+        8         | [1, "abcdef"]   | "(1, \"abc..."
+    }
+
     def "Client should set task name"() {
         when:
         client.submit(taskName, [] as Object[])
@@ -205,6 +656,19 @@ class ClientWithBackendTest extends Specification {
         1 * resultsProvider.getResult({ it == taskId })
     }
 
+    def "Client should stop waiting for a group it couldn't send"() {
+        def groupResult = SettableFuture.create()
+
+        when:
+        client.group((1..3).collect { Signature.of("tasks.add", [it, 1] as Object[]) })
+
+        then:
+        1 * resultsProvider.getGroupResult(_, true) >> groupResult
+        message.send(_) >> { throw new IOException("connection lost") }
+        thrown(IOException)
+        groupResult.isCancelled()
+    }
+
     def "Client should declare queue before sending its message"() {
         when:
         client = new TestCeleryClient("mock://x", null, queue)
@@ -221,6 +685,111 @@ class ClientWithBackendTest extends Specification {
     }
 }
 
+class TaskStreamProcessorTest extends Specification {
+
+    def TestCeleryClient client
+    def Message message
+    def Backend.ResultsProvider resultsProvider
+    def results = [:]
+    def received = [].asSynchronized()
+
+    def setup() {
+        message = Mock(Message.class)
+        def headers = Mock(Message.Headers.class)
+        message.getHeaders() >> headers
+        MockBrokerFactory.messages = [message]
+
+        def backend = Mock(Backend.class)
+        resultsProvider = Mock(Backend.ResultsProvider.class)
+        backend.resultsProviderFor(_) >> resultsProvider
+        resultsProvider.getResult(_) >> { String id -> results.computeIfAbsent(id) { SettableFuture.create() } }
+        MockBackendFactory.backend = backend
+
+        client = new TestCeleryClient("mock://x", "mock://something", null)
+    }
+
+    def "Processor should bound the tasks in flight"() {
+        def upstreamRequests = [].asSynchronized()
+        def upstream = Stub(Subscription) { request(_) >> { long n -> upstreamRequests << n } }
+        def processor = client.processor(3)
+        def downstream
+
+        when:
+        processor.subscribe(subscriber { downstream = it })
+        processor.onSubscribe(upstream)
+        downstream.request(10)
+        (1..3).each { processor.onNext(Signature.of("tasks.add", "id-" + it, [it, it] as Object[])) }
+
+        then:
+        new PollingConditions(timeout: 5).eventually { assert results.size() == 3 }
+        upstreamRequests == [3]
+
+        when:
+        results["id-2"].set(4)
+
+        then:
+        new PollingConditions(timeout: 5).eventually { assert upstreamRequests == [3, 1] }
+        received.size() == 1
+        received[0].signature.taskId == "id-2"
+        received[0].value == 4
+    }
+
+    def "Processor should not request tasks without downstream demand"() {
+        def upstream = Mock(Subscription)
+        def processor = client.processor(100)
+        def downstream
+
+        when:
+        processor.onSubscribe(upstream)
+        processor.subscribe(subscriber { downstream = it })
+
+        then:
+        0 * upstream.request(_)
+
+        when:
+        downstream.request(2)
+
+        then:
+        1 * upstream.request(2)
+    }
+
+    def "Processor should complete after the submitted tasks"() {
+        def upstream = Mock(Subscription)
+        def processor = client.processor(10)
+        def completed = false
+        def downstream
+
+        when:
+        processor.subscribe(subscriber({ downstream = it }, { completed = true }))
+        processor.onSubscribe(upstream)
+        downstream.request(Long.MAX_VALUE)
+        processor.onNext(Signature.of("tasks.add", "id-1", [1, 1] as Object[]))
+        processor.onComplete()
+
+        then:
+        new PollingConditions(timeout: 5).eventually { assert results.size() == 1 }
+        !completed
+
+        when:
+        results["id-1"].setException(new IllegalStateException("failed"))
+
+        then:
+        new PollingConditions(timeout: 5).eventually { assert completed }
+        received.size() == 1
+        !received[0].success
+        received[0].error instanceof IllegalStateException
+    }
+
+    private Subscriber subscriber(Closure onSubscribe, Closure onComplete = {}) {
+        return new Subscriber() {
+            void onSubscribe(Subscription s) { onSubscribe(s) }
+            void onNext(Object o) { received << o }
+            void onError(Throwable t) { throw new AssertionError(t) }
+            void onComplete() { onComplete() }
+        }
+    }
+}
+
 class MultiMessageTest extends Specification {
     def Broker broker
     def TestCeleryClient client
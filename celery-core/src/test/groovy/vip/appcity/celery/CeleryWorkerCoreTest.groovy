@@ -0,0 +1,144 @@
+package vip.appcity.celery
+
+import vip.appcity.celery.spi.TaskIdGenerator
+import com.rabbitmq.client.AMQP
+import com.rabbitmq.client.Channel
+import com.rabbitmq.client.Connection
+import com.rabbitmq.client.Envelope
+import groovy.json.JsonOutput
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.time.Instant
+
+class CeleryWorkerCoreTest extends Specification {
+
+    def Channel channel
+    def TestCeleryWorker worker
+
+    /** Prefetch of the consumer, fixed when it starts consuming as RabbitMQ does for a per-consumer QoS. */
+    def int consumerPrefetch = 0
+    def int pendingConsumerPrefetch = 0
+    def int channelPrefetch = 0
+    def Set<Long> unacked = [].toSet().asSynchronized()
+    def List<Map<String, Object>> published = [].asSynchronized()
+    def long deliveryTag = 0
+
+    def setup() {
+        WorkerTask.threads.clear()
+        channel = Mock(Channel)
+        channel.basicQos(_, _) >> { int count, boolean global ->
+            if (global) {
+                channelPrefetch = count
+            } else {
+                pendingConsumerPrefetch = count
+            }
+        }
+        channel.basicConsume(*_) >> {
+            consumerPrefetch = pendingConsumerPrefetch
+            "consumer"
+        }
+        channel.basicAck(_, _) >> { long tag, boolean multiple -> unacked.remove(tag) }
+        channel.basicPublish(_, _, _, _) >> { String exchange, String queue, AMQP.BasicProperties props, byte[] body ->
+            published << props.headers
+        }
+        def connection = Mock(Connection)
+        connection.createChannel() >> channel
+        worker = new TestCeleryWorker(connection)
+        worker.start()
+    }
+
+    def cleanup() {
+        worker.close()
+    }
+
+    def "Held ETA deliveries should not stall the deliveries behind them"() {
+        def eta = Timestamps.format(Instant.now().plusSeconds(60))
+
+        when:
+        def held = (1..5).collect { deliver("held-$it", eta) }
+        def immediate = deliver("now", null)
+
+        then:
+        held.every()
+        immediate
+        WorkerTask.threads.keySet() == ["now"] as Set
+        unacked.size() == 5
+    }
+
+    def "Due deliveries should not run on the scheduler thread"() {
+        when:
+        deliver("delayed", Timestamps.format(Instant.now().plusMillis(50)))
+
+        then:
+        new PollingConditions(timeout: 5).eventually { assert WorkerTask.threads.containsKey("delayed") }
+        !WorkerTask.threads["delayed"].startsWith("celery-worker-eta")
+        new PollingConditions(timeout: 5).eventually { assert unacked.isEmpty() }
+    }
+
+    def "Chained task without an ID should get one from the worker's generator"() {
+        worker.close()
+        def connection = Mock(Connection)
+        connection.createChannel() >> channel
+        worker = new TestCeleryWorker(connection, { "generated-id" } as TaskIdGenerator)
+        worker.start()
+
+        when:
+        deliver("first", null, [[task: "tasks.next", args: [], options: [:]]])
+
+        then:
+        // the result of the first task is published too, without headers
+        new PollingConditions(timeout: 5).eventually { assert published.any { it?.task == "tasks.next" } }
+        published.find { it?.task == "tasks.next" }.id == "generated-id"
+    }
+
+    /**
+     * Delivers a task the way RabbitMQ does, only while the unacknowledged deliveries are below the prefetch.
+     *
+     * @return {@code false} if the broker wouldn't deliver it
+     */
+    private boolean deliver(String taskId, String eta, List<Map<String, Object>> chain = null) {
+        def limits = [consumerPrefetch, channelPrefetch].findAll { it > 0 }
+        if (!limits.isEmpty() && unacked.size() >= limits.min()) {
+            return false
+        }
+        def tag = ++deliveryTag
+        unacked << tag
+        def headers = [task: "vip.appcity.celery.WorkerTask#run", id: taskId] as Map<String, Object>
+        if (eta != null) {
+            headers.eta = eta
+        }
+        def properties = new AMQP.BasicProperties.Builder()
+                .contentType("application/json")
+                .contentEncoding("utf-8")
+                .headers(headers)
+                .build()
+        worker.handleDelivery("consumer", new Envelope(tag, false, "", "celery"), properties,
+                JsonOutput.toJson([[taskId], [:], [chain: chain]]).getBytes("utf-8"))
+        return true
+    }
+}
+
+class TestCeleryWorker extends CeleryWorkerCore {
+
+    TestCeleryWorker(Connection connection) {
+        super(connection, null, null)
+    }
+
+    TestCeleryWorker(Connection connection, TaskIdGenerator taskIdGenerator) {
+        super(connection, null, null, null, null, null, null, null, taskIdGenerator)
+    }
+
+    @Override
+    protected Object findTask(String className) {
+        return new WorkerTask()
+    }
+}
+
+class WorkerTask {
+    static Map<String, String> threads = [:].asSynchronized()
+
+    void run(String taskId) {
+        threads[taskId] = Thread.currentThread().name
+    }
+}
@@ -0,0 +1,111 @@
+package vip.appcity.celery
+
+import vip.appcity.celery.spi.Backend
+import vip.appcity.celery.spi.Message
+import com.google.common.util.concurrent.SettableFuture
+import spock.lang.Specification
+
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+
+class ResultCacheTest extends Specification {
+
+    def TestCeleryClient client
+    def Message message
+    def Backend.ResultsProvider resultsProvider
+    def Map<String, SettableFuture> results = [:]
+    def ResultCache cache = ResultCache.of(100, 1, TimeUnit.HOURS)
+    def PreparedTask<Integer> task
+
+    def setup() {
+        message = Mock(Message.class)
+        message.getHeaders() >> Mock(Message.Headers.class)
+        message.copy() >> message
+        MockBrokerFactory.messages = [message]
+
+        def backend = Mock(Backend.class)
+        resultsProvider = Mock(Backend.ResultsProvider.class)
+        backend.resultsProviderFor(_) >> resultsProvider
+        resultsProvider.getResult(_) >> { String id -> results.computeIfAbsent(id, { SettableFuture.create() }) }
+        MockBackendFactory.backend = backend
+
+        client = new TestCeleryClient("mock://x", "mock://something", null)
+        task = client.<Integer>prepare("tasks.add").withResultCache(cache)
+    }
+
+    def "Identical submissions in flight should share one task"() {
+        when:
+        def first = task.submit([1, 2] as Object[])
+        def second = task.submit([1, 2] as Object[])
+        def other = task.submit([2, 1] as Object[])
+
+        then:
+        2 * message.send(_)
+        !first.isDone()
+
+        when:
+        results.values().each { it.set(3) }
+
+        then:
+        first.get() == 3
+        second.get() == 3
+        other.get() == 3
+        cache.missCount == 2
+        cache.coalescedCount == 1
+        cache.hitCount == 0
+    }
+
+    def "Completed result should be reused"() {
+        task.submit([1, 2] as Object[])
+        results.values().each { it.set(3) }
+
+        when:
+        def result = task.submit([1, 2] as Object[])
+
+        then:
+        0 * message.send(_)
+        result.get() == 3
+        cache.hitCount == 1
+        cache.size() == 1
+    }
+
+    def "Failed result should not be kept"() {
+        def failed = task.submit([1, 2] as Object[])
+        results.values().each { it.setException(new WorkerException("ValueError", "bad")) }
+
+        when:
+        failed.get()
+
+        then:
+        thrown(ExecutionException)
+
+        when:
+        task.submit([1, 2] as Object[])
+
+        then:
+        1 * message.send(_)
+        cache.size() == 0
+    }
+
+    def "Cancelling a shared result should not cancel the task"() {
+        def first = task.submit([1, 2] as Object[])
+        def second = task.submit([1, 2] as Object[])
+
+        when:
+        first.cancel(true)
+        results.values().each { it.set(3) }
+
+        then:
+        second.get() == 3
+    }
+
+    def "Submissions with an explicit task ID should bypass the cache"() {
+        when:
+        task.submit("id-1", [1, 2] as Object[])
+        task.submit("id-2", [1, 2] as Object[])
+
+        then:
+        2 * message.send(_)
+        cache.missCount == 0
+    }
+}
@@ -1,11 +1,14 @@
 package vip.appcity.celery
 
 
+import vip.appcity.celery.outbox.Outbox
 import vip.appcity.celery.spi.Backend
 import vip.appcity.celery.spi.BackendFactory
 import vip.appcity.celery.spi.Broker
 import vip.appcity.celery.spi.BrokerFactory
 import vip.appcity.celery.spi.Message
+import vip.appcity.celery.spi.Serializer
+import com.fasterxml.jackson.databind.ObjectMapper
 
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.TimeoutException
@@ -16,6 +19,27 @@ class TestCeleryClient extends CeleryClientCore {
         super(brokerUri, backendUri, queue, null, null)
     }
 
+    TestCeleryClient(String brokerUri, String backendUri, String queue, Compression compression) {
+        super(brokerUri, backendUri, queue, null, null, null, compression, null, null)
+    }
+
+    TestCeleryClient(String brokerUri, String backendUri, String queue, Serializer serializer) {
+        super(brokerUri, backendUri, queue, null, null, null, null, serializer, null)
+    }
+
+    TestCeleryClient(
+            String brokerUri, String backendUri, String queue, ObjectMapper jsonMapper, Serializer serializer) {
+        super(brokerUri, backendUri, queue, null, jsonMapper, null, null, serializer, null)
+    }
+
+    TestCeleryClient(String brokerUri, String backendUri, String queue, ClaimCheck claimCheck) {
+        super(brokerUri, backendUri, queue, null, null, null, null, null, claimCheck)
+    }
+
+    TestCeleryClient(String brokerUri, String backendUri, String queue, Outbox outbox) {
+        super(brokerUri, backendUri, queue, null, null, null, null, null, null, outbox)
+    }
+
     @Override
     Iterable<BrokerFactory> findBrokers() {
         return [new MockBrokerFactory()]
@@ -29,6 +53,8 @@ class TestCeleryClient extends CeleryClientCore {
 
 class MockBrokerFactory implements BrokerFactory {
     static List<String> queuesDeclared = []
+    /** Fails the connecting while set, like a broker that's down. */
+    static volatile boolean unreachable = false
 
     /**
      * Workaround for the fact that Spock mocks can be created only from the Specification class.
@@ -43,6 +69,9 @@ class MockBrokerFactory implements BrokerFactory {
 
     @Override
     Broker createBroker(URI uri, ExecutorService executor) throws IOException, TimeoutException {
+        if (unreachable) {
+            throw new IOException("Connection refused")
+        }
         return new Broker() {
             @Override
             void declareQueue(String name) throws IOException {
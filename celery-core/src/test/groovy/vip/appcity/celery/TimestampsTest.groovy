@@ -0,0 +1,27 @@
+package vip.appcity.celery
+
+import spock.lang.Specification
+
+import java.time.Instant
+
+class TimestampsTest extends Specification {
+
+    def "Timestamps should be formatted like Python's isoformat in UTC"() {
+        expect:
+        Timestamps.format(Instant.parse("2030-01-02T03:04:05.678Z")) == "2030-01-02T03:04:05.678000+00:00"
+    }
+
+    def "Timestamps should be parsed with or without an offset"() {
+        expect:
+        Timestamps.parse(header) == (expected != null ? Instant.parse(expected) : null)
+
+        where:
+        header                               | expected
+        "2030-01-02T03:04:05.678000+00:00"   | "2030-01-02T03:04:05.678Z"
+        "2030-01-02T05:04:05.678+02:00"      | "2030-01-02T03:04:05.678Z"
+        "2030-01-02T03:04:05.678000"         | "2030-01-02T03:04:05.678Z"
+        "2030-01-02T03:04:05Z"               | "2030-01-02T03:04:05Z"
+        "tomorrow"                           | null
+        null                                 | null
+    }
+}
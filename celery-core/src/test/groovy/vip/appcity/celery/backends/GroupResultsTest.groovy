@@ -0,0 +1,47 @@
+package vip.appcity.celery.backends
+
+import spock.lang.Specification
+
+import java.util.concurrent.ExecutionException
+
+class GroupResultsTest extends Specification {
+
+    def GroupResults groups = new GroupResults()
+
+    def "Group should complete with the results in the order of its tasks"() {
+        when:
+        def result = groups.register(["a", "b", "c"], true)
+        groups.complete("c", 3, null)
+        groups.complete("a", 1, null)
+
+        then:
+        !result.isDone()
+
+        when:
+        groups.complete("b", 2, null)
+
+        then:
+        result.get() == [1, 2, 3]
+    }
+
+    def "Fail-fast group should fail with the first failure"() {
+        when:
+        def result = groups.register(["a", "b"], true)
+        groups.complete("a", null, new IllegalStateException("boom"))
+        result.get()
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause.message == "boom"
+    }
+
+    def "Cancelled group should forget its tasks"() {
+        when:
+        def result = groups.register(["a", "b"], true)
+        result.cancel(false)
+
+        then:
+        !groups.complete("a", 1, null)
+        !groups.complete("b", 2, null)
+    }
+}
@@ -0,0 +1,53 @@
+package vip.appcity.celery.backends.memory
+
+import com.google.common.base.Ticker
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+class MemoryResultsProviderTest extends Specification {
+
+    def long nanos = 0
+    def MemoryResultsProvider<Object> provider
+
+    def setup() {
+        provider = new MemoryResultsProvider<>(null, new Ticker() {
+            @Override
+            long read() {
+                return nanos
+            }
+        })
+    }
+
+    def "Awaited result should be kept"() {
+        when:
+        def result = provider.getResult("id")
+        provider.complete("id", 42)
+        nanos += TimeUnit.MINUTES.toNanos(10)
+
+        then:
+        result.get() == 42
+        provider.getResult("id").is(result)
+    }
+
+    def "Result reported before it was asked for should be kept for a while"() {
+        when:
+        provider.complete("id", 42)
+        nanos += TimeUnit.SECONDS.toNanos(30)
+        def result = provider.getResult("id")
+        nanos += TimeUnit.MINUTES.toNanos(10)
+
+        then:
+        result.get() == 42
+        provider.getResult("id").is(result)
+    }
+
+    def "Result nobody asked for should be forgotten soon"() {
+        when:
+        provider.fail("id", new IllegalStateException("boom"))
+        nanos += TimeUnit.MINUTES.toNanos(2)
+
+        then:
+        !provider.getResult("id").isDone()
+    }
+}
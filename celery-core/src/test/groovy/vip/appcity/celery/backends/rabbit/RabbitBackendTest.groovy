@@ -1,6 +1,12 @@
 package vip.appcity.celery.backends.rabbit
 
+import vip.appcity.celery.Compression
+import vip.appcity.celery.TaskRevokedException
 import vip.appcity.celery.WorkerException
+import vip.appcity.celery.compression.Compressors
+import vip.appcity.celery.serialization.Serializers
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.rabbitmq.client.AMQP
 import com.rabbitmq.client.BasicProperties
 import com.rabbitmq.client.Channel
 import com.rabbitmq.client.Envelope
@@ -59,6 +65,38 @@ class RabbitBackendTest extends Specification {
         data << [["x"], ["a": 1, "b": ["x"]], 12]
     }
 
+    def "Backend should compress large results"() {
+        def BasicProperties props
+        def result
+
+        when:
+        new RabbitBackend(channel, new ObjectMapper(), Compression.of("zlib", 100)).reportResult("id", "q", "id", data)
+
+        then:
+        1 * channel.basicPublish("", "q", { props = it }, { result = it })
+        props.headers == (compressed ? ["compression": "application/x-gzip"] : null)
+        new JsonSlurper().parse(compressed ? Compressors.ZLIB.decompress(result) : result, "utf-8")["result"] == data
+
+        where:
+        data       | compressed
+        "x" * 1000 | true
+        "x"        | false
+    }
+
+    def "Backend should report result in the format of the task"() {
+        def BasicProperties props
+        def result
+
+        when:
+        backend.reportResult("id", "q", "id", [1, 2], Serializers.msgpack())
+
+        then:
+        1 * channel.basicPublish("", "q", { props = it }, { result = it })
+        props.contentType == "application/x-msgpack"
+        props.contentEncoding == "binary"
+        Serializers.msgpack().mapper.readValue(result, Map)["result"] == [1, 2]
+    }
+
     def "Backend should report exception"() {
         def BasicProperties props
         def result
@@ -82,6 +120,18 @@ class RabbitBackendTest extends Specification {
         queue << Gen.string(20).take(3)
         data << [new IOException("Xdan"), new AssertionError("Bada"), new RuntimeException()]
     }
+
+    def "Backend should report revoked task like a Python worker"() {
+        def result
+
+        when:
+        backend.reportRevoked("id", "q", "id", "expired")
+
+        then:
+        1 * channel.basicPublish("", "q", _, { result = new JsonSlurper().parse(it, "utf-8") })
+        result["status"] == "REVOKED"
+        result["result"] == ["exc_type": "TaskRevokedError", "exc_message": "expired"]
+    }
 }
 
 class RabbitResultConsumerTest extends Specification {
@@ -115,6 +165,32 @@ class RabbitResultConsumerTest extends Specification {
         '{"children":[], "status": "SUCCESS", "result": 1, "traceback": null, "task_id": "1ac"}'    | null           | "1aa"       | false
     }
 
+    def "Consumer should decompress result"() {
+        def result = consumer.getResult("1aa")
+        def body = '{"status": "SUCCESS", "result": "' + ("x" * 1000) + '", "task_id": "1aa"}'
+        def props = new AMQP.BasicProperties.Builder().headers(["compression": "application/x-gzip"]).build()
+
+        when:
+        consumer.handleDelivery(null, new Envelope(1, false, "", ""), props, Compressors.ZLIB.compress(body.bytes))
+
+        then:
+        result.isDone()
+        result.get() == "x" * 1000
+    }
+
+    def "Consumer should decode result by its content type"() {
+        def result = consumer.getResult("1aa")
+        def body = Serializers.msgpack().mapper.writeValueAsBytes([status: "SUCCESS", result: [1, 2], task_id: "1aa"])
+        def props = new AMQP.BasicProperties.Builder().contentType("application/x-msgpack").build()
+
+        when:
+        consumer.handleDelivery(null, new Envelope(1, false, "", ""), props, body)
+
+        then:
+        result.isDone()
+        result.get() == [1, 2]
+    }
+
     def "Consumer should report a received error"() {
         def result = consumer.getResult("1aa")
         def ex
@@ -134,6 +210,7 @@ class RabbitResultConsumerTest extends Specification {
 
         then:
         ex instanceof WorkerException
+        !(ex instanceof TaskRevokedException)
         ex.message.length() > 0
 
         where:
@@ -150,4 +227,61 @@ class RabbitResultConsumerTest extends Specification {
                         '"task_id": "1aa"}',
         ]
     }
+
+    def "Consumer should join the results of a group in order"() {
+        def result = consumer.getGroupResult(["a", "b", "c"], true)
+
+        when:
+        ["c", "a"].each { consumer.handleDelivery(null, new Envelope(1, false, "", ""), null, success(it)) }
+
+        then:
+        !result.isDone()
+
+        when:
+        consumer.handleDelivery(null, new Envelope(1, false, "", ""), null, success("b"))
+
+        then:
+        result.get() == ["a-result", "b-result", "c-result"]
+    }
+
+    def "Consumer should fail a group with the first failure of its tasks"() {
+        def result = consumer.getGroupResult(["a", "b"], failFast)
+        def failure = '{"status": "FAILURE", "result": {"exc_type": "ExType", "exc_message": "bad"}, "task_id": "a"}'
+
+        when:
+        consumer.handleDelivery(null, new Envelope(1, false, "", ""), null, failure.bytes)
+
+        then:
+        result.isDone() == failFast
+
+        when:
+        consumer.handleDelivery(null, new Envelope(1, false, "", ""), null, success("b"))
+        result.get()
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof WorkerException
+
+        where:
+        failFast << [true, false]
+    }
+
+    private static byte[] success(String taskId) {
+        return ('{"status": "SUCCESS", "result": "' + taskId + '-result", "task_id": "' + taskId + '"}').bytes
+    }
+
+    def "Consumer should report a revoked task"() {
+        def result = consumer.getResult("1aa")
+        def body = '{"status": "REVOKED", "result": {"exc_type": "TaskRevokedError", "exc_message": "expired"}, ' +
+                '"task_id": "1aa"}'
+
+        when:
+        consumer.handleDelivery(null, new Envelope(1, false, "", ""), null, body.bytes)
+        result.get()
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof TaskRevokedException
+        e.cause.message == "TaskRevokedError(expired)"
+    }
 }
@@ -0,0 +1,57 @@
+package vip.appcity.celery.blobs
+
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+class FileBlobStoreTest extends Specification {
+
+    def Path directory
+    def FileBlobStore store
+
+    def setup() {
+        directory = Files.createTempDirectory("blobs")
+        store = new FileBlobStore(directory)
+    }
+
+    def "Store should return the stored blob"() {
+        def data = "some data".getBytes("utf-8")
+
+        when:
+        def key = store.put(data)
+        def blob = store.get(key)
+        def read = new byte[blob.remaining()]
+        blob.get(read)
+
+        then:
+        read == data
+        key == "1307990e6ba5ca145eb35e99182a9bec46531bc54ddf656a602c780fa0240dee"
+    }
+
+    def "Same data should be stored once"() {
+        when:
+        def keys = (1..3).collect { store.put([1, 2, 3] as byte[]) }
+
+        then:
+        keys.unique().size() == 1
+        Files.walk(directory).filter { Files.isRegularFile(it) }.count() == 1
+    }
+
+    def "Missing blob should fail"() {
+        when:
+        store.get("0" * 64)
+
+        then:
+        thrown(IOException)
+    }
+
+    def "Key should not escape the directory"() {
+        when:
+        store.get("../" + "0" * 61)
+
+        then:
+        def e = thrown(IOException)
+        e.message.startsWith("Invalid blob key")
+    }
+}
@@ -0,0 +1,345 @@
+package vip.appcity.celery.brokers.memory
+
+import vip.appcity.celery.CeleryClientCore
+import vip.appcity.celery.ClaimCheck
+import vip.appcity.celery.Compression
+import vip.appcity.celery.MemoryWorkerCore
+import vip.appcity.celery.Signature
+import vip.appcity.celery.TaskOptions
+import vip.appcity.celery.TaskRevokedException
+import vip.appcity.celery.WorkerException
+import vip.appcity.celery.backends.memory.MemoryBackendFactory
+import vip.appcity.celery.blobs.FileBlobStore
+import vip.appcity.celery.ratelimit.TokenBucket
+import vip.appcity.celery.serialization.Serializers
+import vip.appcity.celery.spi.BackendFactory
+import vip.appcity.celery.spi.BrokerFactory
+import vip.appcity.celery.spi.Serializer
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.time.Instant
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+
+class MemoryBrokerTest extends Specification {
+
+    def CeleryClientCore client
+    def MemoryWorkerCore worker
+
+    def setup() {
+        client = new MemoryClient("memory://test-" + UUID.randomUUID())
+        worker = new MemoryWorkerCore(client.uri, null, null, 2) {
+            @Override
+            protected Object findTask(String className) {
+                return className == Calculator.name ? new Calculator() : null
+            }
+        }
+        worker.start()
+    }
+
+    def cleanup() {
+        worker.close()
+        client.close()
+    }
+
+    def "Worker should execute task sent by the client"() {
+        expect:
+        client.submit(Calculator, "add", [1, 2] as Object[]).get(5, TimeUnit.SECONDS) == 3
+        client.submit(Calculator, "concat", [["a", "b"]] as Object[]).get(5, TimeUnit.SECONDS) == "ab"
+    }
+
+    def "Worker should execute a group of tasks sent by the client"() {
+        when:
+        def sums = client.group((1..100).collect { Signature.of(Calculator, "add", [it, 1] as Object[]) })
+
+        then:
+        sums.get(5, TimeUnit.SECONDS) == (2..101).toList()
+
+        when:
+        client.group([Signature.of(Calculator, "add", [1, 1] as Object[]),
+                      Signature.of(Calculator, "divide", [1, 0] as Object[])]).get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof WorkerException
+    }
+
+    def "Worker should execute chunks of invocations"() {
+        expect:
+        client.chunks(Calculator.name + "#add", (1..1000).collect { [it, 1] as Object[] }, 100)
+                .get(5, TimeUnit.SECONDS) == (2..1001).toList()
+    }
+
+    def "Worker should call the chord callback with the results of its header"() {
+        expect:
+        client.chord(
+                (1..100).collect { Signature.of(Calculator, "add", [it, 0] as Object[]) },
+                Signature.of(Calculator, "total", [1000] as Object[])
+        ).get(5, TimeUnit.SECONDS) == 1000 + 5050
+    }
+
+    def "Worker should not call the chord callback when its header fails"() {
+        when:
+        client.chord(
+                [Signature.of(Calculator, "add", [1, 2] as Object[]),
+                 Signature.of(Calculator, "divide", [1, 0] as Object[])],
+                Signature.of(Calculator, "total", [0] as Object[])
+        ).get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof WorkerException
+        e.cause.message.contains("ArithmeticException")
+    }
+
+    def "Worker should run a chain passing each result to the next task"() {
+        expect:
+        client.chain([
+                Signature.of(Calculator, "add", [1, 2] as Object[]),
+                Signature.of(Calculator, "add", [10] as Object[]),
+                Signature.of(Calculator, "add", [100] as Object[]),
+        ]).get(5, TimeUnit.SECONDS) == 113
+    }
+
+    def "Worker should fail the rest of a chain when its task fails"() {
+        when:
+        client.chain([
+                Signature.of(Calculator, "add", [1, 2] as Object[]),
+                Signature.of(Calculator, "divide", [0] as Object[]),
+                Signature.of(Calculator, "add", [100] as Object[]),
+        ]).get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof WorkerException
+        e.cause.message.contains("ArithmeticException")
+    }
+
+    def "Worker should hold the task until its ETA"() {
+        def started = System.nanoTime()
+
+        when:
+        def result = client.submit("vip.appcity.celery.brokers.memory.Calculator#add", null, [1, 2] as Object[],
+                TaskOptions.DEFAULT.withCountdown(300, TimeUnit.MILLISECONDS))
+
+        then:
+        !result.isDone()
+        result.get(5, TimeUnit.SECONDS) == 3
+        System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(300)
+    }
+
+    def "Worker should revoke expired task without executing it"() {
+        when:
+        client.submit("vip.appcity.celery.brokers.memory.Calculator#add", null, [1, 2] as Object[], options)
+                .get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof TaskRevokedException
+        worker.expiredCount == 1
+
+        where:
+        options << [
+                TaskOptions.DEFAULT.withExpires(Instant.now().minusSeconds(1)),
+                TaskOptions.DEFAULT.withCountdown(200, TimeUnit.MILLISECONDS).withExpiresIn(50, TimeUnit.MILLISECONDS),
+        ]
+    }
+
+    def "Worker should defer rate limited task without holding up the others"() {
+        def uri = "memory://limited-" + UUID.randomUUID()
+        def limitedWorker = new MemoryWorkerCore(uri, null, null, 1, null,
+                ["vip.appcity.celery.brokers.memory.Calculator#add": TokenBucket.of(10, 1)]) {
+            @Override
+            protected Object findTask(String className) {
+                return new Calculator()
+            }
+        }
+        def limitedClient = new MemoryClient(uri)
+        limitedWorker.start()
+        def started = System.nanoTime()
+
+        when:
+        def sums = (1..5).collect { limitedClient.submit(Calculator, "add", [it, 1] as Object[]) }
+        def concat = limitedClient.submit(Calculator, "concat", [["a", "b"]] as Object[])
+
+        then:
+        concat.get(5, TimeUnit.SECONDS) == "ab"
+        !sums[4].isDone()
+        sums*.get(5, TimeUnit.SECONDS) == [2, 3, 4, 5, 6]
+        System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(400)
+
+        cleanup:
+        limitedWorker.close()
+        limitedClient.close()
+    }
+
+    def "Worker should execute deferred tasks on its own threads"() {
+        def uri = "memory://limited-" + UUID.randomUUID()
+        def limitedWorker = new MemoryWorkerCore(uri, null, null, 2, null,
+                ["vip.appcity.celery.brokers.memory.Calculator#thread": TokenBucket.of(20, 1)]) {
+            @Override
+            protected Object findTask(String className) {
+                return new Calculator()
+            }
+        }
+        def limitedClient = new MemoryClient(uri)
+        limitedWorker.start()
+
+        when:
+        def threads = (1..5).collect { limitedClient.submit(Calculator, "thread", [] as Object[]) }
+        threads << limitedClient.submit(Calculator.name + "#thread", null, [] as Object[],
+                TaskOptions.DEFAULT.withCountdown(50, TimeUnit.MILLISECONDS))
+
+        then:
+        threads*.get(5, TimeUnit.SECONDS).every { it.startsWith("celery-memory-worker-") && !it.contains("-eta-") }
+
+        cleanup:
+        limitedWorker.close()
+        limitedClient.close()
+    }
+
+    def "Worker should decompress task sent by the client"() {
+        def compressingClient = new MemoryClient(client.uri, Compression.of("lz4", 0))
+
+        expect:
+        compressingClient.submit(Calculator, "concat", [["a", "b"]] as Object[]).get(5, TimeUnit.SECONDS) == "ab"
+
+        cleanup:
+        compressingClient.close()
+    }
+
+    def "Worker should decode task by its content type"() {
+        def smileClient = new MemoryClient(client.uri, null, Serializers.smile())
+
+        expect:
+        smileClient.submit(Calculator, "sum", [[1, 2, 3] as byte[]] as Object[]).get(5, TimeUnit.SECONDS) == 6
+
+        cleanup:
+        smileClient.close()
+    }
+
+    def "Worker should read arguments offloaded by the client"() {
+        def store = new FileBlobStore(Files.createTempDirectory("blobs"))
+        def uri = "memory://blobs-" + UUID.randomUUID()
+        def offloadingClient = new MemoryClient(uri, null, Serializers.msgpack(), ClaimCheck.of(store, 100))
+        def offloadingWorker = new MemoryWorkerCore(uri, null, null, 1, store) {
+            @Override
+            protected Object findTask(String className) {
+                return new Calculator()
+            }
+        }
+        offloadingWorker.start()
+
+        expect:
+        offloadingClient.submit(Calculator, "sum", [[1] * 1000 as byte[]] as Object[]).get(5, TimeUnit.SECONDS) == 1000
+
+        cleanup:
+        offloadingWorker.close()
+        offloadingClient.close()
+    }
+
+    def "Worker without blob store should fail the task with offloaded arguments"() {
+        def store = new FileBlobStore(Files.createTempDirectory("blobs"))
+        def offloadingClient = new MemoryClient(client.uri, null, null, ClaimCheck.of(store, 100))
+
+        when:
+        offloadingClient.submit(Calculator, "concat", [["a"] * 100] as Object[]).get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause.message.contains("no blob store")
+
+        cleanup:
+        offloadingClient.close()
+    }
+
+    def "Worker should report task failures"() {
+        when:
+        client.submit(Calculator, "divide", [1, 0] as Object[]).get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof WorkerException
+        e.cause.message.startsWith("ArithmeticException")
+    }
+
+    def "Worker should report unknown tasks"() {
+        when:
+        client.submit("unknown.Task#run", [] as Object[]).get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof WorkerException
+        e.cause.message.startsWith("DispatchException")
+    }
+
+    def "Messages should stay in the queue until a worker consumes them"() {
+        def host = MemoryVirtualHost.forUri(URI.create("memory://queued-" + UUID.randomUUID()))
+        def broker = new MemoryBroker(host)
+        def message = broker.newMessage()
+
+        when:
+        message.headers.setId("id-1")
+        message.headers.setTaskName("tasks.add")
+        message.send("jobs")
+
+        then:
+        host.queue("jobs").size() == 1
+        host.queue("jobs").peek().getHeader("id") == "id-1"
+        host.queue("jobs").peek().getHeader("task") == "tasks.add"
+        host.queue("celery").isEmpty()
+    }
+
+    def "Hosts should be shared by URI authority"() {
+        expect:
+        MemoryVirtualHost.forUri(URI.create("memory://shared")).is(MemoryVirtualHost.forUri(URI.create("memory://shared/")))
+        !MemoryVirtualHost.forUri(URI.create("memory://shared")).is(MemoryVirtualHost.forUri(URI.create("memory://other")))
+    }
+}
+
+class MemoryClient extends CeleryClientCore {
+
+    final String uri
+
+    MemoryClient(String uri, Compression compression = null, Serializer serializer = null, ClaimCheck claimCheck = null) {
+        super(uri, uri, null, null, null, null, compression, serializer, claimCheck)
+        this.uri = uri
+    }
+
+    @Override
+    protected Iterable<BrokerFactory> findBrokers() {
+        return [new MemoryBrokerFactory()]
+    }
+
+    @Override
+    protected Iterable<BackendFactory> findBackends() {
+        return [new MemoryBackendFactory()]
+    }
+}
+
+class Calculator {
+    String thread() {
+        return Thread.currentThread().name
+    }
+
+    int add(int a, int b) {
+        return a + b
+    }
+
+    String concat(List<String> parts) {
+        return parts.join("")
+    }
+
+    int sum(byte[] values) {
+        return values.collect { it as int }.sum() as int
+    }
+
+    int total(List<Integer> values, int start) {
+        return start + values.sum()
+    }
+
+    int divide(int a, int b) {
+        return a.intdiv(b)
+    }
+}
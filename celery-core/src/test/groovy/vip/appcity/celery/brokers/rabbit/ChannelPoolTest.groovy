@@ -0,0 +1,127 @@
+package vip.appcity.celery.brokers.rabbit
+
+import com.rabbitmq.client.Channel
+import com.rabbitmq.client.Connection
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class ChannelPoolTest extends Specification {
+
+    def "pool should reuse a returned channel"() {
+        def opened = 0
+        def pool = new ChannelPool(4, 1, TimeUnit.SECONDS, { opened++; openChannel() }, {})
+
+        when:
+        10.times { pool.giveBack(pool.borrow()) }
+
+        then:
+        opened == 1
+        pool.openChannels == 1
+        pool.borrowCount == 10
+    }
+
+    def "pool should never open more channels than its size"() {
+        def pool = new ChannelPool(3, 5, TimeUnit.SECONDS, { openChannel() }, {})
+        def inUse = new AtomicInteger()
+        def maxInUse = new AtomicInteger()
+        def executor = Executors.newFixedThreadPool(32)
+        def done = new CountDownLatch(32 * 50)
+
+        when:
+        (32 * 50).times {
+            executor.execute {
+                def channel = pool.borrow()
+                maxInUse.accumulateAndGet(inUse.incrementAndGet(), Math.&max)
+                Thread.yield()
+                inUse.decrementAndGet()
+                pool.giveBack(channel)
+                done.countDown()
+            }
+        }
+
+        then:
+        done.await(10, TimeUnit.SECONDS)
+        maxInUse.get() <= 3
+        pool.openChannels <= 3
+        pool.borrowCount == 32 * 50
+
+        cleanup:
+        executor.shutdownNow()
+    }
+
+    def "pool should fail when no channel is returned in time"() {
+        def pool = new ChannelPool(1, 50, TimeUnit.MILLISECONDS, { openChannel() }, {})
+        pool.borrow()
+
+        when:
+        pool.borrow()
+
+        then:
+        thrown(IOException)
+        pool.waitNanos >= TimeUnit.MILLISECONDS.toNanos(50)
+    }
+
+    def "pool should replace a closed channel"() {
+        def closed = Stub(Channel) { isOpen() >> false }
+        def open = openChannel()
+        def channels = [closed, open]
+        def discarded = []
+        def pool = new ChannelPool(1, 1, TimeUnit.SECONDS, { channels.remove(0) }, { discarded << it })
+
+        when:
+        pool.giveBack(pool.borrow())
+        def channel = pool.borrow()
+
+        then:
+        discarded == [closed]
+        channel == open
+        pool.openChannels == 1
+    }
+
+    def "broker should publish over pooled channels"() {
+        def connection = Mock(Connection)
+        def channel = openChannel()
+        def broker = new RabbitBroker(connection, null, null, 2)
+
+        when:
+        broker.sendAll("q", [broker.newMessage(), broker.newMessage()])
+        broker.newMessage().send("q")
+
+        then:
+        1 * connection.createChannel() >> channel
+        broker.openChannels == 1
+        broker.channelBorrowCount == 2
+    }
+
+    def "broker should spread the channels over its connections"() {
+        def connections = [Mock(Connection), Mock(Connection)]
+        def broker = new RabbitBroker(connections, null, null, 4)
+
+        when:
+        4.times { broker.borrowChannel() }
+
+        then:
+        2 * connections[0].createChannel() >> { openChannel() }
+        2 * connections[1].createChannel() >> { openChannel() }
+        broker.openChannels == 4
+    }
+
+    def "broker should close all its connections"() {
+        def connections = [Mock(Connection), Mock(Connection)]
+
+        when:
+        new RabbitBroker(connections, null, null, null).close()
+
+        then:
+        1 * connections[0].abort()
+        1 * connections[1].abort()
+    }
+
+    private Channel openChannel() {
+        return Stub(Channel) { isOpen() >> true }
+    }
+}
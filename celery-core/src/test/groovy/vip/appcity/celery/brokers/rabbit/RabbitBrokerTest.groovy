@@ -3,10 +3,13 @@ package vip.appcity.celery.brokers.rabbit
 import vip.appcity.celery.spi.Message
 import com.rabbitmq.client.BasicProperties
 import com.rabbitmq.client.Channel
+import com.rabbitmq.client.ConfirmListener
 import com.rabbitmq.client.Connection
 import spock.genesis.Gen
 import spock.lang.Specification
 
+import java.util.concurrent.TimeUnit
+
 class RabbitBrokerTest extends Specification {
 
     def Channel channel
@@ -49,6 +52,23 @@ class RabbitBrokerTest extends Specification {
 
     }
 
+    def "it should publish a batch of messages on one channel"() {
+        def connection = Mock(Connection.class)
+        broker = new RabbitBroker(connection)
+        def messages = (1..5).collect { broker.newMessage() }
+
+        when:
+        messages.each { it.body = body }
+        broker.sendAll("test-queue", messages)
+
+        then:
+        1 * connection.createChannel() >> channel
+        5 * channel.basicPublish("", "test-queue", _, body)
+
+        where:
+        body << ["".bytes, (0..255) as byte[]]
+    }
+
     def "it should set content encoding"() {
 
         when:
@@ -181,6 +201,57 @@ class RabbitBrokerTest extends Specification {
         (messages.collect{System.identityHashCode(it)} as Set).size() == 5
     }
 
+    def "copy should keep the template headers and properties"() {
+        def props = []
+
+        when:
+        message.headers.taskName = "X#y"
+        message.headers.replyTo = "client"
+        message.contentType = "application/json"
+        def first = message.copy()
+        def second = message.copy()
+        first.headers.id = "1"
+        second.headers.id = "2"
+        first.send("q")
+        second.send("q")
+
+        then:
+        2 * channel.basicPublish("", "q", { props << it }, _)
+        props*.headers*.get("task") == ["X#y", "X#y"]
+        props*.headers*.get("id") == ["1", "2"]
+        props*.correlationId == ["1", "2"]
+        props*.replyTo == ["client", "client"]
+        props*.contentType == ["application/json", "application/json"]
+        props[0].headers["lang"] == "py"
+    }
+
+    def "it should set priority"() {
+        def BasicProperties props
+
+        when:
+        message.send()
+        def prioritized = broker.newMessage()
+        prioritized.setPriority(7)
+        prioritized.send()
+
+        then:
+        2 * channel.basicPublish("", "celery", { props = it }, _)
+        props.priority == 7
+    }
+
+    def "it should declare queues with max priority"() {
+        def connection = Mock(Connection.class)
+        connection.createChannel() >> channel
+
+        when:
+        new RabbitBroker(connection).declareQueue("plain")
+        new RabbitBroker(connection, null, 10).declareQueue("prioritized")
+
+        then:
+        1 * channel.queueDeclare("plain", true, false, false, null)
+        1 * channel.queueDeclare("prioritized", true, false, false, ["x-max-priority": 10])
+    }
+
     def "it should set task name"() {
         def BasicProperties props
 
@@ -198,3 +269,81 @@ class RabbitBrokerTest extends Specification {
         task << Gen.these("x.y.z.SomeClass#method", "Cls#method", "xyz").then(Gen.string(50)).take(6)
     }
 }
+
+class RabbitBrokerConfirmsTest extends Specification {
+
+    def Channel channel
+    def Connection connection
+    def ConfirmListener confirmListener
+    def long seqNo = 1
+
+    def setup() {
+        connection = Mock(Connection.class)
+        channel = Mock(Channel.class)
+        connection.createChannel() >> channel
+        channel.addConfirmListener(_) >> { confirmListener = it[0] }
+        channel.getNextPublishSeqNo() >> { seqNo }
+    }
+
+    def "it should put the channel into confirm mode"() {
+        def broker = new RabbitBroker(connection, new PublisherConfirms(10, true, 1, TimeUnit.SECONDS))
+
+        when:
+        broker.declareQueue("test-queue")
+
+        then:
+        1 * channel.confirmSelect()
+    }
+
+    def "send should return once the message is acked"() {
+        def broker = new RabbitBroker(connection, new PublisherConfirms(10, true, 1, TimeUnit.SECONDS))
+
+        when:
+        broker.newMessage().send("test-queue")
+
+        then:
+        1 * channel.basicPublish("", "test-queue", _, _) >> { confirmListener.handleAck(seqNo++, false) }
+        notThrown(IOException)
+    }
+
+    def "send should fail when the message is nacked"() {
+        def broker = new RabbitBroker(connection, new PublisherConfirms(10, true, 1, TimeUnit.SECONDS))
+
+        when:
+        broker.newMessage().send("test-queue")
+
+        then:
+        1 * channel.basicPublish("", "test-queue", _, _) >> { confirmListener.handleNack(seqNo++, false) }
+        thrown(IOException)
+    }
+
+    def "batch should wait for confirms after publishing all messages"() {
+        def broker = new RabbitBroker(connection, new PublisherConfirms(10, true, 1, TimeUnit.SECONDS))
+        def messages = (1..5).collect { broker.newMessage() }
+        def published = 0
+
+        when:
+        broker.sendAll("test-queue", messages)
+
+        then:
+        5 * channel.basicPublish("", "test-queue", _, _) >> {
+            seqNo++
+            if (++published == 5) {
+                confirmListener.handleAck(5, true)
+            }
+        }
+        notThrown(IOException)
+    }
+
+    def "it should fail fast when the in-flight window is full"() {
+        def broker = new RabbitBroker(connection, new PublisherConfirms(2, false, 1, TimeUnit.SECONDS))
+        def messages = (1..3).collect { broker.newMessage() }
+
+        when:
+        broker.sendAll("test-queue", messages)
+
+        then:
+        2 * channel.basicPublish("", "test-queue", _, _) >> { seqNo++ }
+        thrown(IOException)
+    }
+}
@@ -0,0 +1,76 @@
+package vip.appcity.celery.compression
+
+import vip.appcity.celery.Compression
+import spock.lang.Specification
+
+import java.util.zip.GZIPOutputStream
+
+class CompressionTest extends Specification {
+
+    def body = ('{"doc": "' + ("lorem ipsum dolor sit amet " * 2000) + '"}').getBytes("utf-8")
+
+    def "Codecs should restore the compressed body"() {
+        def compressor = Compressors.forName(codec)
+        def compressed
+
+        when:
+        compressed = compressor.compress(body)
+
+        then:
+        compressed.length < body.length / 10
+        compressor.contentType == contentType
+        Compressors.decompress(contentType, compressed) == body
+
+        where:
+        codec       | contentType
+        "zlib"      | "application/x-gzip"
+        "gzip"      | "application/x-gzip"
+        "zlib-fast" | "application/x-gzip"
+        "lz4"       | "application/x-lz4"
+    }
+
+    def "Zlib should produce a zlib stream like Python Celery"() {
+        expect:
+        Compressors.ZLIB.compress(body)[0] == (byte) 0x78
+    }
+
+    def "Zlib should accept a gzip stream"() {
+        def gzipped = new ByteArrayOutputStream()
+        new GZIPOutputStream(gzipped).withCloseable { it.write(body) }
+
+        expect:
+        Compressors.decompress("application/x-gzip", gzipped.toByteArray()) == body
+    }
+
+    def "Uncompressed body should be returned as it is"() {
+        expect:
+        Compressors.decompress(null, body).is(body)
+    }
+
+    def "Unknown compression should fail"() {
+        when:
+        Compressors.decompress("application/x-bz2", body)
+
+        then:
+        thrown(IOException)
+    }
+
+    def "Corrupted data should fail"() {
+        when:
+        Compressors.decompress(contentType, "not compressed at all".bytes)
+
+        then:
+        thrown(IOException)
+
+        where:
+        contentType << ["application/x-gzip", "application/x-lz4"]
+    }
+
+    def "Compression should skip bodies below the threshold"() {
+        def compression = Compression.of("zlib", 1000)
+
+        expect:
+        compression.compress(new byte[999]) == null
+        compression.compress(new byte[1000]) != null
+    }
+}
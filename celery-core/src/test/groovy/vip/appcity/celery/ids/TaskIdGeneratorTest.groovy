@@ -0,0 +1,63 @@
+package vip.appcity.celery.ids
+
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+class TaskIdGeneratorTest extends Specification {
+
+    def "generated IDs should be valid UUIDs"() {
+        def ids = (1..1000).collect { generator.nextId() }
+
+        expect:
+        ids.every { UUID.fromString(it).toString() == it }
+        ids.every { UUID.fromString(it).version() == version }
+        ids.every { UUID.fromString(it).variant() == 2 }
+
+        where:
+        generator                        | version
+        new RandomTaskIdGenerator()      | 4
+        new TimeOrderedTaskIdGenerator() | 7
+    }
+
+    def "generated IDs should be unique across threads"() {
+        def pool = Executors.newFixedThreadPool(8)
+        def ids
+
+        when:
+        ids = pool.invokeAll((1..8).collect {
+            { -> (1..10000).collect { generator.nextId() } } as Callable
+        })*.get().flatten()
+
+        then:
+        (ids as Set).size() == 80000
+
+        cleanup:
+        pool.shutdown()
+
+        where:
+        generator << [new RandomTaskIdGenerator(), new TimeOrderedTaskIdGenerator()]
+    }
+
+    def "scrambled counter should be a bijection of 62 bits"() {
+        def start = Uuids.seed()
+        def mixed = (0..<100000).collect { Uuids.mix(start + it) }
+
+        expect:
+        mixed.every { (it >>> 62) == 0 }
+        (mixed as Set).size() == 100000
+        // counters differing only above the 62 bits give the same value
+        Uuids.mix(start) == Uuids.mix(start ^ (3L << 62))
+    }
+
+    def "time ordered IDs should sort by generation time"() {
+        def generator = new TimeOrderedTaskIdGenerator()
+        def before = System.currentTimeMillis()
+        def ids = (1..10000).collect { generator.nextId() }
+
+        expect:
+        ids == ids.toSorted()
+        Long.parseLong(ids[0].replace("-", "")[0..<12], 16) >= before
+    }
+}
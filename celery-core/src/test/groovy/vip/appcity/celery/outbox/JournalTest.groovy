@@ -0,0 +1,127 @@
+package vip.appcity.celery.outbox
+
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.TimeUnit
+
+class JournalTest extends Specification {
+
+    def Path directory
+    def Journal journal
+
+    def setup() {
+        directory = Files.createTempDirectory("journal")
+        journal = Journal.open(directory, 1024, 10)
+    }
+
+    def cleanup() {
+        journal.close()
+    }
+
+    def "Records should be read in the order they were appended"() {
+        when:
+        (1..5).each { journal.append(record(it)) }
+        def read = (1..5).collect {
+            def r = new String(journal.next(1, TimeUnit.SECONDS), "utf-8")
+            journal.commit()
+            r
+        }
+
+        then:
+        read == (1..5).collect { "record-$it" }
+        journal.pending() == 0
+        journal.next(10, TimeUnit.MILLISECONDS) == null
+    }
+
+    def "Record should be read again until it's committed"() {
+        when:
+        journal.append(record(1))
+        journal.append(record(2))
+
+        then:
+        new String(journal.next(1, TimeUnit.SECONDS), "utf-8") == "record-1"
+        new String(journal.next(1, TimeUnit.SECONDS), "utf-8") == "record-1"
+        journal.pending() == 2
+    }
+
+    def "Reopened journal should resume after the last committed record"() {
+        when:
+        (1..3).each { journal.append(record(it)) }
+        journal.next(1, TimeUnit.SECONDS)
+        journal.commit()
+        journal.close()
+        journal = Journal.open(directory, 1024, 10)
+        def seq = journal.append(record(4))
+
+        then:
+        seq == 4
+        journal.pending() == 3
+        new String(journal.next(1, TimeUnit.SECONDS), "utf-8") == "record-2"
+    }
+
+    def "Journal should start new segments and delete the drained ones"() {
+        when:
+        (1..100).each { journal.append(record(it)) }
+        def segments = segmentCount()
+        (1..100).each {
+            journal.next(1, TimeUnit.SECONDS)
+            journal.commit()
+        }
+
+        then:
+        segments > 1
+        segmentCount() == 1
+    }
+
+    def "Reopened journal should drop a torn record at the end"() {
+        when:
+        journal.append(record(1))
+        journal.append(record(2))
+        journal.close()
+        def segment = Files.list(directory).find { it.fileName.toString().endsWith(".log") } as Path
+        def bytes = Files.readAllBytes(segment)
+        // corrupt the data of the second record
+        bytes[2 * Journal.HEADER + record(1).length] ^= 1
+        Files.write(segment, bytes)
+        journal = Journal.open(directory, 1024, 10)
+
+        then:
+        journal.pending() == 1
+        journal.append(record(3)) == 2
+    }
+
+    def "Appended record should be forced to the disk by the sync thread"() {
+        when:
+        def seq = journal.append(record(1))
+        journal.awaitSynced(seq)
+
+        then:
+        noExceptionThrown()
+    }
+
+    def "Directory should be used by a single journal at a time"() {
+        when:
+        Journal.open(directory, 1024, 10)
+
+        then:
+        def e = thrown(IOException)
+        e.message.contains("used by another outbox")
+
+        when:
+        journal.close()
+        journal = Journal.open(directory, 1024, 10)
+
+        then:
+        noExceptionThrown()
+    }
+
+    private static byte[] record(int i) {
+        return "record-$i".getBytes("utf-8")
+    }
+
+    private long segmentCount() {
+        return Files.list(directory).filter { it.fileName.toString().endsWith(".log") }.count()
+    }
+}
@@ -0,0 +1,102 @@
+package vip.appcity.celery.outbox
+
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+class OutboxTest extends Specification {
+
+    def Path directory
+    def Outbox outbox
+    def List<String> sent = [].asSynchronized()
+
+    def setup() {
+        directory = Files.createTempDirectory("outbox")
+        outbox = Outbox.open(directory)
+    }
+
+    def cleanup() {
+        outbox.close()
+    }
+
+    def "Outbox should send the tasks in the order they were appended"() {
+        when:
+        outbox.drainTo({ id, submission -> sent << new String(submission, "utf-8") } as Outbox.Sink)
+        (1..100).each { outbox.append("id-$it", "task-$it".getBytes("utf-8")) }
+
+        then:
+        new PollingConditions(timeout: 5).eventually { assert sent.size() == 100 }
+        sent == (1..100).collect { "task-$it" }
+        outbox.pending == 0
+    }
+
+    def "Outbox should send the tasks appended while it was closed"() {
+        when:
+        outbox.append("id-1", [1] as byte[])
+        outbox.append("id-2", [2] as byte[])
+        outbox.close()
+        outbox = Outbox.open(directory)
+        outbox.drainTo({ id, submission -> sent << id } as Outbox.Sink)
+
+        then:
+        new PollingConditions(timeout: 5).eventually { assert sent == ["id-1", "id-2"] }
+    }
+
+    def "Outbox should retry a task until the sink can send it, keeping the order"() {
+        def failures = 2
+
+        when:
+        outbox.drainTo({ id, submission ->
+            if (id == "id-1" && failures-- > 0) {
+                throw new IOException("broker unavailable")
+            }
+            sent << id
+        } as Outbox.Sink)
+        outbox.append("id-1", [1] as byte[])
+        outbox.append("id-2", [2] as byte[])
+
+        then:
+        new PollingConditions(timeout: 5).eventually { assert sent == ["id-1", "id-2"] }
+        failures == -1
+    }
+
+    def "Outbox should drop a task the sink rejects"() {
+        when:
+        outbox.drainTo({ id, submission ->
+            if (id == "id-1") {
+                throw new IllegalArgumentException("bad task")
+            }
+            sent << id
+        } as Outbox.Sink)
+        outbox.append("id-1", [1] as byte[])
+        outbox.append("id-2", [2] as byte[])
+
+        then:
+        new PollingConditions(timeout: 5).eventually { assert sent == ["id-2"] }
+        outbox.pending == 0
+    }
+
+    def "Outbox should skip tasks with the ID of a sent task"() {
+        def duplicates = [].asSynchronized()
+
+        when:
+        outbox.drainTo(new Outbox.Sink() {
+            @Override
+            void send(String taskId, byte[] submission) {
+                sent << taskId
+            }
+
+            @Override
+            void duplicate(String taskId) {
+                duplicates << taskId
+            }
+        })
+        ["id-1", "id-2", "id-1"].each { outbox.append(it, [0] as byte[]) }
+
+        then:
+        new PollingConditions(timeout: 5).eventually { assert duplicates == ["id-1"] }
+        sent == ["id-1", "id-2"]
+    }
+}
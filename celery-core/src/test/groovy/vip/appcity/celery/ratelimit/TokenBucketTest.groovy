@@ -0,0 +1,70 @@
+package vip.appcity.celery.ratelimit
+
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+import java.util.function.LongSupplier
+
+class TokenBucketTest extends Specification {
+
+    def "Bucket should parse Celery rate limits"() {
+        expect:
+        TokenBucket.of(rate).permitsPerSecond == perSecond
+
+        where:
+        rate    | perSecond
+        "500/s" | 500
+        "500"   | 500
+        "120/m" | 2
+        "360/h" | 0.1
+        "2.5/s" | 2.5
+    }
+
+    def "Bucket should reject malformed rate limits"() {
+        when:
+        TokenBucket.of(rate)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        rate << ["", "fast", "10/d", "-1/s", "0/s"]
+    }
+
+    def "Reserved tokens should be spaced by the rate"() {
+        def now = 1_000_000L
+        def bucket = new TokenBucket(10, 1, { now } as LongSupplier)
+
+        when:
+        def delays = (1..4).collect { TimeUnit.NANOSECONDS.toMillis(bucket.reserve()) }
+        now += TimeUnit.MILLISECONDS.toNanos(250)
+        def later = TimeUnit.NANOSECONDS.toMillis(bucket.reserve())
+
+        then:
+        delays == [0, 100, 200, 300]
+        later == 150
+    }
+
+    def "Bucket should allow a burst and then refuse tokens"() {
+        def bucket = TokenBucket.of(1, 3)
+
+        expect:
+        (1..3).every { bucket.tryAcquire() }
+        !bucket.tryAcquire()
+        bucket.reserve() > 0
+    }
+
+    def "Concurrent reservations should each get their own slot"() {
+        def bucket = TokenBucket.of(1000, 1)
+        def delays = new ConcurrentLinkedQueue<Long>()
+
+        when:
+        (1..4).collect { Thread.start { 250.times { delays << bucket.reserve() } } }*.join()
+
+        then:
+        delays.size() == 1000
+        // 1000 slots 1 ms apart, whatever the interleaving of the threads
+        TimeUnit.NANOSECONDS.toMillis(delays.max()) >= 900
+    }
+}
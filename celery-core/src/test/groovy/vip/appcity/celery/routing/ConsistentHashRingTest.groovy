@@ -0,0 +1,61 @@
+package vip.appcity.celery.routing
+
+import spock.lang.Specification
+
+class ConsistentHashRingTest extends Specification {
+
+    def queues = (0..3).collect { "orders." + it }
+    def keys = (1..10000).collect { "customer-" + it }
+
+    def "Ring should map a key to the same queue"() {
+        def ring = ConsistentHashRing.of(queues)
+
+        expect:
+        keys.every { ring.queueFor(it) == ring.queueFor(it) }
+        keys.every { ring.queueFor(it) == ConsistentHashRing.of(queues.reverse()).queueFor(it) }
+    }
+
+    def "Ring should spread the keys evenly"() {
+        def ring = ConsistentHashRing.of(queues)
+
+        when:
+        def counts = keys.countBy { ring.queueFor(it) }
+
+        then:
+        counts.keySet() == queues as Set
+        counts.values().every { it > 2000 && it < 3000 }
+    }
+
+    def "Adding a queue should move only the keys it takes over"() {
+        def ring = ConsistentHashRing.of(queues)
+        def resized = ring.withQueues(queues + "orders.4")
+
+        when:
+        def moved = keys.findAll { ring.queueFor(it) != resized.queueFor(it) }
+
+        then:
+        moved.every { resized.queueFor(it) == "orders.4" }
+        moved.size() > 1000 && moved.size() < 3000
+    }
+
+    def "Removing a queue should move only its keys"() {
+        def ring = ConsistentHashRing.of(queues)
+        def resized = ring.withQueues(queues - "orders.0")
+
+        expect:
+        keys.findAll { ring.queueFor(it) != resized.queueFor(it) }.every { ring.queueFor(it) == "orders.0" }
+    }
+
+    def "Route should pick the queue by the routing key"() {
+        def route = PartitionedRoute.of(ConsistentHashRing.of(queues), RoutingKeyExtractor.arg(1))
+
+        expect:
+        route.queueFor(["a", 42] as Object[]) == route.ring.queueFor("42")
+
+        when:
+        route.queueFor(["a"] as Object[])
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
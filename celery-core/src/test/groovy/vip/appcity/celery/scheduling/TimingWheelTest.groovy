@@ -0,0 +1,53 @@
+package vip.appcity.celery.scheduling
+
+import spock.lang.Specification
+
+class TimingWheelTest extends Specification {
+
+    def "Items should expire in the first tick after their deadline"() {
+        def wheel = new TimingWheel<String>(10, 1000)
+
+        when:
+        wheel.add(1025, "a")
+        wheel.add(1100, "b")
+
+        then:
+        wheel.size() == 2
+        wheel.advance(1029) == []
+        wheel.advance(1030) == ["a"]
+        wheel.advance(1099) == []
+        wheel.advance(1100) == ["b"]
+        wheel.size() == 0
+    }
+
+    def "Item past its deadline should not be added"() {
+        def wheel = new TimingWheel<String>(10, 1000)
+        wheel.advance(2000)
+
+        expect:
+        !wheel.add(1500, "late")
+        !wheel.add(2000, "now")
+        wheel.add(2001, "next")
+        wheel.size() == 1
+    }
+
+    def "Distant items should cascade down the wheels and expire on time"() {
+        def wheel = new TimingWheel<Long>(1, 0)
+        def random = new Random(42)
+        def deadlines = (1..2000).collect { (long) random.nextInt(5_000_000) + 1 }
+        def expired = []
+
+        when:
+        deadlines.each { wheel.add(it, it) }
+        for (long now = 0; now < 5_000_000; now += 7919) {
+            wheel.advance(now + 7919).each {
+                assert it > now && it <= now + 7919
+                expired << it
+            }
+        }
+
+        then:
+        expired.sort() == deadlines.sort()
+        wheel.size() == 0
+    }
+}
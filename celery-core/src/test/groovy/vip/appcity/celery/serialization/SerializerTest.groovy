@@ -0,0 +1,131 @@
+package vip.appcity.celery.serialization
+
+import vip.appcity.celery.MockBrokerFactory
+import vip.appcity.celery.TestCeleryClient
+import vip.appcity.celery.TestingTask
+import vip.appcity.celery.spi.Message
+import com.fasterxml.jackson.databind.DeserializationContext
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.deser.std.FromStringDeserializer
+import com.fasterxml.jackson.databind.module.SimpleModule
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer
+import spock.lang.Specification
+
+class SerializerTest extends Specification {
+
+    def Message message
+    def Message.Headers headers
+
+    def setup() {
+        message = Mock(Message.class)
+        headers = Mock(Message.Headers.class)
+        message.getHeaders() >> headers
+        MockBrokerFactory.messages = [message]
+    }
+
+    def "Client should encode the task by the serializer"() {
+        def client = new TestCeleryClient("mock://anything", null, null, serializer)
+        def body
+
+        when:
+        client.submit(TestingTask.class, "doWork", [1, "x", [0, 1, 2] as byte[]] as Object[])
+
+        then:
+        1 * message.setContentType(contentType)
+        1 * message.setContentEncoding(contentEncoding)
+        1 * message.setBody({ body = it })
+
+        def payload = serializer.mapper.readValue(body, List)
+        payload[0][0..1] == [1, "x"]
+        payload[0][2] == (serializer.contentType == Serializers.JSON ? "AAEC" : [0, 1, 2] as byte[])
+        payload[1] == [:]
+        payload[2] == [callbacks: null, chain: null, chord: null, errbacks: null]
+
+        where:
+        serializer                          | contentType                    | contentEncoding
+        Serializers.json(new ObjectMapper()) | "application/json"             | "utf-8"
+        Serializers.msgpack()               | "application/x-msgpack"        | "binary"
+        Serializers.smile()                 | "application/x-jackson-smile"  | "binary"
+    }
+
+    def "Smile payloads should be independent of each other"() {
+        def client = new TestCeleryClient("mock://anything", null, null, Serializers.smile())
+        def bodies = []
+
+        when:
+        (1..3).each { client.submit(TestingTask.class, "doWork", [[name: "n" + it]] as Object[]) }
+
+        then:
+        3 * message.setBody({ bodies << it })
+        bodies.collect { Serializers.smile().mapper.readValue(it, List)[0][0] } == [[name: "n1"], [name: "n2"], [name: "n3"]]
+    }
+
+    def "Serializers should be found by name and content type"() {
+        def json = Serializers.json(new ObjectMapper())
+
+        expect:
+        Serializers.forName("msgpack").is(Serializers.msgpack())
+        Serializers.forContentType(null, json).is(json)
+        Serializers.forContentType("application/json", json).is(json)
+        Serializers.forContentType("application/x-msgpack", json).contentType == "application/x-msgpack"
+        Serializers.forContentType("application/x-jackson-smile", json).contentType == "application/x-jackson-smile"
+        // derived from the JSON mapper once
+        Serializers.forContentType("application/x-msgpack", json)
+                .is(Serializers.forContentType("application/x-msgpack", json))
+    }
+
+    def "Binary serializers should use the modules of the JSON mapper"() {
+        def mapper = new ObjectMapper().registerModule(new SimpleModule()
+                .addSerializer(Money, new ToStringSerializer())
+                .addDeserializer(Money, new FromStringDeserializer<Money>(Money) {
+                    @Override
+                    protected Money _deserialize(String value, DeserializationContext context) {
+                        return new Money(cents: Long.parseLong(value))
+                    }
+                }))
+        def binary = Serializers.forContentType(contentType, Serializers.json(mapper))
+
+        when:
+        def bytes = binary.mapper.writeValueAsBytes(new Money(cents: 1250))
+
+        then:
+        plain.mapper.readValue(bytes, Object) == "1250"
+        binary.mapper.readValue(bytes, Money).cents == 1250
+
+        where:
+        contentType                   | plain
+        "application/x-msgpack"       | Serializers.msgpack()
+        "application/x-jackson-smile" | Serializers.smile()
+    }
+
+    def "Client should apply its JSON mapper to a built-in binary serializer"() {
+        def mapper = new ObjectMapper()
+                .registerModule(new SimpleModule().addSerializer(Money, new ToStringSerializer()))
+        def client = new TestCeleryClient("mock://anything", null, null, mapper, Serializers.msgpack())
+        def body
+
+        when:
+        client.submit(TestingTask.class, "doWork", [new Money(cents: 7)] as Object[])
+
+        then:
+        1 * message.setBody({ body = it })
+        Serializers.msgpack().mapper.readValue(body, List)[0] == ["7"]
+    }
+
+    def "Unknown content type should fail"() {
+        when:
+        Serializers.forContentType("application/x-yaml", Serializers.json(new ObjectMapper()))
+
+        then:
+        thrown(IOException)
+    }
+}
+
+class Money {
+    long cents
+
+    @Override
+    String toString() {
+        return String.valueOf(cents)
+    }
+}
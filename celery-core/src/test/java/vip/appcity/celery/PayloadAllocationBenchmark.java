@@ -0,0 +1,88 @@
+package vip.appcity.celery;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares bytes allocated per serialized task payload by the former tree-based serialization and by
+ * {@link TaskPayloadWriter}. It is not part of the test suite; run it after {@code mvn test-compile} with
+ * <pre>
+ * java -cp target/classes:target/test-classes:$(mvn -q dependency:build-classpath -Dmdep.outputFile=/dev/stdout) \
+ *     vip.appcity.celery.PayloadAllocationBenchmark
+ * </pre>
+ */
+public class PayloadAllocationBenchmark {
+
+    private static final int WARMUP = 200_000;
+    private static final int ITERATIONS = 1_000_000;
+
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final TaskPayloadWriter WRITER = new TaskPayloadWriter(JSON_MAPPER);
+
+    private static long sink = 0;
+
+    private interface Serialization {
+        byte[] write(Object[] args) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, Object> document = new HashMap<>();
+        document.put("id", 42);
+        document.put("tags", Arrays.asList("a", "b", "c"));
+
+        Object[][] cases = {
+                {1, 2},
+                {"some string argument", 3.14, true},
+                {document, Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8)},
+        };
+
+        for (Object[] taskArgs : cases) {
+            int payloadSize = WRITER.write(taskArgs).length;
+            long tree = measure(PayloadAllocationBenchmark::writeTree, taskArgs);
+            long streamed = measure(WRITER::write, taskArgs);
+            System.out.printf("args=%s payload=%dB tree=%dB/op streamed=%dB/op%n",
+                    Arrays.toString(taskArgs), payloadSize, tree, streamed);
+        }
+        System.out.println(sink);
+    }
+
+    /** The serialization used before {@link TaskPayloadWriter}. */
+    private static byte[] writeTree(Object[] args) throws IOException {
+        ArrayNode payload = JSON_MAPPER.createArrayNode();
+        ArrayNode argsArr = payload.addArray();
+        for (Object arg : args) {
+            argsArr.addPOJO(arg);
+        }
+        payload.addObject();
+        payload.addObject()
+                .putNull("callbacks")
+                .putNull("chain")
+                .putNull("chord")
+                .putNull("errbacks");
+        return JSON_MAPPER.writeValueAsBytes(payload);
+    }
+
+    private static long measure(Serialization serialization, Object[] args) throws IOException {
+        for (int i = 0; i < WARMUP; i++) {
+            sink += serialization.write(args).length;
+        }
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += serialization.write(args).length;
+        }
+        long after = threads.getThreadAllocatedBytes(threadId);
+
+        return (after - before) / ITERATIONS;
+    }
+}
@@ -1,7 +1,10 @@
 package vip.appcity.celery;
 
+import vip.appcity.celery.outbox.Outbox;
 import vip.appcity.celery.spi.BackendFactory;
 import vip.appcity.celery.spi.BrokerFactory;
+import vip.appcity.celery.spi.Serializer;
+import vip.appcity.celery.spi.TaskIdGenerator;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -28,6 +31,14 @@ public class Celery extends CeleryClientCore {
      * @param queue routing tag (specifies into which Rabbit queue the messages will go)
      * @param executor override for the used executor service
      * @param jsonMapper override for the used JSON mapper
+     * @param taskIdGenerator override for the generator of IDs of tasks submitted without one, eg.
+     *                        {@link vip.appcity.celery.ids.TimeOrderedTaskIdGenerator}
+     * @param compression compression of the task messages, eg. {@code Compression.of("zlib", 64 * 1024)}
+     * @param serializer format of the task messages, eg. {@code Serializers.msgpack()}; JSON by default
+     * @param claimCheck offloading of large arguments, eg. {@code ClaimCheck.of(new FileBlobStore(dir), 1 << 20)}
+     * @param outbox journal the tasks are submitted through while the broker can't be reached, eg.
+     *               {@code Outbox.open(dir)}; closed with the client. Covers {@code submit}, {@code submitAll} and
+     *               prepared tasks, groups, chunks, chords and chains are rejected with an outbox
      */
     @Builder
     Celery(
@@ -35,9 +46,32 @@ public class Celery extends CeleryClientCore {
             @Nullable final String backendUri,
             @Nullable final String queue,
             @Nullable final ExecutorService executor,
-            @Nullable final ObjectMapper jsonMapper
+            @Nullable final ObjectMapper jsonMapper,
+            @Nullable final TaskIdGenerator taskIdGenerator,
+            @Nullable final Compression compression,
+            @Nullable final Serializer serializer,
+            @Nullable final ClaimCheck claimCheck,
+            @Nullable final Outbox outbox
     ) {
-        super(brokerUri, backendUri, queue, executor, jsonMapper);
+        super(brokerUri, backendUri, queue, executor, jsonMapper, taskIdGenerator, compression, serializer,
+                claimCheck, outbox);
+    }
+
+    private Celery(@Nonnull final Celery parent, @Nonnull final String queue, @Nullable final Compression compression) {
+        super(parent, queue, compression);
+    }
+
+    /**
+     * Create a client submitting tasks into another queue over the connections of this client. The clients share
+     * the broker connection and the backend consumer, so a client per queue costs almost nothing. Closing the
+     * returned client does nothing, close this one when done.
+     *
+     * @param queue routing tag (specifies into which Rabbit queue the messages will go)
+     * @param compression compression of the task messages, {@code null} not to compress them
+     * @return client for the queue
+     */
+    public Celery forQueue(@Nonnull final String queue, @Nullable final Compression compression) {
+        return new Celery(this, queue, compression);
     }
 
     @Override
@@ -19,4 +19,10 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.CLASS)
 @Target(ElementType.TYPE)
 public @interface CeleryTask {
+
+    /**
+     * Priority of the tasks submitted through the generated proxy, see {@link TaskOptions#withPriority(int)}.
+     * Negative (the default) submits them without priority.
+     */
+    int priority() default -1;
 }
@@ -3,18 +3,25 @@ package vip.appcity.celery;
 import com.google.common.util.concurrent.ListenableFuture;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import vip.appcity.celery.outbox.Outbox;
+import vip.appcity.celery.ratelimit.TokenBucket;
+import vip.appcity.celery.routing.PartitionedRoute;
+import vip.appcity.celery.spi.Serializer;
+import vip.appcity.celery.spi.TaskIdGenerator;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * <p>
  * celery任务发布器，支持多个不同队列
  * </p>
+ * <p>
+ * 所有队列共用一个broker连接和一个结果消费者，增加队列几乎没有额外开销
+ * </p>
  *
  * @author songjie
  * @date 2023/8/7 10:38
@@ -32,11 +39,19 @@ import java.util.concurrent.ConcurrentHashMap;
 @Slf4j
 public class CeleryTaskDistributor implements Closeable {
     private final Map<String, Celery> taskQueueClientMap = new ConcurrentHashMap<>();
+    private Celery sharedClient;
 
     private Map<String, String> taskQueueMaps = new HashMap<>();
+    private Map<String, PartitionedRoute> taskRoutes = new HashMap<>();
     private String broker;
     private String backend;
     private String defaultQueueName = "celery";
+    private TaskIdGenerator taskIdGenerator;
+    private Map<String, Compression> queueCompressions = new HashMap<>();
+    private Serializer serializer;
+    private ClaimCheck claimCheck;
+    private Map<String, TaskOptions> taskOptions = new HashMap<>();
+    private Outbox outbox;
 
     public void setBroker(String broker) {
         this.broker = broker;
@@ -53,12 +68,74 @@ public class CeleryTaskDistributor implements Closeable {
     public void setTaskQueueMaps(Map<String, String> taskQueueMaps) {
         this.taskQueueMaps = taskQueueMaps;
     }
+
+    /**
+     * 设置任务的分区路由，按参数中的路由key一致性哈希到一组队列，同一个key总是进同一个队列；优先于taskQueueMaps
+     * @param taskRoutes 任务名 -> 分区路由，
+     *                   如 {@code PartitionedRoute.of(ConsistentHashRing.of(queues), RoutingKeyExtractor.arg(0))}
+     */
+    public void setTaskRoutes(Map<String, PartitionedRoute> taskRoutes) {
+        this.taskRoutes = taskRoutes;
+    }
+
+    /**
+     * 设置任务ID生成器，不设置则使用客户端默认的生成器
+     * @param taskIdGenerator
+     */
+    public void setTaskIdGenerator(TaskIdGenerator taskIdGenerator) {
+        this.taskIdGenerator = taskIdGenerator;
+    }
+
+    /**
+     * 设置各队列的消息压缩方式，未设置的队列不压缩
+     * @param queueCompressions 队列名 -> 压缩方式，如 {@code Compression.of("zlib", 64 * 1024)}
+     */
+    public void setQueueCompressions(Map<String, Compression> queueCompressions) {
+        this.queueCompressions = queueCompressions;
+    }
+
+    /**
+     * 设置消息序列化方式，不设置则使用JSON
+     * @param serializer 如 {@code Serializers.msgpack()}
+     */
+    public void setSerializer(Serializer serializer) {
+        this.serializer = serializer;
+    }
+
+    /**
+     * 设置大参数的外置存储，超过阈值的参数存入共享的BlobStore，消息中只带其key
+     * @param claimCheck 如 {@code ClaimCheck.of(new FileBlobStore(dir), 1024 * 1024)}
+     */
+    public void setClaimCheck(ClaimCheck claimCheck) {
+        this.claimCheck = claimCheck;
+    }
+
+    /**
+     * 设置任务的客户端限流，提交超过速率时提交线程等待，在到达broker之前削峰
+     * @param taskRateLimits 任务名 -> 速率，如 {@code "500/s"}、{@code "10/m"}
+     */
+    public void setTaskRateLimits(Map<String, String> taskRateLimits) {
+        Map<String, TaskOptions> options = new HashMap<>();
+        taskRateLimits.forEach((taskName, rate) ->
+                options.put(taskName, TaskOptions.DEFAULT.withRateLimit(TokenBucket.of(rate))));
+        this.taskOptions = options;
+    }
+
+    /**
+     * 设置本地发件箱，任务先写入本地日志再由后台线程按顺序发往broker，broker不可用时提交也不会失败，随发布器一起关闭。
+     * 仅支持submit、submitAll和预备任务，设置发件箱后group、chunks、chord和chain会抛出IllegalStateException
+     * @param outbox 如 {@code Outbox.open(Paths.get("/var/lib/app/outbox"))}
+     */
+    public void setOutbox(Outbox outbox) {
+        this.outbox = outbox;
+    }
+
     public final <R> ListenableFuture<R> submit(String taskName, Object[] args) throws IOException {
-        return this.submit(taskName, UUID.randomUUID().toString(), args);
+        return this.submit(taskName, null, args);
     }
 
     /**
-     * 提交任务，根据配置文件自动选择队列，无配置则走默认队列
+     * 提交任务，根据配置文件自动选择队列（分区路由优先），无配置则走默认队列
      * @param taskName
      * @param taskId
      * @param args
@@ -67,14 +144,10 @@ public class CeleryTaskDistributor implements Closeable {
      * @throws IOException
      */
     public final <R> ListenableFuture<R> submit(String taskName, String taskId, Object[] args) throws IOException {
-        String queueName = taskQueueMaps.get(taskName);
+        PartitionedRoute route = taskRoutes.get(taskName);
+        String queueName = route != null ? route.queueFor(args) : taskQueueMaps.get(taskName);
         queueName = StringUtils.isNotBlank(queueName)? queueName : this.defaultQueueName;
-        Celery celery = taskQueueClientMap.get(queueName);
-        if (celery==null){
-            celery = creatNewQueueClient(queueName);
-            taskQueueClientMap.put(queueName, celery);
-        }
-        return celery.submit(taskName, taskId, args);
+        return getQueueClient(queueName).submit(taskName, taskId, args, getTaskOptions(taskName));
     }
 
     /**
@@ -88,12 +161,11 @@ public class CeleryTaskDistributor implements Closeable {
      * @throws IOException
      */
     public final <R> ListenableFuture<R> submit(String queueName, String taskName, String taskId, Object[] args) throws IOException {
-        Celery celery = taskQueueClientMap.get(queueName);
-        if (celery==null){
-            celery = creatNewQueueClient(queueName);
-            taskQueueClientMap.put(queueName, celery);
-        }
-        return celery.submit(taskName, taskId, args);
+        return getQueueClient(queueName).submit(taskName, taskId, args, getTaskOptions(taskName));
+    }
+
+    private TaskOptions getTaskOptions(String taskName) {
+        return taskOptions.getOrDefault(taskName, TaskOptions.DEFAULT);
     }
 
     public void addQueueClient(String queue, Celery celery){
@@ -104,30 +176,81 @@ public class CeleryTaskDistributor implements Closeable {
         for (Celery celery : taskQueueClientMap.values()) {
             celery.close();
         }
+        synchronized (this) {
+            if (sharedClient != null) {
+                sharedClient.close();
+            }
+        }
     }
 
+    /**
+     * 获取队列的客户端，不存在则原子地创建，并发提交也只会创建一个
+     * @param queueName
+     * @return
+     */
+    private Celery getQueueClient(String queueName) {
+        // Java 8的computeIfAbsent即使key已存在也会加锁，先get一次
+        Celery celery = taskQueueClientMap.get(queueName);
+        return celery != null ? celery : taskQueueClientMap.computeIfAbsent(queueName, this::creatNewQueueClient);
+    }
+
+    /**
+     * 创建队列客户端，共用同一个broker连接和结果消费者，只有队列和压缩方式不同
+     * @param queueName
+     * @return
+     */
     private Celery creatNewQueueClient(String queueName){
+        if(StringUtils.isEmpty(queueName)) {
+            throw new RuntimeException("no queueName config");
+        }
+        Compression compression = this.queueCompressions.get(queueName);
+        if (compression != null) {
+            log.info("[celery] {} use compression: {}", queueName, compression.getCompressor().getContentType());
+        }
+        log.info("[celery] {} init finished", queueName);
+        return getSharedClient().forQueue(queueName, compression);
+    }
+
+    /**
+     * 所有队列共用的客户端，持有broker和backend连接，第一次使用时创建
+     * @return
+     */
+    private synchronized Celery getSharedClient(){
+        if (this.sharedClient != null) {
+            return this.sharedClient;
+        }
         Celery.CeleryBuilder builder = Celery.builder().brokerUri(this.broker);
         if(!StringUtils.isEmpty(this.broker)) {
             builder.brokerUri(this.broker);
-            log.info("[celery] {} use broker: {}", queueName, this.broker);
+            log.info("[celery] use broker: {}", this.broker);
         }else{
             throw new RuntimeException("no broker config");
         }
 
         if(!StringUtils.isEmpty(this.backend)) {
             builder.backendUri(this.backend);
-            log.info("[celery] {} use backend: {}", queueName, this.backend);
+            log.info("[celery] use backend: {}", this.backend);
         }else{
             log.debug("[celery] dont use backend");
         }
 
-        if(!StringUtils.isEmpty(queueName)) {
-            builder.queue(queueName);
-        }else{
-            throw new RuntimeException("no queueName config");
+        if (this.taskIdGenerator != null) {
+            builder.taskIdGenerator(this.taskIdGenerator);
         }
-        log.info("[celery] {} init finished", queueName);
-        return builder.build();
+
+        if (this.serializer != null) {
+            builder.serializer(this.serializer);
+        }
+
+        if (this.claimCheck != null) {
+            builder.claimCheck(this.claimCheck);
+        }
+
+        if (this.outbox != null) {
+            builder.outbox(this.outbox);
+        }
+
+        this.sharedClient = builder.queue(this.defaultQueueName).build();
+        return this.sharedClient;
     }
 }
@@ -1,5 +1,9 @@
 package vip.appcity.celery;
 
+import vip.appcity.celery.ratelimit.TokenBucket;
+import vip.appcity.celery.spi.BlobStore;
+import vip.appcity.celery.spi.TaskIdGenerator;
+
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rabbitmq.client.Connection;
 import lombok.Builder;
@@ -7,6 +11,7 @@ import lombok.Builder;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.util.Map;
 
 /**
  * A worker that listens on RabbitMQ queue and executes <em>CeleryTask</em>.
@@ -23,14 +28,30 @@ public class CeleryWorker extends CeleryWorkerCore {
      * @param connection the RabbitMQ connection to be used
      * @param queue routing tag (specifies the Rabbit queue where to listen)
      * @param jsonMapper override for the used JSON mapper
+     * @param resultCompression compression of the reported results, {@code null} not to compress them
+     * @param blobStore store of the arguments offloaded by clients, see {@link ClaimCheck}
+     * @param maxPriority {@code x-max-priority} of the queue, {@code null} for a queue without priorities
+     * @param prefetchCount max number of unacknowledged messages delivered to the worker, 2 by default
+     * @param rateLimits rate limits of the tasks by their names, eg. {@code TokenBucket.of("500/s")}; the buckets can
+     *                   be shared by more workers
+     * @param taskIdGenerator generator of the IDs of chained tasks sent without one, eg.
+     *                        {@link vip.appcity.celery.ids.TimeOrderedTaskIdGenerator}; use the one of the clients
+     *                        so that chained tasks follow the same scheme, random by default
      */
     @Builder
     CeleryWorker(
             @Nonnull final Connection connection,
             @Nullable final String queue,
-            @Nullable final ObjectMapper jsonMapper
+            @Nullable final ObjectMapper jsonMapper,
+            @Nullable final Compression resultCompression,
+            @Nullable final BlobStore blobStore,
+            @Nullable final Integer maxPriority,
+            @Nullable final Integer prefetchCount,
+            @Nullable final Map<String, TokenBucket> rateLimits,
+            @Nullable final TaskIdGenerator taskIdGenerator
     ) throws IOException {
-        super(connection, queue, jsonMapper);
+        super(connection, queue, jsonMapper, resultCompression, blobStore, maxPriority, prefetchCount, rateLimits,
+                taskIdGenerator);
     }
 
     @Override
@@ -1,16 +1,28 @@
 package vip.appcity.celery;
 
+import vip.appcity.celery.blobs.FileBlobStore;
+import vip.appcity.celery.ratelimit.TokenBucket;
+import vip.appcity.celery.spi.BlobStore;
+
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rabbitmq.client.Connection;
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeoutException;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * Simple CLI for the {@link CeleryWorker}, you can supply your tasks on classpath like this:
  * <pre>
@@ -27,15 +39,58 @@ public class CeleryWorkerCLI {
                 .help("Number of concurrent tasks to process");
         parser.addArgument("-b", "--broker").dest("broker").setDefault("amqp://localhost/%2F")
                 .help("Broker URL, e.g. amqp://localhost//");
+        parser.addArgument("--result-compression").dest("resultCompression")
+                .help("Compression of the results larger than the threshold: zlib, zlib-fast or lz4");
+        parser.addArgument("--result-compression-threshold").dest("resultCompressionThreshold")
+                .type(Integer.class).setDefault(64 * 1024)
+                .help("Minimal size of the results to be compressed, in bytes");
+        parser.addArgument("--blob-dir").dest("blobDir")
+                .help("Directory of the FileBlobStore with the task arguments offloaded by clients");
+        parser.addArgument("--max-priority").dest("maxPriority").type(Integer.class)
+                .help("x-max-priority of the queue, the prefetched tasks are executed by priority");
+        parser.addArgument("--prefetch").dest("prefetchCount").type(Integer.class).setDefault(2)
+                .help("Number of unacknowledged tasks prefetched by each worker");
+        parser.addArgument("--connections").dest("connections").type(Integer.class).setDefault(1)
+                .help("Number of connections to the broker, the workers are spread over them");
+        parser.addArgument("--rate-limit").dest("rateLimits").action(Arguments.append()).metavar("TASK=RATE")
+                .help("Rate limit of a task shared by all the workers, e.g. pkg.Task#method=500/s; repeatable");
 
         final Namespace ns = parser.parseArgsOrFail(args);
         final String queue = ns.get("queue");
         final int numWorkers = ns.get("numWorkers");
         final String broker = ns.get("broker");
+        final String resultCompressionCodec = ns.get("resultCompression");
+        final String blobDir = ns.get("blobDir");
+        final BlobStore blobStore = blobDir != null ? new FileBlobStore(Paths.get(blobDir)) : null;
+
+        final Map<String, TokenBucket> rateLimits = new HashMap<>();
+        final List<String> rateLimitArgs = ns.get("rateLimits");
+        for (String rateLimit : rateLimitArgs != null ? rateLimitArgs : Collections.<String>emptyList()) {
+            String[] taskAndRate = rateLimit.split("=", 2);
+            try {
+                checkArgument(taskAndRate.length == 2, "expected TASK=RATE");
+                rateLimits.put(taskAndRate[0], TokenBucket.of(taskAndRate[1]));
+            } catch (IllegalArgumentException e) {
+                parser.handleError(new ArgumentParserException("bad \"rate-limit\" argument", e, parser));
+                System.exit(1);
+                return;
+            }
+        }
+
+        Compression resultCompression = null;
+        if (resultCompressionCodec != null) {
+            try {
+                resultCompression = Compression.of(resultCompressionCodec, ns.get("resultCompressionThreshold"));
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                parser.handleError(new ArgumentParserException("bad \"result-compression\" argument", e, parser));
+                System.exit(1);
+                return;
+            }
+        }
 
-        final Connection connection;
+        final List<Connection> connections;
         try {
-            connection = CeleryWorker.connect(broker, Executors.newCachedThreadPool());
+            connections = CeleryWorker.connect(broker, Executors.newCachedThreadPool(), ns.getInt("connections"));
         } catch (IOException | TimeoutException | IllegalArgumentException e) {
             parser.handleError(new ArgumentParserException("bad \"broker\" argument", e, parser));
             System.exit(1);
@@ -45,9 +100,14 @@ public class CeleryWorkerCLI {
         final ObjectMapper jsonMapper = new ObjectMapper();
         for (int i = 0; i < numWorkers; i++) {
             CeleryWorker.builder()
-                    .connection(connection)
+                    .connection(connections.get(i % connections.size()))
                     .queue(queue)
                     .jsonMapper(jsonMapper)
+                    .resultCompression(resultCompression)
+                    .blobStore(blobStore)
+                    .maxPriority(ns.get("maxPriority"))
+                    .prefetchCount(ns.get("prefetchCount"))
+                    .rateLimits(rateLimits)
                     .build()
                     .start();
         }
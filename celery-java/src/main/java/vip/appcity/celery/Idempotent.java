@@ -0,0 +1,17 @@
+package vip.appcity.celery;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method of a {@link CeleryTask} that returns the same result for the same arguments.
+ * <p>
+ * Proxies created by {@code *Proxy.prepare(client, resultCache)} share the results of these methods through the
+ * {@link ResultCache} - identical concurrent calls send one task, and the result is reused until it expires.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+public @interface Idempotent {
+}
@@ -0,0 +1,54 @@
+package vip.appcity.celery;
+
+import vip.appcity.celery.ratelimit.TokenBucket;
+import vip.appcity.celery.spi.BlobStore;
+import vip.appcity.celery.spi.TaskIdGenerator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Builder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+
+/**
+ * A worker that executes <em>CeleryTask</em> sent by {@link Celery} clients in the same JVM through a
+ * {@code memory://} broker, eg. in a modular monolith or in integration tests.
+ * <p>
+ *     The client and the worker have to use the same URI as both broker and backend, eg.
+ *     {@code Celery.builder().brokerUri("memory://app").backendUri("memory://app")}.
+ * </p>
+ */
+public class MemoryWorker extends MemoryWorkerCore {
+
+    /**
+     * Create an in-memory Celery worker that can listen on a queue and execute tasks.
+     *
+     * @param uri the {@code memory://name} URI shared with the clients
+     * @param queue routing tag (specifies the queue where to listen)
+     * @param jsonMapper override for the used JSON mapper
+     * @param concurrency number of threads executing the tasks, 1 by default
+     * @param blobStore store of the arguments offloaded by clients, see {@link ClaimCheck}
+     * @param rateLimits rate limits of the tasks by their names, eg. {@code TokenBucket.of("500/s")}
+     * @param taskIdGenerator generator of the IDs of chained tasks sent without one, eg.
+     *                        {@link vip.appcity.celery.ids.TimeOrderedTaskIdGenerator}; use the one of the clients
+     *                        so that chained tasks follow the same scheme, random by default
+     */
+    @Builder
+    MemoryWorker(
+            @Nonnull final String uri,
+            @Nullable final String queue,
+            @Nullable final ObjectMapper jsonMapper,
+            @Nullable final Integer concurrency,
+            @Nullable final BlobStore blobStore,
+            @Nullable final Map<String, TokenBucket> rateLimits,
+            @Nullable final TaskIdGenerator taskIdGenerator
+    ) {
+        super(uri, queue, jsonMapper, concurrency != null ? concurrency : 1, blobStore, rateLimits, taskIdGenerator);
+    }
+
+    @Override
+    protected Object findTask(String className) {
+        return TaskRegistry.getTask(className);
+    }
+}
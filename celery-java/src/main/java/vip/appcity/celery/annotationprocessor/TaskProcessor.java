@@ -7,6 +7,7 @@ import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
 import org.kohsuke.MetaInfServices;
 import vip.appcity.celery.CeleryTask;
+import vip.appcity.celery.Idempotent;
 
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.Processor;
@@ -76,7 +77,7 @@ public class TaskProcessor extends AbstractProcessor {
             PackageElement packageElement = (PackageElement) taskClassElem.getEnclosingElement();
             Name packageName = packageElement.getQualifiedName();
 
-            writeProxy(taskClassElem, methods, packageName);
+            writeProxy(taskClassElem, methods, packageName, taskClassElem.getAnnotation(CeleryTask.class).priority());
             writeLoader(taskClassElem, packageName);
         }
         return true;
@@ -98,7 +99,8 @@ public class TaskProcessor extends AbstractProcessor {
 
                     methods.add(ImmutableMap.of("simpleName", e.getSimpleName(),
                             "returnType", convert(e.getReturnType()),
-                            "parameters", parameters));
+                            "parameters", parameters,
+                            "idempotent", e.getAnnotation(Idempotent.class) != null));
                 }
                 return super.visitExecutable(e, aVoid);
             }
@@ -126,7 +128,7 @@ public class TaskProcessor extends AbstractProcessor {
         }
     }
 
-    private void writeProxy(TypeElement elem, List<Map<Object, Object>> methods, Name packageName) {
+    private void writeProxy(TypeElement elem, List<Map<Object, Object>> methods, Name packageName, int priority) {
         Name binaryName = processingEnv.getElementUtils().getBinaryName(elem);
         try {
             JavaFileObject file = processingEnv.getFiler().createSourceFile(binaryName + "Proxy", elem);
@@ -136,6 +138,8 @@ public class TaskProcessor extends AbstractProcessor {
             vc.put("taskName", elem.getSimpleName());
             vc.put("packageName", packageName);
             vc.put("methods", methods);
+            vc.put("hasPriority", priority >= 0);
+            vc.put("priority", priority);
 
             Template vt = ve.getTemplate("vip/appcity/celery/templates/TaskProxy.vm");
 
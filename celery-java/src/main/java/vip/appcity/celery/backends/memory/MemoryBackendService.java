@@ -0,0 +1,10 @@
+package vip.appcity.celery.backends.memory;
+
+import vip.appcity.celery.spi.BackendFactory;
+
+import org.kohsuke.MetaInfServices;
+
+@MetaInfServices(BackendFactory.class)
+public class MemoryBackendService extends MemoryBackendFactory {
+
+}
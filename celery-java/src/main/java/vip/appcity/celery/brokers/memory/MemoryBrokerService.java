@@ -0,0 +1,10 @@
+package vip.appcity.celery.brokers.memory;
+
+import vip.appcity.celery.spi.BrokerFactory;
+
+import org.kohsuke.MetaInfServices;
+
+@MetaInfServices(BrokerFactory.class)
+public class MemoryBrokerService extends MemoryBrokerFactory {
+
+}
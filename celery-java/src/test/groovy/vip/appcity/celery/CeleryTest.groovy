@@ -1,16 +1,28 @@
 package vip.appcity.celery
 
+import vip.appcity.celery.routing.ConsistentHashRing
+import vip.appcity.celery.routing.PartitionedRoute
+import vip.appcity.celery.routing.RoutingKeyExtractor
 import vip.appcity.celery.spi.Backend
 import vip.appcity.celery.spi.Broker
+import vip.appcity.celery.spi.Message
 import spock.lang.Specification
 
 class CeleryTest extends Specification {
 
     def Celery client
+    def Broker broker
+    def Backend backend
+    def Message message
 
     def setup() {
-        MockBrokerFactory.broker = Mock(Broker.class)
-        MockBackendFactory.backend = Mock(Backend.class)
+        message = Mock(Message.class)
+        message.getHeaders() >> Mock(Message.Headers.class)
+        broker = Mock(Broker.class)
+        broker.newMessage() >> message
+        backend = Mock(Backend.class)
+        MockBrokerFactory.broker = broker
+        MockBackendFactory.backend = backend
 
         client = Celery.builder()
                 .brokerUri("mock://anything")
@@ -39,6 +51,61 @@ class CeleryTest extends Specification {
         then:
         foundBackend == MockBackendFactory.backend
     }
-}
 
+    def "Client should find memory broker and backend"() {
+        expect:
+        client.findBrokers().any { it.protocols == ["memory"] as Set }
+        client.findBackends().any { it.protocols == ["memory"] as Set }
+    }
+
+    def "Clients for other queues should share the connections"() {
+        def resultsProvider = Mock(Backend.ResultsProvider.class)
+
+        when:
+        def other = client.forQueue("other", null)
+        client.submit("tasks.add", [1, 2] as Object[])
+        other.submit("tasks.add", [3, 4] as Object[])
+        other.close()
+
+        then:
+        1 * backend.resultsProviderFor(_) >> resultsProvider
+        1 * broker.declareQueue("celery")
+        1 * broker.declareQueue("other")
+        1 * message.send("celery")
+        1 * message.send("other")
+        0 * broker.close()
+    }
+
+    def "Distributor should multiplex the queues over one client"() {
+        def resultsProvider = Mock(Backend.ResultsProvider.class)
+        resultsProvider.getBackend() >> backend
+        def distributor = new CeleryTaskDistributor(
+                broker: "mock://anything", backend: "mock://something", taskQueueMaps: ["tasks.a": "qa"])
+
+        when:
+        distributor.submit("tasks.a", [1] as Object[])
+        distributor.submit("tasks.b", [2] as Object[])
+        distributor.submit("tasks.a", [3] as Object[])
+        distributor.close()
+
+        then:
+        1 * backend.resultsProviderFor(_) >> resultsProvider
+        1 * broker.declareQueue("qa")
+        2 * message.send("qa")
+        1 * message.send("celery")
+        1 * broker.close()
+        1 * backend.close()
+    }
+
+    def "Distributor should route partitioned tasks by their key"() {
+        def route = PartitionedRoute.of(ConsistentHashRing.of(["orders.0", "orders.1"]), RoutingKeyExtractor.arg(0))
+        def distributor = new CeleryTaskDistributor(broker: "mock://anything", taskRoutes: ["tasks.order": route])
 
+        when:
+        distributor.submit("tasks.order", ["customer-1"] as Object[])
+        distributor.submit("tasks.order", ["customer-1"] as Object[])
+
+        then:
+        2 * message.send(route.queueFor(["customer-1"] as Object[]))
+    }
+}
@@ -1,10 +1,12 @@
 package vip.appcity.celery.examples;
 
 import vip.appcity.celery.CeleryTask;
+import vip.appcity.celery.Idempotent;
 
 @CeleryTask
 public class TestTask {
 
+    @Idempotent
     public int sum(int x, int y) {
         return x + y;
     }